@@ -6,6 +6,7 @@ public class Const {
     private String headerFile;
     private String codeFile;
     private String[] headers;
+    private String unpackerFile;
 
     private String[] constFilters;
 
@@ -41,6 +42,14 @@ public class Const {
         this.headerFile = headerFile;
     }
 
+    public String getUnpackerFile() {
+        return unpackerFile;
+    }
+
+    public void setUnpackerFile(String unpackerFile) {
+        this.unpackerFile = unpackerFile;
+    }
+
     public String getCodeFile() {
         return codeFile;
     }
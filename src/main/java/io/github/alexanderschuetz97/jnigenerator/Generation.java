@@ -19,7 +19,11 @@
 //
 package io.github.alexanderschuetz97.jnigenerator;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class Generation {
@@ -28,12 +32,40 @@ public class Generation {
     protected StringBuilder init = new StringBuilder();
     protected StringBuilder destroy = new StringBuilder();
     protected StringBuilder impl = new StringBuilder();
+    protected StringBuilder refTracking = new StringBuilder();
     protected Set<String> classes = new HashSet<>();
+    protected Map<String, StringBuilder> scopedInit = new LinkedHashMap<>();
+    protected Map<String, StringBuilder> scopedDestroy = new LinkedHashMap<>();
+    protected Set<String> eager = new HashSet<>();
+    protected List<String> stats = new ArrayList<>();
+    protected String scope;
 
     public boolean clazz(String clazz) {
         return classes.add(clazz);
     }
 
+    //init and destroy code added after this call belongs to the given class, null for code that is not class specific.
+    public void scope(String scope) {
+        this.scope = scope;
+        if (scope != null && !scopedInit.containsKey(scope)) {
+            scopedInit.put(scope, new StringBuilder());
+            scopedDestroy.put(scope, new StringBuilder());
+        }
+    }
+
+    //the current scope must always be initialized in jnigenerator_init, even in lazy mode.
+    public void eager() {
+        eager.add(scope);
+    }
+
+    public boolean isEager(String scope) {
+        return eager.contains(scope);
+    }
+
+    public Set<String> getScopes() {
+        return scopedInit.keySet();
+    }
+
     public void header(String... header) {
         for (String s : header) {
             this.header.append(s);
@@ -42,19 +74,31 @@ public class Generation {
     }
 
     public void init(String... init) {
+        StringBuilder target = scope == null ? this.init : scopedInit.get(scope);
         for (String s : init) {
-            this.init.append(s);
-            this.init.append('\n');
+            target.append(s);
+            target.append('\n');
         }
     }
 
     public void destroy(String... destroy) {
+        StringBuilder target = scope == null ? this.destroy : scopedDestroy.get(scope);
         for (String s : destroy) {
-            this.destroy.append(s);
-            this.destroy.append('\n');
+            target.append(s);
+            target.append('\n');
         }
     }
 
+    //prepends to the destroy code of the current scope, it then runs before the class reference of the scope is deleted.
+    public void destroyFirst(String... destroy) {
+        StringBuilder target = scope == null ? this.destroy : scopedDestroy.get(scope);
+        StringBuilder prefix = new StringBuilder();
+        for (String s : destroy) {
+            prefix.append(s);
+            prefix.append('\n');
+        }
+        target.insert(0, prefix);
+    }
 
     public void impl(String... impl) {
         for (String s : impl) {
@@ -63,6 +107,28 @@ public class Generation {
         }
     }
 
+    //macros emitted at the end of the header that count the local references returned by generated functions in debug builds.
+    public void refTracking(String... refTracking) {
+        for (String s : refTracking) {
+            this.refTracking.append(s);
+            this.refTracking.append('\n');
+        }
+    }
+
+    //registers a generated function for JNIGENERATOR_STATS and returns its index in the statistics.
+    public int stat(String name) {
+        stats.add(name);
+        return stats.size() - 1;
+    }
+
+    public List<String> getStats() {
+        return stats;
+    }
+
+    public String getRefTracking() {
+        return refTracking.toString();
+    }
+
     public String getHeader() {
         return header.toString();
     }
@@ -78,4 +144,12 @@ public class Generation {
     public String getDestroy() {
         return destroy.toString();
     }
+
+    public String getInit(String scope) {
+        return scopedInit.get(scope).toString();
+    }
+
+    public String getDestroy(String scope) {
+        return scopedDestroy.get(scope).toString();
+    }
 }
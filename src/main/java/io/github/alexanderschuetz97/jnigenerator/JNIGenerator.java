@@ -24,6 +24,7 @@ import org.apache.bcel.classfile.Field;
 import org.apache.bcel.classfile.JavaClass;
 import org.apache.bcel.classfile.Method;
 import org.apache.bcel.generic.ArrayType;
+import org.apache.bcel.generic.BasicType;
 import org.apache.bcel.generic.ObjectType;
 import org.apache.bcel.generic.Type;
 import org.apache.bcel.util.ClassPath;
@@ -73,6 +74,9 @@ public class JNIGenerator extends AbstractMojo {
     @Parameter(property = "consts")
     protected Const[] consts;
 
+    @Parameter(property = "natives")
+    protected String[] natives;
+
     @Parameter(property = "headerOutput")
     protected String headerOutput;
 
@@ -92,6 +96,39 @@ public class JNIGenerator extends AbstractMojo {
     @Parameter(property = "gen")
     protected boolean gen = true;
 
+    @Parameter(property = "lazyInit")
+    protected boolean lazyInit = false;
+
+    @Parameter(property = "safeDestroy")
+    protected boolean safeDestroy = false;
+
+    @Parameter(property = "strings")
+    protected InternedString[] strings;
+
+    @Parameter(property = "attachThreads")
+    protected boolean attachThreads = false;
+
+    @Parameter(property = "attachDaemon")
+    protected boolean attachDaemon = true;
+
+    @Parameter(property = "attachThreadName")
+    protected String attachThreadName;
+
+    @Parameter(property = "bufferCleanerFile")
+    protected String bufferCleanerFile;
+
+    @Parameter(property = "bufferCleanerPackage")
+    protected String bufferCleanerPackage;
+
+    @Parameter(property = "arrayPool")
+    protected boolean arrayPool = false;
+
+    @Parameter(property = "statsFile")
+    protected String statsFile;
+
+    @Parameter(property = "statsPackage")
+    protected String statsPackage;
+
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
         if (gen) {
@@ -138,6 +175,7 @@ public class JNIGenerator extends AbstractMojo {
         Map<String, Member> structsSet = new TreeMap<>();
         Map<String, Member> exceptionsSet = new TreeMap<>();
         Map<String, Const> constSet = new TreeMap<>();
+        Set<String> nativesSet = new TreeSet<>();
 
         if (structs != null) {
             for (Member member : structs) {
@@ -157,6 +195,10 @@ public class JNIGenerator extends AbstractMojo {
             }
         }
 
+        if (natives != null) {
+            nativesSet.addAll(Arrays.asList(natives));
+        }
+
         structsSet.remove("java.lang.Enum");
         structsSet.remove("java.lang.String");
 
@@ -165,6 +207,7 @@ public class JNIGenerator extends AbstractMojo {
         allClasses.addAll(structsSet.keySet());
         allClasses.addAll(exceptionsSet.keySet());
         allClasses.addAll(constSet.keySet());
+        allClasses.addAll(nativesSet);
 
         Map<String, JavaClass> jclasses = getClasses(allClasses);
 
@@ -186,6 +229,12 @@ public class JNIGenerator extends AbstractMojo {
             generateConst(generation, constSet.get(exc), jclasses.get(exc));
         }
 
+        for (String nat : nativesSet) {
+            generateNatives(generation, jclasses.get(nat));
+        }
+
+        generateStrings(generation);
+
 
 
 
@@ -321,6 +370,20 @@ public class JNIGenerator extends AbstractMojo {
                 "//THIS FILE IS MACHINE GENERATED, DO NOT EDIT",
                 "#include <jni.h>",
                 "#include <stddef.h>",
+                "#include <string.h>",
+                "",
+                "/**",
+                " * Number of elements the struct array functions process per local reference frame.",
+                " */",
+                "#ifndef JNIGENERATOR_ARRAY_CHUNK",
+                "#define JNIGENERATOR_ARRAY_CHUNK 256",
+                "#endif",
+                "",
+                "#if defined(__GNUC__)",
+                "#define JNIGENERATOR_HIDDEN __attribute__((visibility(\"hidden\")))",
+                "#else",
+                "#define JNIGENERATOR_HIDDEN",
+                "#endif",
                 "",
                 "/**",
                 " * initializes the the state of the generated code. Must be called once when your library loads. ",
@@ -336,6 +399,13 @@ public class JNIGenerator extends AbstractMojo {
                 "void jnigenerator_destroy(JNIEnv * env);",
                 "",
                 "/**",
+                " * true if the code was generated with lazyInit. In that case jnigenerator_init only resolves classes that contain enum constants,",
+                " * all other classes are resolved by the first wrapper function called for them. Such a call may fail with an exception",
+                " * pending if the class cannot be found, keep in mind that FindClass on threads attached by native code uses the system class loader.",
+                " */",
+                "#define JNIGENERATOR_LAZY " + (lazyInit ? "1" : "0"),
+                "",
+                "/**",
                 " * equivalent to (*env)->ExceptionCheck(env) just much shorter to write.",
                 " */",
                 "jboolean jerr(JNIEnv * env);",
@@ -347,20 +417,150 @@ public class JNIGenerator extends AbstractMojo {
                 "jbyteArray jarrayB(JNIEnv * env, jbyte * buffer, jsize len);",
                 "",
                 "/**",
-                " * Returns the enum ordinal or -1 if the passed enum value is NULL.",
+                " * Wraps capacity bytes at address in a direct ByteBuffer without copying them. The memory must stay valid as long",
+                " * as java can reach the buffer. Returns NULL when buffer creation fails. In this case a java exception is thrown.",
                 " */",
-                "jint jenum_ordinal(JNIEnv * env, jobject enumValue);",
+                "jobject jbufferB(JNIEnv * env, void * address, jlong capacity);",
                 "",
                 "/**",
-                " * Returns the name of the enum constant or NULL passed enum value is NULL.",
+                " * Stores the address and capacity of a direct ByteBuffer. Returns JNI_FALSE without throwing if buffer is NULL",
+                " * or not a direct buffer, address is then set to NULL and capacity to -1.",
+                " */",
+                "jboolean jbufferAddress(JNIEnv * env, jobject buffer, void ** address, jlong * capacity);",
+                "",
+                "/**",
+                " * Number of UTF-16 chars the string functions convert on the stack before they fall back to the heap.",
+                " */",
+                "#ifndef JNIGENERATOR_STRING_BUFFER",
+                "#define JNIGENERATOR_STRING_BUFFER 256",
+                "#endif",
+                "",
+                "/**",
+                " * Creates a new string from a NUL terminated standard UTF-8 string. Pure ASCII input is passed to NewStringUTF as is,",
+                " * everything else is decoded without the Modified UTF-8 restrictions of NewStringUTF. Invalid sequences become U+FFFD.",
+                " * Returns NULL if value is NULL or when creating the string fails. In the later case a java exception is thrown.",
                 " */",
-                "jstring jenum_name(JNIEnv * env, jobject enumValue);",
+                "jstring jstringCC(JNIEnv * env, const char * value);",
+                "",
+                "/**",
+                " * Copies the string as standard UTF-8 into buf. At most cap - 1 bytes are written followed by a NUL, a multi byte",
+                " * sequence is never cut in half. Returns the length of the complete UTF-8 encoding without the terminating NUL, which",
+                " * is greater or equal to cap if the string did not fit. Returns -1 if value is NULL. Does not allocate memory.",
+                " */",
+                "jlong jgetCC(JNIEnv * env, jstring value, char * buf, size_t cap);",
+                "",
+                "/**",
+                " * Creates a new string from a NUL terminated wide string. A 32 bit wchar_t is treated as UTF-32 and converted",
+                " * to UTF-16 with surrogate pairs, invalid code points become U+FFFD. Strings that do not fit into",
+                " * JNIGENERATOR_STRING_BUFFER chars are converted on the heap instead of the stack.",
+                " * Returns NULL if value is NULL or when creating the string fails. In the later case a java exception is thrown.",
+                " */",
+                "jstring jstringWC(JNIEnv * env, const wchar_t * value);",
+                "",
+                "/**",
+                " * Copies the string into buf as wide string. At most cap - 1 wchar_t are written followed by a NUL, a surrogate",
+                " * pair is never cut in half. Returns the length of the complete conversion without the terminating NUL, which is",
+                " * greater or equal to cap if the string did not fit. Returns -1 if value is NULL. Does not allocate memory.",
+                " */",
+                "jlong jgetWC(JNIEnv * env, jstring value, wchar_t * buf, size_t cap);",
+                "",
+                "/**",
+                " * Scoped access to a primitive array field through its generated jcritical_ accessor, for example:",
+                " * JNIGEN_CRITICAL_BEGIN(env, MyStruct_buffer, instance, jbyte, data, len)",
+                " *     ... use data[0] to data[len - 1], no JNI calls allowed here ...",
+                " * JNIGEN_CRITICAL_END(env, MyStruct_buffer, data, 0)",
+                " * The body is skipped if the field is NULL or the array could not be pinned (then a java exception is pending).",
+                " * Compile with JNIGENERATOR_DEBUG_CRITICAL defined to abort when a JNI function other than the Get/Release Critical",
+                " * functions or a generated function is called inside the region. For this the function table of env is replaced",
+                " * while the region is open, so only calls made through the env passed to the accessor are detected.",
+                " */",
+                "#define JNIGEN_CRITICAL_BEGIN(env, accessor, instance, ctype, data, len) { jarray data ## _array = 0; jsize len = 0; ctype * data = jcritical_ ## accessor(env, instance, &data ## _array, &len); if (data != 0) {",
+                "#define JNIGEN_CRITICAL_END(env, accessor, data, mode) } jcritical_release_ ## accessor(env, data ## _array, data, mode); }",
+                "",
+                "/**",
+                " * Compile with JNIGENERATOR_DEBUG_REFS defined to count the local references returned by generated functions per thread.",
+                " * Delete them with JNIGEN_RELEASE instead of DeleteLocalRef so they are counted down again.",
+                " * JNIGEN_CHECK_REFS(limit) prints a warning to stderr if more than limit references are outstanding. References returned",
+                " * to java stay counted, call JNIGEN_RESET_REFS() when a native method is entered to only count those of the current call.",
+                " */",
+                "#ifdef JNIGENERATOR_DEBUG_REFS",
+                "extern __thread long jnigenerator_debug_refs;",
+                "jobject jnigenerator_track(jobject ref);",
+                "void jnigenerator_check_refs(long limit, const char * file, int line);",
+                "#define JNIGEN_RELEASE(env, ref) { jobject jnigen_released = (ref); if (jnigen_released != 0) { jnigenerator_debug_refs--; } (*(env))->DeleteLocalRef((env), jnigen_released); }",
+                "#define JNIGEN_CHECK_REFS(limit) jnigenerator_check_refs((limit), __FILE__, __LINE__)",
+                "#define JNIGEN_RESET_REFS() jnigenerator_debug_refs = 0",
+                "#define JNIGEN_FRAME_SAVE long jnigen_frame_refs = jnigenerator_debug_refs;",
+                "#define JNIGEN_FRAME_RESTORE jnigenerator_debug_refs = jnigen_frame_refs;",
+                "#define JNIGEN_FRAME_KEPT(ref) if ((ref) != 0) { jnigenerator_debug_refs++; }",
+                "#else",
+                "#define JNIGEN_RELEASE(env, ref) (*(env))->DeleteLocalRef((env), (ref))",
+                "#define JNIGEN_CHECK_REFS(limit)",
+                "#define JNIGEN_RESET_REFS()",
+                "#define JNIGEN_FRAME_SAVE",
+                "#define JNIGEN_FRAME_RESTORE",
+                "#define JNIGEN_FRAME_KEPT(ref)",
+                "#endif",
+                "",
+                "/**",
+                " * Local reference frame for loops that call generated functions returning local references, for example:",
+                " * for (int i = 0; i < count; i++) {",
+                " *     JNIGEN_FRAME_BEGIN(env, 16)",
+                " *         jstring name = jget_MyStruct_name(env, instances[i]);",
+                " *         ... no need to delete name ...",
+                " *     JNIGEN_FRAME_END(env)",
+                " * }",
+                " * All references created inside the frame are deleted by JNIGEN_FRAME_END. JNIGEN_FRAME_END_KEEP(env, result) keeps",
+                " * result, a reference variable declared outside of the frame, alive as a new local reference in the enclosing frame.",
+                " * The body is skipped if the frame could not be created, in this case a java exception is pending.",
+                " */",
+                "#define JNIGEN_FRAME_BEGIN(env, capacity) { JNIGEN_FRAME_SAVE if ((*(env))->PushLocalFrame((env), (capacity)) == 0) {",
+                "#define JNIGEN_FRAME_END(env) (*(env))->PopLocalFrame((env), 0); JNIGEN_FRAME_RESTORE } }",
+                "#define JNIGEN_FRAME_END_KEEP(env, result) result = (*(env))->PopLocalFrame((env), result); JNIGEN_FRAME_RESTORE JNIGEN_FRAME_KEPT(result) } }",
+                "",
+                "/**",
+                " * Callback of the generated jborrow_ functions. value is only valid until the callback returns, it is deleted afterwards.",
+                " */",
+                "typedef void (*jborrow_fn)(JNIEnv * env, jobject value, void * ctx);",
                 ""
         );
 
+        generation.header(
+                "/**",
+                " * Compile with JNIGENERATOR_STATS defined to count the calls of every generated function.",
+                " * JNIGENERATOR_STATS_LATENCY additionally records a log2 histogram of the duration of each call in nanoseconds,",
+                " * JNIGENERATOR_STATS_TSC records it in timestamp counter ticks instead on x86.",
+                " * Bucket i counts the calls that took less than 2^i units, the last bucket also counts all slower calls.",
+                " */",
+                "#ifndef JNIGENERATOR_STATS_BUCKETS",
+                "#define JNIGENERATOR_STATS_BUCKETS 32",
+                "#endif",
+                "",
+                "/**",
+                " * Returns the statistics as long[] {functions, buckets, scopes, calls[functions], histogram[functions][buckets], initNanos[scopes]}.",
+                " * initNanos is the total time spent in the initialization of each class. The names belonging to the indices are",
+                " * in the generated statsFile. Returns NULL if the generated code was compiled without JNIGENERATOR_STATS.",
+                " */",
+                "jlongArray jnigenerator_stats(JNIEnv * env);",
+                "");
+
+        generation.refTracking(
+                "#define jarrayB(...) ((jbyteArray) jnigenerator_track((jobject) jarrayB(__VA_ARGS__)))",
+                "#define jbufferB(...) ((jobject) jnigenerator_track((jobject) jbufferB(__VA_ARGS__)))",
+                "#define jstringCC(...) ((jstring) jnigenerator_track((jobject) jstringCC(__VA_ARGS__)))",
+                "#define jstringWC(...) ((jstring) jnigenerator_track((jobject) jstringWC(__VA_ARGS__)))",
+                "#define jnigenerator_stats(...) ((jlongArray) jnigenerator_track((jobject) jnigenerator_stats(__VA_ARGS__)))");
+
         generation.impl(
                 "//THIS FILE IS MACHINE GENERATED, DO NOT EDIT",
+                "#define JNIGENERATOR_IMPL",
                 headerInclude,
+                "#include <limits.h>",
+                "#include <stdint.h>",
+                "#include <stdio.h>",
+                "#include <stdlib.h>",
+                "#include <wchar.h>",
+                "",
                 "static jclass internal_Exception = 0;",
                 "static jclass internal_OutOfMemoryError = 0;",
                 "static jclass internal_IllegalArgumentException = 0;",
@@ -368,6 +568,91 @@ public class JNIGenerator extends AbstractMojo {
                 "static jclass internal_Enum = 0;",
                 "static jmethodID internal_Enum_ordinal = 0;",
                 "static jmethodID internal_Enum_name = 0;",
+                "static jfieldID internal_Enum_ordinal_field = 0;",
+                "static jfieldID internal_Enum_name_field = 0;",
+                "",
+                "#ifdef JNIGENERATOR_DEBUG_CRITICAL",
+                "#include <stdio.h>",
+                "static __thread int jnigenerator_critical_depth = 0;",
+                "static __thread const struct JNINativeInterface_ * jnigenerator_critical_functions = 0;",
+                "static __thread struct JNINativeInterface_ jnigenerator_critical_table;",
+                "",
+                "static void jnigenerator_critical_violation(void) {",
+                "    fprintf(stderr, \"jnigenerator: JNI function called inside a critical region\\n\");",
+                "    abort();",
+                "}",
+                "",
+                "//While the outermost region is open env uses a copy of its function table in which every function except the",
+                "//critical ones aborts. The original table is put back before the array is released.",
+                "static void jnigenerator_critical_enter(JNIEnv * env) {",
+                "    if (jnigenerator_critical_depth++ != 0) {",
+                "        return;",
+                "    }",
+                "    const struct JNINativeInterface_ * functions = *env;",
+                "    void ** slots = (void **) &jnigenerator_critical_table;",
+                "    for (size_t i = 0; i < sizeof(struct JNINativeInterface_) / sizeof(void *); i++) {",
+                "        slots[i] = (void *) jnigenerator_critical_violation;",
+                "    }",
+                "    jnigenerator_critical_table.reserved0 = functions->reserved0;",
+                "    jnigenerator_critical_table.reserved1 = functions->reserved1;",
+                "    jnigenerator_critical_table.reserved2 = functions->reserved2;",
+                "    jnigenerator_critical_table.reserved3 = functions->reserved3;",
+                "    jnigenerator_critical_table.GetPrimitiveArrayCritical = functions->GetPrimitiveArrayCritical;",
+                "    jnigenerator_critical_table.ReleasePrimitiveArrayCritical = functions->ReleasePrimitiveArrayCritical;",
+                "    jnigenerator_critical_table.GetStringCritical = functions->GetStringCritical;",
+                "    jnigenerator_critical_table.ReleaseStringCritical = functions->ReleaseStringCritical;",
+                "    jnigenerator_critical_functions = functions;",
+                "    *env = &jnigenerator_critical_table;",
+                "}",
+                "",
+                "static void jnigenerator_critical_exit(JNIEnv * env) {",
+                "    if (--jnigenerator_critical_depth == 0) {",
+                "        *env = jnigenerator_critical_functions;",
+                "    }",
+                "}",
+                "",
+                "#define JNIGEN_CRITICAL_ENTER(env) jnigenerator_critical_enter(env)",
+                "#define JNIGEN_CRITICAL_EXIT(env) jnigenerator_critical_exit(env)",
+                "#define JNIGEN_CHECK_CRITICAL(name) if (jnigenerator_critical_depth != 0) { fprintf(stderr, \"jnigenerator: %s called inside a critical region\\n\", name); abort(); }",
+                "#else",
+                "#define JNIGEN_CRITICAL_ENTER(env)",
+                "#define JNIGEN_CRITICAL_EXIT(env)",
+                "#define JNIGEN_CHECK_CRITICAL(name)",
+                "#endif",
+                "",
+                "#ifdef JNIGENERATOR_STATS",
+                "typedef struct {",
+                "    int index;",
+                "    jlong start;",
+                "} jnigenerator_stat;",
+                "static jlong jnigenerator_stat_clock(void);",
+                "static jlong jnigenerator_stat_nanos(void);",
+                "static void jnigenerator_stat_end(jnigenerator_stat * stat);",
+                "static void jnigenerator_stat_init_end(jnigenerator_stat * stat);",
+                "#define JNIGEN_STATS(index) jnigenerator_stat jnigen_stat __attribute__((cleanup(jnigenerator_stat_end))) = {(index), jnigenerator_stat_clock()}",
+                "#define JNIGEN_INIT_STATS(index) jnigenerator_stat jnigen_stat __attribute__((cleanup(jnigenerator_stat_init_end))) = {(index), jnigenerator_stat_nanos()}",
+                "#else",
+                "#define JNIGEN_STATS(index)",
+                "#define JNIGEN_INIT_STATS(index)",
+                "#endif",
+                "",
+                "#ifdef JNIGENERATOR_DEBUG_REFS",
+                "#include <stdio.h>",
+                "__thread long jnigenerator_debug_refs = 0;",
+                "",
+                "jobject jnigenerator_track(jobject ref) {",
+                "    if (ref != 0) {",
+                "        jnigenerator_debug_refs++;",
+                "    }",
+                "    return ref;",
+                "}",
+                "",
+                "void jnigenerator_check_refs(long limit, const char * file, int line) {",
+                "    if (jnigenerator_debug_refs > limit) {",
+                "        fprintf(stderr, \"jnigenerator: %ld local references outstanding at %s:%d\\n\", jnigenerator_debug_refs, file, line);",
+                "    }",
+                "}",
+                "#endif",
                 "",
                 "static jclass makeGlobalClassRef(JNIEnv * env, const char * name) {",
                 "   jclass clazz = (*env) -> FindClass(env, name);",
@@ -418,27 +703,492 @@ public class JNIGenerator extends AbstractMojo {
                 "    if (buffer == 0) {",
                 "        (*env)->DeleteLocalRef(env, res);",
                 "        throw_internal_NullPointerException(env, \"jarrayB buffer = NULL\");",
+                "        return 0;",
                 "    }",
                 "    (*env)->SetByteArrayRegion(env, res, 0, len, (const jbyte*) buffer);",
                 "    return res;",
                 "}",
                 "",
-                "jint jenum_ordinal(JNIEnv * env, jobject enumValue) {",
-                "    if (enumValue == 0) {",
+                "jobject jbufferB(JNIEnv * env, void * address, jlong capacity) {",
+                "    if (capacity < 0) {",
+                "        throw_internal_IllegalArgumentException(env, \"jbufferB capacity < 0\");",
+                "        return 0;",
+                "    }",
+                "    if (address == 0 && capacity > 0) {",
+                "        throw_internal_NullPointerException(env, \"jbufferB address = NULL\");",
+                "        return 0;",
+                "    }",
+                "    jobject res = (*env) -> NewDirectByteBuffer(env, address, capacity);",
+                "    if (res == 0) {",
+                "        throw_internal_OutOfMemoryError(env, \"jbufferB NewDirectByteBuffer\");",
+                "    }",
+                "    return res;",
+                "}",
+                "",
+                "jboolean jbufferAddress(JNIEnv * env, jobject buffer, void ** address, jlong * capacity) {",
+                "    *address = 0;",
+                "    *capacity = -1;",
+                "    if (buffer == 0) {",
+                "        return JNI_FALSE;",
+                "    }",
+                "    void * addr = (*env) -> GetDirectBufferAddress(env, buffer);",
+                "    if (addr == 0) {",
+                "        return JNI_FALSE;",
+                "    }",
+                "    *address = addr;",
+                "    *capacity = (*env) -> GetDirectBufferCapacity(env, buffer);",
+                "    return JNI_TRUE;",
+                "}",
+                "",
+                "jstring jstringCC(JNIEnv * env, const char * value) {",
+                "    if (value == 0) {",
+                "        return 0;",
+                "    }",
+                "    const unsigned char * str = (const unsigned char *) value;",
+                "    size_t len = 0;",
+                "    while (str[len] != 0 && str[len] < 0x80) {",
+                "        len++;",
+                "    }",
+                "    jstring res;",
+                "    if (str[len] == 0) {",
+                "        //ASCII is the same in Modified UTF-8",
+                "        res = (*env) -> NewStringUTF(env, value);",
+                "        if (res == 0) {",
+                "            throw_internal_OutOfMemoryError(env, \"NewStringUTF\");",
+                "        }",
+                "        return res;",
+                "    }",
+                "    len += strlen(value + len);",
+                "    if (len > 0x7FFFFFFF) {",
+                "        throw_internal_IllegalArgumentException(env, \"jstringCC value too long\");",
+                "        return 0;",
+                "    }",
+                "",
+                "    //never more UTF-16 chars than UTF-8 bytes",
+                "    jchar stackBuf[JNIGENERATOR_STRING_BUFFER];",
+                "    jchar * buf = stackBuf;",
+                "    if (len > JNIGENERATOR_STRING_BUFFER) {",
+                "        buf = (jchar *) malloc(len * sizeof(jchar));",
+                "        if (buf == 0) {",
+                "            throw_internal_OutOfMemoryError(env, \"jstringCC malloc\");",
+                "            return 0;",
+                "        }",
+                "    }",
+                "",
+                "    jsize count = 0;",
+                "    size_t i = 0;",
+                "    while (i < len) {",
+                "        unsigned int c = str[i];",
+                "        if (c < 0x80) {",
+                "            buf[count++] = (jchar) c;",
+                "            i++;",
+                "            continue;",
+                "        }",
+                "",
+                "        unsigned int cp;",
+                "        unsigned int min;",
+                "        size_t need;",
+                "        if (c >= 0xC2 && c <= 0xDF) {",
+                "            cp = c & 0x1F;",
+                "            min = 0x80;",
+                "            need = 1;",
+                "        } else if (c >= 0xE0 && c <= 0xEF) {",
+                "            cp = c & 0x0F;",
+                "            min = 0x800;",
+                "            need = 2;",
+                "        } else if (c >= 0xF0 && c <= 0xF4) {",
+                "            cp = c & 0x07;",
+                "            min = 0x10000;",
+                "            need = 3;",
+                "        } else {",
+                "            buf[count++] = 0xFFFD;",
+                "            i++;",
+                "            continue;",
+                "        }",
+                "",
+                "        //the terminating NUL is never a continuation byte so this cannot read past the end",
+                "        size_t j = 1;",
+                "        while (j <= need && (str[i + j] & 0xC0) == 0x80) {",
+                "            cp = (cp << 6) | (str[i + j] & 0x3F);",
+                "            j++;",
+                "        }",
+                "        i += j;",
+                "        if (j <= need || cp < min || cp > 0x10FFFF || (cp >= 0xD800 && cp <= 0xDFFF)) {",
+                "            buf[count++] = 0xFFFD;",
+                "            continue;",
+                "        }",
+                "        if (cp >= 0x10000) {",
+                "            cp -= 0x10000;",
+                "            buf[count++] = (jchar) (0xD800 | (cp >> 10));",
+                "            buf[count++] = (jchar) (0xDC00 | (cp & 0x3FF));",
+                "            continue;",
+                "        }",
+                "        buf[count++] = (jchar) cp;",
+                "    }",
+                "",
+                "    res = (*env) -> NewString(env, (const jchar *) buf, count);",
+                "    if (buf != stackBuf) {",
+                "        free(buf);",
+                "    }",
+                "    if (res == 0) {",
+                "        throw_internal_OutOfMemoryError(env, \"NewString\");",
+                "    }",
+                "    return res;",
+                "}",
+                "",
+                "static void jnigenerator_put_utf8(unsigned int cp, char * buf, size_t cap, size_t * pos, jlong * total) {",
+                "    char seq[4];",
+                "    size_t len;",
+                "    if (cp < 0x80) {",
+                "        seq[0] = (char) cp;",
+                "        len = 1;",
+                "    } else if (cp < 0x800) {",
+                "        seq[0] = (char) (0xC0 | (cp >> 6));",
+                "        seq[1] = (char) (0x80 | (cp & 0x3F));",
+                "        len = 2;",
+                "    } else if (cp < 0x10000) {",
+                "        seq[0] = (char) (0xE0 | (cp >> 12));",
+                "        seq[1] = (char) (0x80 | ((cp >> 6) & 0x3F));",
+                "        seq[2] = (char) (0x80 | (cp & 0x3F));",
+                "        len = 3;",
+                "    } else {",
+                "        seq[0] = (char) (0xF0 | (cp >> 18));",
+                "        seq[1] = (char) (0x80 | ((cp >> 12) & 0x3F));",
+                "        seq[2] = (char) (0x80 | ((cp >> 6) & 0x3F));",
+                "        seq[3] = (char) (0x80 | (cp & 0x3F));",
+                "        len = 4;",
+                "    }",
+                "",
+                "    //once something did not fit nothing after it is written either",
+                "    if (*total == (jlong) *pos && *pos + len < cap) {",
+                "        memcpy(buf + *pos, seq, len);",
+                "        *pos += len;",
+                "    }",
+                "    *total += len;",
+                "}",
+                "",
+                "jlong jgetCC(JNIEnv * env, jstring value, char * buf, size_t cap) {",
+                "    if (value == 0) {",
+                "        if (cap > 0) {",
+                "            buf[0] = 0;",
+                "        }",
                 "        return -1;",
                 "    }",
-                "    return (jint) (*env) -> CallIntMethod(env, enumValue, internal_Enum_ordinal);",
+                "",
+                "    jsize len = (*env) -> GetStringLength(env, value);",
+                "    //Modified UTF-8 needs at most 3 bytes per char, only ask for the exact length if that might not fit",
+                "    if ((size_t) len * 3 < cap || (size_t) (*env) -> GetStringUTFLength(env, value) < cap) {",
+                "        (*env) -> GetStringUTFRegion(env, value, 0, len, buf);",
+                "",
+                "        //Modified UTF-8 is the same as UTF-8 unless the string contains NUL chars or surrogates",
+                "        size_t pos = 0;",
+                "        jsize i = 0;",
+                "        for (; i < len; i++) {",
+                "            unsigned char c = (unsigned char) buf[pos];",
+                "            if (c < 0x80) {",
+                "                pos++;",
+                "            } else if (c < 0xE0) {",
+                "                if (c == 0xC0) {",
+                "                    break;",
+                "                }",
+                "                pos += 2;",
+                "            } else {",
+                "                if (c == 0xED && (unsigned char) buf[pos + 1] >= 0xA0) {",
+                "                    break;",
+                "                }",
+                "                pos += 3;",
+                "            }",
+                "        }",
+                "        if (i == len) {",
+                "            buf[pos] = 0;",
+                "            return (jlong) pos;",
+                "        }",
+                "    }",
+                "",
+                "    jchar chunk[JNIGENERATOR_STRING_BUFFER];",
+                "    size_t pos = 0;",
+                "    jlong total = 0;",
+                "    unsigned int high = 0;",
+                "    for (jsize off = 0; off < len; off += JNIGENERATOR_STRING_BUFFER) {",
+                "        jsize count = len - off < JNIGENERATOR_STRING_BUFFER ? len - off : JNIGENERATOR_STRING_BUFFER;",
+                "        (*env) -> GetStringRegion(env, value, off, count, chunk);",
+                "        for (jsize i = 0; i < count; i++) {",
+                "            unsigned int cp = chunk[i];",
+                "            if (high != 0) {",
+                "                if (cp >= 0xDC00 && cp <= 0xDFFF) {",
+                "                    jnigenerator_put_utf8(0x10000 + ((high - 0xD800) << 10) + (cp - 0xDC00), buf, cap, &pos, &total);",
+                "                    high = 0;",
+                "                    continue;",
+                "                }",
+                "                jnigenerator_put_utf8(0xFFFD, buf, cap, &pos, &total);",
+                "                high = 0;",
+                "            }",
+                "            if (cp >= 0xD800 && cp <= 0xDBFF) {",
+                "                high = cp;",
+                "                continue;",
+                "            }",
+                "            if (cp >= 0xDC00 && cp <= 0xDFFF) {",
+                "                cp = 0xFFFD;",
+                "            }",
+                "            jnigenerator_put_utf8(cp, buf, cap, &pos, &total);",
+                "        }",
+                "    }",
+                "    if (high != 0) {",
+                "        jnigenerator_put_utf8(0xFFFD, buf, cap, &pos, &total);",
+                "    }",
+                "    if (cap > 0) {",
+                "        buf[pos] = 0;",
+                "    }",
+                "    return total;",
                 "}",
                 "",
-                "jstring jenum_name(JNIEnv * env, jobject enumValue) {",
-                "    if (enumValue == 0) {",
+                "jstring jstringWC(JNIEnv * env, const wchar_t * value) {",
+                "    if (value == 0) {",
+                "        return 0;",
+                "    }",
+                "    size_t len = wcslen(value);",
+                "    jstring res;",
+                "    if (sizeof(wchar_t) == sizeof(jchar)) {",
+                "        if (len > 0x7FFFFFFF) {",
+                "            throw_internal_IllegalArgumentException(env, \"jstringWC value too long\");",
+                "            return 0;",
+                "        }",
+                "        res = (*env) -> NewString(env, (const jchar *) value, (jsize) len);",
+                "        if (res == 0) {",
+                "            throw_internal_OutOfMemoryError(env, \"NewString\");",
+                "        }",
+                "        return res;",
+                "    }",
+                "",
+                "    //every UTF-32 char needs at most 2 UTF-16 chars",
+                "    if (len > 0x3FFFFFFF) {",
+                "        throw_internal_IllegalArgumentException(env, \"jstringWC value too long\");",
                 "        return 0;",
                 "    }",
-                "    return (jstring) (*env) -> CallObjectMethod(env, enumValue, internal_Enum_name);",
+                "    jchar stackBuf[JNIGENERATOR_STRING_BUFFER];",
+                "    jchar * buf = stackBuf;",
+                "    if (len * 2 > JNIGENERATOR_STRING_BUFFER) {",
+                "        buf = (jchar *) malloc(len * 2 * sizeof(jchar));",
+                "        if (buf == 0) {",
+                "            throw_internal_OutOfMemoryError(env, \"jstringWC malloc\");",
+                "            return 0;",
+                "        }",
+                "    }",
+                "",
+                "    jsize count = 0;",
+                "    for (size_t i = 0; i < len; i++) {",
+                "        unsigned long cp = (unsigned long) value[i];",
+                "        if (cp < 0xD800 || (cp > 0xDFFF && cp < 0x10000)) {",
+                "            buf[count++] = (jchar) cp;",
+                "        } else if (cp >= 0x10000 && cp <= 0x10FFFF) {",
+                "            cp -= 0x10000;",
+                "            buf[count++] = (jchar) (0xD800 | (cp >> 10));",
+                "            buf[count++] = (jchar) (0xDC00 | (cp & 0x3FF));",
+                "        } else {",
+                "            buf[count++] = 0xFFFD;",
+                "        }",
+                "    }",
+                "",
+                "    res = (*env) -> NewString(env, (const jchar *) buf, count);",
+                "    if (buf != stackBuf) {",
+                "        free(buf);",
+                "    }",
+                "    if (res == 0) {",
+                "        throw_internal_OutOfMemoryError(env, \"NewString\");",
+                "    }",
+                "    return res;",
+                "}",
+                "",
+                "jlong jgetWC(JNIEnv * env, jstring value, wchar_t * buf, size_t cap) {",
+                "    if (value == 0) {",
+                "        if (cap > 0) {",
+                "            buf[0] = 0;",
+                "        }",
+                "        return -1;",
+                "    }",
+                "",
+                "    jsize len = (*env) -> GetStringLength(env, value);",
+                "    if (sizeof(wchar_t) == sizeof(jchar)) {",
+                "        if (cap > 0) {",
+                "            jsize copy = (size_t) len < cap ? len : (jsize) (cap - 1);",
+                "            (*env) -> GetStringRegion(env, value, 0, copy, (jchar *) buf);",
+                "            if (copy < len && copy > 0 && buf[copy - 1] >= 0xD800 && buf[copy - 1] <= 0xDBFF) {",
+                "                copy--;",
+                "            }",
+                "            buf[copy] = 0;",
+                "        }",
+                "        return len;",
+                "    }",
+                "",
+                "    jchar chunk[JNIGENERATOR_STRING_BUFFER];",
+                "    size_t pos = 0;",
+                "    jlong total = 0;",
+                "    unsigned long high = 0;",
+                "    for (jsize off = 0; off < len; off += JNIGENERATOR_STRING_BUFFER) {",
+                "        jsize count = len - off < JNIGENERATOR_STRING_BUFFER ? len - off : JNIGENERATOR_STRING_BUFFER;",
+                "        (*env) -> GetStringRegion(env, value, off, count, chunk);",
+                "        for (jsize i = 0; i < count; i++) {",
+                "            unsigned long cp = chunk[i];",
+                "            if (high != 0) {",
+                "                if (cp >= 0xDC00 && cp <= 0xDFFF) {",
+                "                    cp = 0x10000 + ((high - 0xD800) << 10) + (cp - 0xDC00);",
+                "                    high = 0;",
+                "                    if (total == (jlong) pos && pos + 1 < cap) {",
+                "                        buf[pos++] = (wchar_t) cp;",
+                "                    }",
+                "                    total++;",
+                "                    continue;",
+                "                }",
+                "                if (total == (jlong) pos && pos + 1 < cap) {",
+                "                    buf[pos++] = (wchar_t) 0xFFFD;",
+                "                }",
+                "                total++;",
+                "                high = 0;",
+                "            }",
+                "            if (cp >= 0xD800 && cp <= 0xDBFF) {",
+                "                high = cp;",
+                "                continue;",
+                "            }",
+                "            if (cp >= 0xDC00 && cp <= 0xDFFF) {",
+                "                cp = 0xFFFD;",
+                "            }",
+                "            if (total == (jlong) pos && pos + 1 < cap) {",
+                "                buf[pos++] = (wchar_t) cp;",
+                "            }",
+                "            total++;",
+                "        }",
+                "    }",
+                "    if (high != 0) {",
+                "        if (total == (jlong) pos && pos + 1 < cap) {",
+                "            buf[pos++] = (wchar_t) 0xFFFD;",
+                "        }",
+                "        total++;",
+                "    }",
+                "    if (cap > 0) {",
+                "        buf[pos] = 0;",
+                "    }",
+                "    return total;",
                 "}",
                 ""
         );
 
+        if (safeDestroy) {
+            generation.header(
+                    "/**",
+                    " * Generated with safeDestroy: jnigenerator_destroy waits until no thread is inside a generated function anymore.",
+                    " * Calls made while the generated code is not initialized fail with an IllegalStateException.",
+                    " * jnigenerator_destroy must not be called from java code that was invoked by a generated function, it would wait for itself.",
+                    " */",
+                    "#define JNIGENERATOR_SAFE_DESTROY 1",
+                    "");
+
+            generation.impl(
+                    "#include <sched.h>",
+                    "#include <stdint.h>",
+                    "",
+                    "//Threads inside a generated function are counted in one of these striped counters, destroy waits until all are 0.",
+                    "#define JNIGEN_READER_SLOTS 64",
+                    "static struct {",
+                    "    long count;",
+                    "    char padding[64 - sizeof(long)];",
+                    "} jnigenerator_readers[JNIGEN_READER_SLOTS] __attribute__((aligned(64)));",
+                    "static int jnigenerator_alive = 0;",
+                    "static __thread char jnigenerator_reader_tls;",
+                    "",
+                    "static long * jnigenerator_enter(JNIEnv * env) {",
+                    "    long * slot = &jnigenerator_readers[(((uintptr_t) &jnigenerator_reader_tls) * 0x9E3779B97F4A7C15ULL) >> 58].count;",
+                    "    __atomic_fetch_add(slot, 1, __ATOMIC_SEQ_CST);",
+                    "    if (__builtin_expect(__atomic_load_n(&jnigenerator_alive, __ATOMIC_SEQ_CST), 1)) {",
+                    "        return slot;",
+                    "    }",
+                    "    __atomic_fetch_sub(slot, 1, __ATOMIC_RELEASE);",
+                    "    if (!(*env) -> ExceptionCheck(env)) {",
+                    "        jclass ise = (*env) -> FindClass(env, \"java/lang/IllegalStateException\");",
+                    "        if (ise != 0) {",
+                    "            (*env) -> ThrowNew(env, ise, \"jnigenerator is not initialized\");",
+                    "            (*env) -> DeleteLocalRef(env, ise);",
+                    "        }",
+                    "    }",
+                    "    return 0;",
+                    "}",
+                    "",
+                    "static void jnigenerator_exit(long * slot) {",
+                    "    __atomic_fetch_sub(slot, 1, __ATOMIC_RELEASE);",
+                    "}",
+                    "",
+                    "static void jnigenerator_quiesce() {",
+                    "    __atomic_store_n(&jnigenerator_alive, 0, __ATOMIC_SEQ_CST);",
+                    "    for (int i = 0; i < JNIGEN_READER_SLOTS; i++) {",
+                    "        while (__atomic_load_n(&jnigenerator_readers[i].count, __ATOMIC_ACQUIRE) != 0) {",
+                    "            sched_yield();",
+                    "        }",
+                    "    }",
+                    "}",
+                    "");
+        }
+
+        generation.header(
+                "/**",
+                " * Returns the enum ordinal or -1 if the passed enum value is NULL.",
+                " */");
+        wrapper(generation, null, "jint jenum_ordinal(JNIEnv * env, jobject enumValue)",
+                "    if (enumValue == 0) {",
+                "        return -1;",
+                "    }",
+                "    if (internal_Enum_ordinal_field != 0) {",
+                "        return (*env) -> GetIntField(env, enumValue, internal_Enum_ordinal_field);",
+                "    }",
+                "    return (jint) (*env) -> CallIntMethod(env, enumValue, internal_Enum_ordinal);");
+
+        generation.header(
+                "",
+                "/**",
+                " * Returns the name of the enum constant or NULL passed enum value is NULL.",
+                " */");
+        wrapper(generation, null, "jstring jenum_name(JNIEnv * env, jobject enumValue)",
+                "    if (enumValue == 0) {",
+                "        return 0;",
+                "    }",
+                "    if (internal_Enum_name_field != 0) {",
+                "        return (jstring) (*env) -> GetObjectField(env, enumValue, internal_Enum_name_field);",
+                "    }",
+                "    return (jstring) (*env) -> CallObjectMethod(env, enumValue, internal_Enum_name);");
+        generation.header("");
+
+        if (lazyInit) {
+            generation.impl(
+                    "#include <sched.h>",
+                    "",
+                    "//state is 0 when the class is not resolved, 1 while a thread resolves it and 2 once it is resolved.",
+                    "//Resolving ids is not allowed while an exception is pending, the wrapper returns without touching the exception of the caller.",
+                    "//This happens when a throw wrapper is used to replace an exception and is the first function of its class that is called.",
+                    "static jboolean jnigenerator_lazy(JNIEnv * env, int * state, jboolean (*init)(JNIEnv *), void (*destroy)(JNIEnv *)) {",
+                    "    if ((*env) -> ExceptionCheck(env)) {",
+                    "        return JNI_FALSE;",
+                    "    }",
+                    "    while (1) {",
+                    "        int expected = 0;",
+                    "        if (__atomic_compare_exchange_n(state, &expected, 1, 0, __ATOMIC_ACQUIRE, __ATOMIC_ACQUIRE)) {",
+                    "            if (init(env)) {",
+                    "                __atomic_store_n(state, 2, __ATOMIC_RELEASE);",
+                    "                return JNI_TRUE;",
+                    "            }",
+                    "            destroy(env);",
+                    "            __atomic_store_n(state, 0, __ATOMIC_RELEASE);",
+                    "            return JNI_FALSE;",
+                    "        }",
+                    "        if (expected == 2) {",
+                    "            return JNI_TRUE;",
+                    "        }",
+                    "        sched_yield();",
+                    "    }",
+                    "}",
+                    "",
+                    "#define JNIGEN_LAZY(clazz, env, ret) if (__builtin_expect(__atomic_load_n(&jnigenerator_state_ ## clazz, __ATOMIC_ACQUIRE) != 2, 0) && !jnigenerator_lazy(env, &jnigenerator_state_ ## clazz, jnigenerator_init_ ## clazz, jnigenerator_destroy_ ## clazz)) { return ret; }",
+                    "",
+                    "");
+        }
+
         generation.init(
                 "    internal_Exception = makeGlobalClassRef(env, \"java/lang/Exception\");",
                 "    if (internal_Exception == 0) {",
@@ -473,6 +1223,17 @@ public class JNIGenerator extends AbstractMojo {
                 "    if (internal_Enum_name == 0) {",
                 "        return JNI_FALSE;",
                 "    }",
+                "",
+                "    //reading the private fields of OpenJDK avoids a call into java, other vms fall back to the methods",
+                "    internal_Enum_ordinal_field = (*env) ->GetFieldID(env, internal_Enum, \"ordinal\", \"I\");",
+                "    if (internal_Enum_ordinal_field == 0) {",
+                "        (*env) -> ExceptionClear(env);",
+                "    }",
+                "",
+                "    internal_Enum_name_field = (*env) ->GetFieldID(env, internal_Enum, \"name\", \"Ljava/lang/String;\");",
+                "    if (internal_Enum_name_field == 0) {",
+                "        (*env) -> ExceptionClear(env);",
+                "    }",
                 ""
         );
 
@@ -499,38 +1260,479 @@ public class JNIGenerator extends AbstractMojo {
                 "    }",
                 "    internal_Enum_name = 0;",
                 "    internal_Enum_ordinal = 0;",
+                "    internal_Enum_name_field = 0;",
+                "    internal_Enum_ordinal_field = 0;",
                 ""
         );
 
+        if (attachThreads) {
+            generateAttach(generation);
+        }
+
+        if (arrayPool) {
+            generateArrayPool(generation);
+        }
+
+        if (bufferCleanerFile != null) {
+            generateBufferCleaner(generation);
+        }
+
 
         return generation;
     }
 
-    protected String simpleClassName(String clazz) {
-        if (clazz.endsWith(".")) {
-            throw new IllegalArgumentException("Invalid class name " + clazz);
-        }
-        int idx = Math.max(clazz.lastIndexOf("/"), clazz.lastIndexOf('.'));
+    //jnigenerator_env for threads created by native code, attached threads are detached by a pthread key destructor.
+    protected void generateAttach(Generation generation) {
+        generation.header(
+                "/**",
+                " * Returns the JNIEnv of the current thread. A thread that is not known to the vm is attached" + (attachDaemon ? " as daemon" : "") + " on first use",
+                " * and detached again when it exits. The JNIEnv is looked up with GetEnv on every call, so calling DetachCurrentThread",
+                " * yourself is safe, the next call attaches the thread again. Threads attached this way must exit before the library",
+                " * is unloaded.",
+                " * Returns NULL if jnigenerator_init was not called or attaching failed.",
+                " */",
+                "JNIEnv * jnigenerator_env();",
+                "",
+                "/**",
+                " * Returns the JavaVM captured by jnigenerator_init or NULL.",
+                " */",
+                "JavaVM * jnigenerator_vm();",
+                "");
 
-        if (idx == -1) {
+        generation.impl(
+                "#include <pthread.h>",
+                "",
+                "static JavaVM * jnigenerator_javavm = 0;",
+                "static pthread_key_t jnigenerator_attach_key;",
+                "static pthread_once_t jnigenerator_attach_once = PTHREAD_ONCE_INIT;",
+                "",
+                "//Detaching a thread that was already detached by the user is a no-op.",
+                "static void jnigenerator_detach(void * vm) {",
+                "    (*(JavaVM *) vm) -> DetachCurrentThread((JavaVM *) vm);",
+                "}",
+                "",
+                "static void jnigenerator_attach_key_init() {",
+                "    pthread_key_create(&jnigenerator_attach_key, jnigenerator_detach);",
+                "}",
+                "",
+                "JavaVM * jnigenerator_vm() {",
+                "    return __atomic_load_n(&jnigenerator_javavm, __ATOMIC_ACQUIRE);",
+                "}",
+                "",
+                "JNIEnv * jnigenerator_env() {",
+                "    JavaVM * vm = jnigenerator_vm();",
+                "    if (vm == 0) {",
+                "        return 0;",
+                "    }",
+                "",
+                "    //A cached JNIEnv would dangle after DetachCurrentThread, GetEnv is only a thread local lookup in the vm.",
+                "    JNIEnv * env = 0;",
+                "    if (__builtin_expect((*vm) -> GetEnv(vm, (void **) &env, JNI_VERSION_1_6) == JNI_OK, 1)) {",
+                "        return env;",
+                "    }",
+                "",
+                "    JavaVMAttachArgs args;",
+                "    args.version = JNI_VERSION_1_6;",
+                "    args.name = " + (attachThreadName == null ? "0" : "(char *) " + cStringLiteral(attachThreadName)) + ";",
+                "    args.group = 0;",
+                "    if ((*vm) -> " + (attachDaemon ? "AttachCurrentThreadAsDaemon" : "AttachCurrentThread") + "(vm, (void **) &env, &args) != JNI_OK) {",
+                "        return 0;",
+                "    }",
+                "    pthread_once(&jnigenerator_attach_once, jnigenerator_attach_key_init);",
+                "    pthread_setspecific(jnigenerator_attach_key, vm);",
+                "    return env;",
+                "}",
+                "");
 
-            //Default package?
-            return clazz;
-        }
+        generation.init(
+                "    JavaVM * vm = 0;",
+                "    if ((*env) -> GetJavaVM(env, &vm) != 0) {",
+                "        (*env) -> ThrowNew(env, internal_Exception, \"cant get JavaVM\");",
+                "        return JNI_FALSE;",
+                "    }",
+                "    __atomic_store_n(&jnigenerator_javavm, vm, __ATOMIC_RELEASE);",
+                "");
 
-        return clazz.substring(idx+1);
+        generation.destroy("    __atomic_store_n(&jnigenerator_javavm, (JavaVM *) 0, __ATOMIC_RELEASE);");
     }
 
-    protected String nativeClassName(String clazz) {
-        return clazz.replace('.', '/');
-    }
+    //Direct buffers that free their memory once java no longer reaches them. A java.lang.ref.Cleaner in the generated
+    //class calls back into a native method that is bound with RegisterNatives, so no Java_ symbol has to be exported.
+    protected void generateBufferCleaner(Generation generation) {
+        File javaFile = new File(bufferCleanerFile);
+        String name = javaClassName(javaFile);
+        String pkg = bufferCleanerPackage == null ? "" : bufferCleanerPackage;
+        String nat = pkg.isEmpty() ? name : pkg.replace('.', '/') + "/" + name;
+        String registerSig = "(Ljava/lang/Object;JJJJ)V";
 
-    protected String getJValueUnionMember(Type type) {
-        //jboolean z;
-        //jbyte    b;
-        //jchar    c;
-        //jshort   s;
-        //jint     i;
+        generation.header(
+                "/**",
+                " * Called with the arguments given to jbufferFreeB once the buffer is unreachable, on a java cleaner thread.",
+                " */",
+                "typedef void (*jbuffer_free_fn)(void * address, jlong capacity, void * ctx);",
+                "",
+                "/**",
+                " * Like jbufferB but calls fn(address, capacity, ctx) after java no longer reaches the buffer or any view created",
+                " * from it. The library must not be unloaded while such buffers exist. Returns NULL and throws a java exception",
+                " * on failure, fn is not called in that case.",
+                " */",
+                "jobject jbufferFreeB(JNIEnv * env, void * address, jlong capacity, jbuffer_free_fn fn, void * ctx);",
+                "");
+        generation.refTracking("#define jbufferFreeB(...) ((jobject) jnigenerator_track((jobject) jbufferFreeB(__VA_ARGS__)))");
+
+        generation.impl(
+                "#include <stdint.h>",
+                "",
+                "static jclass internal_buffer_cleaner = 0;",
+                "static jmethodID internal_buffer_cleaner_register = 0;",
+                "",
+                "static void JNICALL jnigenerator_buffer_free(JNIEnv * env, jclass clazz, jlong fn, jlong address, jlong capacity, jlong ctx) {",
+                "    ((jbuffer_free_fn) (intptr_t) fn)((void *) (intptr_t) address, capacity, (void *) (intptr_t) ctx);",
+                "}",
+                "",
+                "static const JNINativeMethod internal_buffer_cleaner_natives[] = {",
+                "    {(char *) \"free\", (char *) \"(JJJJ)V\", (void *) jnigenerator_buffer_free}",
+                "};",
+                "");
+
+        generation.init(
+                "    internal_buffer_cleaner = makeGlobalClassRef(env, \"" + nat + "\");",
+                "    if (internal_buffer_cleaner == 0) {",
+                "        return JNI_FALSE;",
+                "    }",
+                "    internal_buffer_cleaner_register = (*env) -> GetStaticMethodID(env, internal_buffer_cleaner, \"register\", \"" + registerSig + "\");",
+                "    if (internal_buffer_cleaner_register == 0) {",
+                "        (*env) -> ExceptionClear(env);",
+                "        (*env) -> ThrowNew(env, internal_Exception, \"cant find " + nat + ".register" + registerSig + "\");",
+                "        return JNI_FALSE;",
+                "    }",
+                "    if ((*env) -> RegisterNatives(env, internal_buffer_cleaner, internal_buffer_cleaner_natives, 1) != 0) {",
+                "        (*env) -> ExceptionClear(env);",
+                "        (*env) -> ThrowNew(env, internal_Exception, \"cant register native methods of " + nat + "\");",
+                "        return JNI_FALSE;",
+                "    }",
+                "");
+
+        generation.destroy(
+                "    if (internal_buffer_cleaner != 0) {",
+                "        (*env) -> DeleteGlobalRef(env, internal_buffer_cleaner);",
+                "        internal_buffer_cleaner = 0;",
+                "    }",
+                "    internal_buffer_cleaner_register = 0;");
+
+        wrapper(generation, null, "jobject jbufferFreeB(JNIEnv * env, void * address, jlong capacity, jbuffer_free_fn fn, void * ctx)",
+                "    if (fn == 0) {",
+                "        throw_internal_NullPointerException(env, \"jbufferFreeB fn = NULL\");",
+                "        return 0;",
+                "    }",
+                "    jobject buffer = jbufferB(env, address, capacity);",
+                "    if (buffer == 0) {",
+                "        return 0;",
+                "    }",
+                "    (*env) -> CallStaticVoidMethod(env, internal_buffer_cleaner, internal_buffer_cleaner_register, buffer, (jlong) (intptr_t) fn, (jlong) (intptr_t) address, capacity, (jlong) (intptr_t) ctx);",
+                "    if ((*env) -> ExceptionCheck(env)) {",
+                "        (*env) -> DeleteLocalRef(env, buffer);",
+                "        return 0;",
+                "    }",
+                "    return buffer;");
+        generation.header("");
+
+        StringBuilder java = javaHeader(pkg, "java.lang.ref.Cleaner");
+        java.append("/**\n");
+        java.append(" * Frees the native memory of buffers created by jbufferFreeB once they are unreachable.\n");
+        java.append(" */\n");
+        java.append("public final class " + name + " implements Runnable {\n");
+        java.append("\n");
+        java.append("    private static final Cleaner CLEANER = Cleaner.create();\n");
+        java.append("\n");
+        java.append("    private final long fn;\n");
+        java.append("    private final long address;\n");
+        java.append("    private final long capacity;\n");
+        java.append("    private final long ctx;\n");
+        java.append("\n");
+        java.append("    private " + name + "(long fn, long address, long capacity, long ctx) {\n");
+        java.append("        this.fn = fn;\n");
+        java.append("        this.address = address;\n");
+        java.append("        this.capacity = capacity;\n");
+        java.append("        this.ctx = ctx;\n");
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    static void register(Object buffer, long fn, long address, long capacity, long ctx) {\n");
+        java.append("        CLEANER.register(buffer, new " + name + "(fn, address, capacity, ctx));\n");
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    @Override\n");
+        java.append("    public void run() {\n");
+        java.append("        free(fn, address, capacity, ctx);\n");
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    private static native void free(long fn, long address, long capacity, long ctx);\n");
+        java.append("}\n");
+
+        writeFile(javaFile, java.toString());
+    }
+
+    //Arrays handed to java are kept as global refs after java is done with them, sorted into power of two buckets per type.
+    //The idle arrays of all buckets share one byte budget, the arrays that were released the longest time ago are dropped first.
+    protected void generateArrayPool(Generation generation) {
+        String[] letters = {"Z", "B", "C", "S", "I", "J", "F", "D"};
+        Type[] types = {Type.BOOLEAN, Type.BYTE, Type.CHAR, Type.SHORT, Type.INT, Type.LONG, Type.FLOAT, Type.DOUBLE};
+
+        generation.header(
+                "/**",
+                " * Upper bound of the memory held by idle arrays of the jpooledArray functions.",
+                " * Buckets hold arrays of 2^JNIGENERATOR_ARRAY_POOL_MIN_SHIFT to 2^JNIGENERATOR_ARRAY_POOL_MAX_SHIFT elements,",
+                " * at most JNIGENERATOR_ARRAY_POOL_DEPTH per bucket. Longer arrays are never pooled.",
+                " */",
+                "#ifndef JNIGENERATOR_ARRAY_POOL_BYTES",
+                "#define JNIGENERATOR_ARRAY_POOL_BYTES (4L * 1024L * 1024L)",
+                "#endif",
+                "#ifndef JNIGENERATOR_ARRAY_POOL_DEPTH",
+                "#define JNIGENERATOR_ARRAY_POOL_DEPTH 8",
+                "#endif",
+                "#ifndef JNIGENERATOR_ARRAY_POOL_MIN_SHIFT",
+                "#define JNIGENERATOR_ARRAY_POOL_MIN_SHIFT 6",
+                "#endif",
+                "#ifndef JNIGENERATOR_ARRAY_POOL_MAX_SHIFT",
+                "#define JNIGENERATOR_ARRAY_POOL_MAX_SHIFT 20",
+                "#endif",
+                "",
+                "/**",
+                " * Drops idle pooled arrays, least recently released first, until they use at most maxBytes.",
+                " */",
+                "void jtrimArrayPool(JNIEnv * env, jlong maxBytes);",
+                "");
+
+        generation.impl(
+                "#include <sched.h>",
+                "",
+                "#define JNIGEN_ARRAY_POOL_BUCKETS (JNIGENERATOR_ARRAY_POOL_MAX_SHIFT - JNIGENERATOR_ARRAY_POOL_MIN_SHIFT + 1)",
+                "//number of global refs dropped per critical section, they are deleted after the lock is released",
+                "#define JNIGEN_ARRAY_POOL_DROP_BATCH 16",
+                "typedef struct {",
+                "    jobject ref;",
+                "    unsigned long tick;",
+                "} jnigenerator_pooled_array;",
+                "typedef struct {",
+                "    int count;",
+                "    jnigenerator_pooled_array entries[JNIGENERATOR_ARRAY_POOL_DEPTH];",
+                "} jnigenerator_array_bucket;",
+                "static jnigenerator_array_bucket jnigenerator_array_pool[" + types.length + "][JNIGEN_ARRAY_POOL_BUCKETS];",
+                "static const int jnigenerator_array_pool_element_size[" + types.length + "] = {1, 1, 2, 2, 4, 8, 4, 8};",
+                "static long jnigenerator_array_pool_bytes = 0;",
+                "static unsigned long jnigenerator_array_pool_tick = 0;",
+                "static char jnigenerator_array_pool_locked = 0;",
+                "",
+                "static void jnigenerator_array_pool_lock() {",
+                "    while (__atomic_test_and_set(&jnigenerator_array_pool_locked, __ATOMIC_ACQUIRE)) {",
+                "        sched_yield();",
+                "    }",
+                "}",
+                "",
+                "static void jnigenerator_array_pool_unlock() {",
+                "    __atomic_clear(&jnigenerator_array_pool_locked, __ATOMIC_RELEASE);",
+                "}",
+                "",
+                "//index of the smallest bucket that fits len elements or -1 if len is too large to be pooled.",
+                "static int jnigenerator_array_pool_bucket(jsize len) {",
+                "    int shift = JNIGENERATOR_ARRAY_POOL_MIN_SHIFT;",
+                "    while (shift <= JNIGENERATOR_ARRAY_POOL_MAX_SHIFT && ((jsize) 1 << shift) < len) {",
+                "        shift++;",
+                "    }",
+                "    return shift > JNIGENERATOR_ARRAY_POOL_MAX_SHIFT ? -1 : shift - JNIGENERATOR_ARRAY_POOL_MIN_SHIFT;",
+                "}",
+                "",
+                "//removes the oldest entry of the bucket and returns its global ref, must hold the lock.",
+                "static jobject jnigenerator_array_pool_drop(int type, int bucket) {",
+                "    jnigenerator_array_bucket * b = &jnigenerator_array_pool[type][bucket];",
+                "    jobject ref = b->entries[0].ref;",
+                "    memmove(&b->entries[0], &b->entries[1], sizeof(jnigenerator_pooled_array) * (b->count - 1));",
+                "    b->count--;",
+                "    jnigenerator_array_pool_bytes -= ((long) jnigenerator_array_pool_element_size[type]) << (bucket + JNIGENERATOR_ARRAY_POOL_MIN_SHIFT);",
+                "    return ref;",
+                "}",
+                "",
+                "//drops the least recently released entries until at most limit bytes are pooled or max entries were dropped, must hold the lock.",
+                "//returns the number of global refs stored in dropped.",
+                "static int jnigenerator_array_pool_evict(long limit, jobject * dropped, int max) {",
+                "    int count = 0;",
+                "    while (count < max && jnigenerator_array_pool_bytes > limit) {",
+                "        int type = -1;",
+                "        int bucket = -1;",
+                "        for (int t = 0; t < " + types.length + "; t++) {",
+                "            for (int i = 0; i < JNIGEN_ARRAY_POOL_BUCKETS; i++) {",
+                "                jnigenerator_array_bucket * b = &jnigenerator_array_pool[t][i];",
+                "                if (b->count > 0 && (type == -1 || b->entries[0].tick < jnigenerator_array_pool[type][bucket].entries[0].tick)) {",
+                "                    type = t;",
+                "                    bucket = i;",
+                "                }",
+                "            }",
+                "        }",
+                "        if (type == -1) {",
+                "            break;",
+                "        }",
+                "        dropped[count++] = jnigenerator_array_pool_drop(type, bucket);",
+                "    }",
+                "    return count;",
+                "}",
+                "",
+                "//called after the lock was released, DeleteGlobalRef may block on the jvm and must not stall the other threads spinning on the lock.",
+                "static void jnigenerator_array_pool_delete(JNIEnv * env, jobject * dropped, int count) {",
+                "    for (int i = 0; i < count; i++) {",
+                "        (*env)->DeleteGlobalRef(env, dropped[i]);",
+                "    }",
+                "}",
+                "",
+                "static void jnigenerator_array_pool_trim(JNIEnv * env, long limit) {",
+                "    jobject dropped[JNIGEN_ARRAY_POOL_DROP_BATCH];",
+                "    int count;",
+                "    do {",
+                "        jnigenerator_array_pool_lock();",
+                "        count = jnigenerator_array_pool_evict(limit, dropped, JNIGEN_ARRAY_POOL_DROP_BATCH);",
+                "        jnigenerator_array_pool_unlock();",
+                "        jnigenerator_array_pool_delete(env, dropped, count);",
+                "    } while (count == JNIGEN_ARRAY_POOL_DROP_BATCH);",
+                "}",
+                "",
+                "static jarray jnigenerator_array_pool_take(JNIEnv * env, int type, int bucket) {",
+                "    jnigenerator_array_bucket * b = &jnigenerator_array_pool[type][bucket];",
+                "    jnigenerator_array_pool_lock();",
+                "    if (b->count == 0) {",
+                "        jnigenerator_array_pool_unlock();",
+                "        return 0;",
+                "    }",
+                "    jobject ref = b->entries[--b->count].ref;",
+                "    jnigenerator_array_pool_bytes -= ((long) jnigenerator_array_pool_element_size[type]) << (bucket + JNIGENERATOR_ARRAY_POOL_MIN_SHIFT);",
+                "    jnigenerator_array_pool_unlock();",
+                "    jarray array = (jarray) (*env)->NewLocalRef(env, ref);",
+                "    (*env)->DeleteGlobalRef(env, ref);",
+                "    return array;",
+                "}",
+                "",
+                "static void jnigenerator_array_pool_put(JNIEnv * env, int type, jarray array) {",
+                "    jsize len = (*env)->GetArrayLength(env, array);",
+                "    int bucket = jnigenerator_array_pool_bucket(len);",
+                "    if (bucket < 0 || ((jsize) 1 << (bucket + JNIGENERATOR_ARRAY_POOL_MIN_SHIFT)) != len) {",
+                "        return;",
+                "    }",
+                "    long size = ((long) jnigenerator_array_pool_element_size[type]) * len;",
+                "    if (size > JNIGENERATOR_ARRAY_POOL_BYTES) {",
+                "        return;",
+                "    }",
+                "    jobject ref = (*env)->NewGlobalRef(env, array);",
+                "    if (ref == 0) {",
+                "        return;",
+                "    }",
+                "    jnigenerator_array_bucket * b = &jnigenerator_array_pool[type][bucket];",
+                "    jobject dropped[JNIGEN_ARRAY_POOL_DROP_BATCH];",
+                "    int count;",
+                "    while (1) {",
+                "        jnigenerator_array_pool_lock();",
+                "        count = 0;",
+                "        if (b->count == JNIGENERATOR_ARRAY_POOL_DEPTH) {",
+                "            dropped[count++] = jnigenerator_array_pool_drop(type, bucket);",
+                "        }",
+                "        count += jnigenerator_array_pool_evict(JNIGENERATOR_ARRAY_POOL_BYTES - size, &dropped[count], JNIGEN_ARRAY_POOL_DROP_BATCH - count);",
+                "        if (jnigenerator_array_pool_bytes <= JNIGENERATOR_ARRAY_POOL_BYTES - size) {",
+                "            break;",
+                "        }",
+                "        jnigenerator_array_pool_unlock();",
+                "        jnigenerator_array_pool_delete(env, dropped, count);",
+                "    }",
+                "    b->entries[b->count].ref = ref;",
+                "    b->entries[b->count].tick = ++jnigenerator_array_pool_tick;",
+                "    b->count++;",
+                "    jnigenerator_array_pool_bytes += size;",
+                "    jnigenerator_array_pool_unlock();",
+                "    jnigenerator_array_pool_delete(env, dropped, count);",
+                "}",
+                "");
+
+        wrapper(generation, null, "void jtrimArrayPool(JNIEnv * env, jlong maxBytes)",
+                "    jnigenerator_array_pool_trim(env, maxBytes < 0 ? 0 : (long) maxBytes);");
+
+        for (int i = 0; i < types.length; i++) {
+            String letter = letters[i];
+            String ectype = getCType(types[i]);
+            String ctype = getCType(new ArrayType(types[i], 1));
+            String acc = getCAccessor(types[i]);
+            String fn = "jpooledArray" + letter;
+
+            generation.header(
+                    "",
+                    "/**",
+                    " * Returns a " + ctype + " whose first len elements are copied from buffer. The array is taken from the pool if possible",
+                    " * and may be longer than len, pass len on to java. Give it back with jreleaseArray" + letter + " once java no longer uses it.",
+                    " * Returns NULL and throws a java exception on failure.",
+                    " */");
+            wrapper(generation, null, ctype + " " + fn + "(JNIEnv * env, const " + ectype + " * buffer, jsize len)",
+                    "    if (len < 0) {",
+                    "        throw_internal_IllegalArgumentException(env, \"" + fn + " len < 0\");",
+                    "        return 0;",
+                    "    }",
+                    "    if (buffer == 0 && len > 0) {",
+                    "        throw_internal_NullPointerException(env, \"" + fn + " buffer = NULL\");",
+                    "        return 0;",
+                    "    }",
+                    "    int bucket = jnigenerator_array_pool_bucket(len);",
+                    "    " + ctype + " array = 0;",
+                    "    if (bucket >= 0) {",
+                    "        array = (" + ctype + ") jnigenerator_array_pool_take(env, " + i + ", bucket);",
+                    "    }",
+                    "    if (array == 0) {",
+                    "        array = (*env)->New" + acc + "Array(env, bucket >= 0 ? (jsize) 1 << (bucket + JNIGENERATOR_ARRAY_POOL_MIN_SHIFT) : len);",
+                    "        if (array == 0) {",
+                    "            throw_internal_OutOfMemoryError(env, \"" + fn + " New" + acc + "Array\");",
+                    "            return 0;",
+                    "        }",
+                    "    }",
+                    "    if (len > 0) {",
+                    "        (*env)->Set" + acc + "ArrayRegion(env, array, 0, len, buffer);",
+                    "    }",
+                    "    return array;");
+
+            generation.header(
+                    "",
+                    "/**",
+                    " * Returns an array created by " + fn + " to the pool, java must not use it anymore.",
+                    " * The local reference is not deleted. Does nothing if array is NULL.",
+                    " */");
+            wrapper(generation, null, "void jreleaseArray" + letter + "(JNIEnv * env, " + ctype + " array)",
+                    "    if (array != 0) {",
+                    "        jnigenerator_array_pool_put(env, " + i + ", array);",
+                    "    }");
+        }
+
+        generation.header("");
+        generation.destroy(
+                "    jnigenerator_array_pool_trim(env, 0);");
+    }
+
+    protected String simpleClassName(String clazz) {
+        if (clazz.endsWith(".")) {
+            throw new IllegalArgumentException("Invalid class name " + clazz);
+        }
+        int idx = Math.max(clazz.lastIndexOf("/"), clazz.lastIndexOf('.'));
+
+        if (idx == -1) {
+
+            //Default package?
+            return clazz;
+        }
+
+        return clazz.substring(idx+1);
+    }
+
+    protected String nativeClassName(String clazz) {
+        return clazz.replace('.', '/');
+    }
+
+    protected String getJValueUnionMember(Type type) {
+        //jboolean z;
+        //jbyte    b;
+        //jchar    c;
+        //jshort   s;
+        //jint     i;
         //jlong    j;
         //jfloat   f;
         //jdouble  d;
@@ -639,6 +1841,15 @@ public class JNIGenerator extends AbstractMojo {
         }
     }
 
+    protected boolean isPrimitiveArray(Type type) {
+        if (!(type instanceof ArrayType)) {
+            return false;
+        }
+
+        ArrayType arrayType = (ArrayType) type;
+        return arrayType.getDimensions() == 1 && arrayType.getElementType().getSignature().length() == 1;
+    }
+
     protected String getCAccessor(Type type) {
         if (type == null) {
             return "Void";
@@ -745,12 +1956,19 @@ public class JNIGenerator extends AbstractMojo {
 
         String scn = simpleClassName(clazz.getClassName());
         String nat = nativeClassName(clazz.getClassName());
+        stubbing.scope(scn);
         stubbing.impl("static jclass " + scn + " = 0;");
+        if (lazyInit) {
+            stubbing.impl(
+                    "static int jnigenerator_state_" + scn + " = 0;",
+                    "static jboolean jnigenerator_init_" + scn + "(JNIEnv * env);",
+                    "static void jnigenerator_destroy_" + scn + "(JNIEnv * env);");
+        }
         stubbing.init(
                 "    " + scn + " = makeGlobalClassRef(env, \"" + nat +"\");",
                 "    if ("+scn+" == 0) {",
                 "        (*env) -> ExceptionClear(env);",
-                "        (*env) -> ThrowNew(env, Exception, \"cant find " + nat +"\");",
+                "        (*env) -> ThrowNew(env, internal_Exception, \"cant find " + nat +"\");",
                 "        return JNI_FALSE;",
                 "    }",
                 "");
@@ -763,18 +1981,85 @@ public class JNIGenerator extends AbstractMojo {
                 ""
         );
 
-        stubbing.header("jboolean jinstanceof_" + scn + "(JNIEnv * env, jobject value);");
-        stubbing.impl(
-                "jboolean jinstanceof_" + scn + "(JNIEnv * env, jobject value) {",
-                "   return (*env)->IsInstanceOf(env, value, "+ scn +");",
-                "}",
-                "");
+        wrapper(stubbing, scn, "jboolean jinstanceof_" + scn + "(JNIEnv * env, jobject value)",
+                "   return (*env)->IsInstanceOf(env, value, "+ scn +");");
 
+        stubbing.scope(null);
+    }
+
+    //Emits the declaration into the header and opens the function body in the implementation.
+    protected void wrapperBegin(Generation generation, String scn, String declaration) {
+        generation.header(declaration + ";");
+        int idx = declaration.indexOf('(');
+        if (safeDestroy) {
+            generation.impl("static " + declaration.substring(0, idx) + "_guarded" + declaration.substring(idx) + " {");
+        } else {
+            generation.impl(declaration + " {");
+        }
+
+        String name = declaration.substring(declaration.lastIndexOf(' ', idx) + 1, idx);
+        generation.impl("    JNIGEN_CHECK_CRITICAL(\"" + name + "\");");
+        generation.impl("    JNIGEN_STATS(" + generation.stat(name) + ");");
+
+        String rtype = declaration.substring(0, declaration.lastIndexOf(' ', idx));
+        if (rtype.matches("jobject|jstring|jclass|jthrowable|jweak|jarray|j[a-z]*Array")) {
+            generation.refTracking("#define " + name + "(...) ((" + rtype + ") jnigenerator_track((jobject) " + name + "(__VA_ARGS__)))");
+        }
+
+        if (lazyInit && scn != null) {
+            generation.impl("    JNIGEN_LAZY(" + scn + ", env, " + ("void".equals(rtype) ? "" : "0") + ");");
+        }
+    }
+
+    protected void wrapperEnd(Generation generation, String scn, String declaration) {
+        generation.impl("}", "");
+        if (!safeDestroy) {
+            return;
+        }
+
+        int idx = declaration.indexOf('(');
+        String name = declaration.substring(declaration.lastIndexOf(' ', idx) + 1, idx);
+        String rtype = declaration.substring(0, declaration.lastIndexOf(' ', idx));
+        StringBuilder args = new StringBuilder();
+        for (String param : declaration.substring(idx + 1, declaration.lastIndexOf(')')).split(",")) {
+            if (args.length() > 0) {
+                args.append(", ");
+            }
+            args.append(param.substring(Math.max(param.lastIndexOf(' '), param.lastIndexOf('*')) + 1));
+        }
+
+        boolean isVoid = "void".equals(rtype);
+        generation.impl(
+                declaration + " {",
+                "    long * slot = jnigenerator_enter(env);",
+                "    if (slot == 0) {",
+                "        return" + (isVoid ? "" : " 0") + ";",
+                "    }");
+
+        if (isVoid) {
+            generation.impl("    " + name + "_guarded(" + args + ");");
+        } else {
+            generation.impl("    " + rtype + " result = " + name + "_guarded(" + args + ");");
+        }
+
+        generation.impl("    jnigenerator_exit(slot);");
+        if (!isVoid) {
+            generation.impl("    return result;");
+        }
+
+        generation.impl("}", "");
+    }
+
+    protected void wrapper(Generation generation, String scn, String declaration, String... body) {
+        wrapperBegin(generation, scn, declaration);
+        generation.impl(body);
+        wrapperEnd(generation, scn, declaration);
     }
 
     protected void generateException(Generation generation, Member member, JavaClass clazz) {
         String scn = simpleClassName(clazz.getClassName());
         String nat = nativeClassName(clazz.getClassName());
+        generation.scope(scn);
 
         Map<String, Method> sorter = new TreeMap<>();
         for (Method m : clazz.getMethods()) {
@@ -813,7 +2098,7 @@ public class JNIGenerator extends AbstractMojo {
                     "    " + nativeMethodRefName + " = (*env) -> GetMethodID(env, " + scn + ", \"<init>\", \"" + sig + "\");",
                     "    if (" + nativeMethodRefName + " == 0) {",
                     "        (*env) -> ExceptionClear(env);",
-                    "        (*env) -> ThrowNew(env, Exception, \"cant find " + nat + ".<init>" + sig + "\");",
+                    "        (*env) -> ThrowNew(env, internal_Exception, \"cant find " + nat + ".<init>" + sig + "\");",
                     "        return JNI_FALSE;",
                     "    }",
                     "");
@@ -823,9 +2108,7 @@ public class JNIGenerator extends AbstractMojo {
 
 
 
-            generation.header("void jthrow_" + scn + suffix + "(JNIEnv * env" + getCParameters(m, NO_SUBSTITUTION) + ");");
-            generation.impl(
-                    "void jthrow_" + scn + suffix + "(JNIEnv * env" + getCParameters(m, NO_SUBSTITUTION) + ") {",
+            wrapper(generation, scn, "void jthrow_" + scn + suffix + "(JNIEnv * env" + getCParameters(m, NO_SUBSTITUTION) + ")",
                     "    if ((*env) -> ExceptionCheck(env)) {",
                     "        return;",
                     "    }",
@@ -834,9 +2117,7 @@ public class JNIGenerator extends AbstractMojo {
                     "        throw_internal_OutOfMemoryError(env, \"NewObject\");",
                     "        return;",
                     "    }",
-                    "    (*env)->Throw(env, obj);",
-                    "}",
-                    ""
+                    "    (*env)->Throw(env, obj);"
             );
 
             if (containsJStringParameter(m)) {
@@ -845,37 +2126,117 @@ public class JNIGenerator extends AbstractMojo {
 
         }
 
+        if (member.getFastThrow() != null) {
+            generateFastThrow(generation, member, clazz);
+        }
+
+        generation.scope(null);
     }
 
-    private void generateJStringException(Generation generation, String scn, Method m, String nativeMethodRefName, String suffix) {
-        Type[] types = m.getArgumentTypes();
+    //jthrowFast_ never fills in a stack trace, which is the most expensive part of creating an exception.
+    protected void generateFastThrow(Generation generation, Member member, JavaClass clazz) {
+        String scn = simpleClassName(clazz.getClassName());
+        String nat = nativeClassName(clazz.getClassName());
+        String mode = member.getFastThrow();
+        if (!"stackless".equals(mode) && !"cached".equals(mode)) {
+            throw new IllegalArgumentException("Invalid fastThrow " + mode + " for " + nat + ", expected stackless or cached");
+        }
 
-        generation.header("void jthrowC_" + scn + suffix + "(JNIEnv * env" + getCParameters(m, CHAR_PTR_SUBSTITUTION) + ");");
-        generation.header("void jthrowCC_" + scn + suffix + "(JNIEnv * env" + getCParameters(m, CONST_CHAR_PTR_SUBSTITUTION) + ");");
+        String sig = "(Ljava/lang/String;Ljava/lang/Throwable;ZZ)V";
+        boolean found = false;
+        for (Method m : clazz.getMethods()) {
+            if (m.getName().equals("<init>") && m.getSignature().equals(sig)) {
+                found = true;
+            }
+        }
+        if (!found) {
+            throw new IllegalArgumentException(nat + " does not declare the (String, Throwable, boolean, boolean) constructor required by fastThrow");
+        }
 
-        generation.impl(
-                "void jthrowC_" + scn + suffix + "(JNIEnv * env" + getCParameters(m, CHAR_PTR_SUBSTITUTION) + ") {",
-                "    jthrowCC_" + scn + suffix + "(env" + getCParameterUse(m, CAST_CONST_CHAR_PTR) + ");",
-                "}",
-                ""
+        String nativeMethodRefName = scn + "_EC_fast";
+        generation.impl("static jmethodID " + nativeMethodRefName + " = 0;");
+        generation.init(
+                "    " + nativeMethodRefName + " = (*env) -> GetMethodID(env, " + scn + ", \"<init>\", \"" + sig + "\");",
+                "    if (" + nativeMethodRefName + " == 0) {",
+                "        (*env) -> ExceptionClear(env);",
+                "        (*env) -> ThrowNew(env, internal_Exception, \"cant find " + nat + ".<init>" + sig + "\");",
+                "        return JNI_FALSE;",
+                "    }",
+                "");
+        generation.destroy(
+                "    "+ nativeMethodRefName + " = 0;"
         );
 
-        if (m.getSignature().equals("(Ljava/lang/String;)V")) {
-            System.out.println(scn);
-            generation.impl(
-                    "void jthrowCC_" + scn + suffix + "(JNIEnv * env" + getCParameters(m, CONST_CHAR_PTR_SUBSTITUTION) + ") {",
+        if ("stackless".equals(mode)) {
+            generation.header(
+                    "/**",
+                    " * Throws a new " + scn + " with the given message that has no stack trace. Does nothing if an exception is already pending.",
+                    " */");
+            wrapper(generation, scn, "void jthrowFast_" + scn + "(JNIEnv * env, jstring message)",
                     "    if ((*env) -> ExceptionCheck(env)) {",
                     "        return;",
                     "    }",
-                    "    (*env) -> ThrowNew(env, "+ scn+", p0);",
-                    "}"
-            );
-
+                    "    jobject obj = (*env) -> NewObject(env, " + scn + ", " + nativeMethodRefName + ", message, (jobject) 0, JNI_TRUE, JNI_FALSE);",
+                    "    if (obj == NULL) {",
+                    "        throw_internal_OutOfMemoryError(env, \"NewObject\");",
+                    "        return;",
+                    "    }",
+                    "    (*env)->Throw(env, obj);",
+                    "    (*env)->DeleteLocalRef(env, obj);");
             return;
         }
 
+        String instance = scn + "_fast_instance";
+        String message = member.getFastThrowMessage() == null ? "0" : "jstringCC(env, " + cStringLiteral(member.getFastThrowMessage()) + ")";
+        generation.impl("static jthrowable " + instance + " = 0;");
+        generation.init(
+                "    jstring fast_message_" + scn + " = " + message + ";",
+                "    if ((*env) -> ExceptionCheck(env)) {",
+                "        return JNI_FALSE;",
+                "    }",
+                "    jobject fast_local_" + scn + " = (*env) -> NewObject(env, " + scn + ", " + nativeMethodRefName + ", fast_message_" + scn + ", (jobject) 0, JNI_FALSE, JNI_FALSE);",
+                "    (*env)->DeleteLocalRef(env, fast_message_" + scn + ");",
+                "    if (fast_local_" + scn + " == 0) {",
+                "        (*env) -> ExceptionClear(env);",
+                "        (*env) -> ThrowNew(env, internal_Exception, \"cant create cached instance of " + nat + "\");",
+                "        return JNI_FALSE;",
+                "    }",
+                "    " + instance + " = (jthrowable) (*env)->NewGlobalRef(env, fast_local_" + scn + ");",
+                "    (*env)->DeleteLocalRef(env, fast_local_" + scn + ");",
+                "    if (" + instance + " == 0) {",
+                "        (*env) -> ExceptionClear(env);",
+                "        (*env) -> ThrowNew(env, internal_Exception, \"cant create global ref to cached instance of " + nat + "\");",
+                "        return JNI_FALSE;",
+                "    }",
+                "");
+        generation.destroy(
+                "    if (" + instance + " != 0) {",
+                "        (*env) -> DeleteGlobalRef(env, " + instance + ");",
+                "        " + instance + " = 0;",
+                "    }");
+
+        generation.header(
+                "/**",
+                " * Throws the " + scn + " created by jnigenerator_init. Every call throws the same instance,",
+                " * it has no stack trace and does not record suppressed exceptions. Does nothing if an exception is already pending.",
+                " */");
+        wrapper(generation, scn, "void jthrowFast_" + scn + "(JNIEnv * env)",
+                "    if ((*env) -> ExceptionCheck(env)) {",
+                "        return;",
+                "    }",
+                "    (*env)->Throw(env, " + instance + ");");
+    }
+
+    private void generateJStringException(Generation generation, String scn, Method m, String nativeMethodRefName, String suffix) {
+        Type[] types = m.getArgumentTypes();
+
+        wrapper(generation, scn, "void jthrowC_" + scn + suffix + "(JNIEnv * env" + getCParameters(m, CHAR_PTR_SUBSTITUTION) + ")",
+                "    jthrowCC_" + scn + suffix + "(env" + getCParameterUse(m, CAST_CONST_CHAR_PTR) + ");"
+        );
+
+        String throwCC = "void jthrowCC_" + scn + suffix + "(JNIEnv * env" + getCParameters(m, CONST_CHAR_PTR_SUBSTITUTION) + ")";
+        wrapperBegin(generation, scn, throwCC);
         generation.impl(
-                "void jthrowCC_" + scn + suffix + "(JNIEnv * env" + getCParameters(m, CONST_CHAR_PTR_SUBSTITUTION) + ") {",
                 "    if ((*env) -> ExceptionCheck(env)) {",
                 "        return;",
                 "    }",
@@ -889,9 +2250,8 @@ public class JNIGenerator extends AbstractMojo {
                         "    if (p" + i + " == 0) {",
                         "        parameters[" + i + "].l = 0;",
                         "    } else {",
-                        "        parameters[" + i + "].l = (*env) -> NewStringUTF(env, p" + i + ");",
+                        "        parameters[" + i + "].l = jstringCC(env, p" + i + ");",
                         "        if (parameters[" + i + "].l == 0) {",
-                        "            throw_internal_OutOfMemoryError(env, \"NewStringUTF\");",
                         "            return;",
                         "        }",
                         "    }");
@@ -908,13 +2268,89 @@ public class JNIGenerator extends AbstractMojo {
                 "        throw_internal_OutOfMemoryError(env, \"NewObjectA\");",
                 "        return;",
                 "    }",
-                "    (*env)->Throw(env, obj);",
-                "}",
-                ""
+                "    (*env)->Throw(env, obj);"
         );
+        wrapperEnd(generation, scn, throwCC);
+
+
+    }
+    //Strings created once in jnigenerator_init so fixed messages do not allocate a new java string on every use.
+    protected void generateStrings(Generation generation) {
+        if (strings == null || strings.length == 0) {
+            return;
+        }
+
+        Map<String, String> sorter = new TreeMap<>();
+        for (InternedString str : strings) {
+            String name = str.getName();
+            if (name == null || !name.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+                throw new IllegalArgumentException("Invalid string name " + name);
+            }
+            if (str.getValue() == null) {
+                throw new IllegalArgumentException("String " + name + " has no value");
+            }
+            if (sorter.put(name, str.getValue()) != null) {
+                throw new IllegalArgumentException("Duplicate string name " + name);
+            }
+        }
+
+        generation.header(
+                "/**",
+                " * Strings created by jnigenerator_init. The returned global references stay valid until jnigenerator_destroy",
+                " * and must not be deleted. They can be passed to every jset_ and jthrow_ function that takes a jstring.",
+                " */");
+
+        for (Map.Entry<String, String> e : sorter.entrySet()) {
+            String name = e.getKey();
+            String nativeFieldName = "internal_string_" + name;
+            generation.impl("static jstring " + nativeFieldName + " = 0;");
+            generation.init(
+                    "    jstring string_init_local_" + name + " = jstringCC(env, " + cStringLiteral(e.getValue()) + ");",
+                    "    if (string_init_local_" + name + " == 0) {",
+                    "        return JNI_FALSE;",
+                    "    }",
+                    "    " + nativeFieldName + " = (jstring) (*env)->NewGlobalRef(env, string_init_local_" + name + ");",
+                    "    (*env)->DeleteLocalRef(env, string_init_local_" + name + ");",
+                    "    if (" + nativeFieldName + " == 0) {",
+                    "        (*env) -> ExceptionClear(env);",
+                    "        (*env) -> ThrowNew(env, internal_Exception, \"cant create global ref to string " + name + "\");",
+                    "        return JNI_FALSE;",
+                    "    }",
+                    "");
+
+            generation.destroy(
+                    "    if (" + nativeFieldName + " != 0) {",
+                    "        (*env) -> DeleteGlobalRef(env, " + nativeFieldName + ");",
+                    "        " + nativeFieldName + " = 0;",
+                    "    }");
+
+            generation.header("jstring jstr_" + name + "();");
+            generation.impl(
+                    "jstring jstr_" + name + "() {",
+                    "    return " + nativeFieldName + ";",
+                    "}",
+                    "");
+        }
 
+        generation.header("");
+    }
 
+    //UTF-8 c string literal, everything that is not printable ASCII is escaped.
+    protected String cStringLiteral(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xFF;
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append((char) c);
+            } else if (c >= 0x20 && c < 0x7F && c != '?') {
+                sb.append((char) c);
+            } else {
+                sb.append(String.format("\\%03o", c));
+            }
+        }
+        return sb.append('"').toString();
     }
+
     protected void generateConst(Generation generation, Const member, JavaClass clazz) {
 
         String scn = simpleClassName(clazz.getClassName());
@@ -925,6 +2361,20 @@ public class JNIGenerator extends AbstractMojo {
             filtered.addAll(Arrays.asList(member.getConstFilters()));
         }
 
+        List<Field> fields = new ArrayList<>();
+        for (Field f : clazz.getFields()) {
+            Type type = f.getType();
+            if (type.getSignature().length() != 1) {
+                continue;
+            }
+
+            if (filtered.contains(f.getName())) {
+                continue;
+            }
+
+            fields.add(f);
+        }
+
         StringBuilder header = new StringBuilder();
         header.append("//THIS FILE IS MACHINE GENERATED, DO NOT EDIT\n");
         header.append("#include <jni.h>\n");
@@ -941,37 +2391,153 @@ public class JNIGenerator extends AbstractMojo {
         code.append("\n");
         code.append("void jfetchconst_" + scn + "(JNIEnv * env, jobject instance) {\n");
 
-        for (Field f : clazz.getFields()) {
-            Type type = f.getType();
-            if (type.getSignature().length() != 1) {
-                continue;
-            }
+        for (Field f : fields) {
+            String cType = getCType(f.getType());
+            String target = f.isStatic() ? "env, " : "env, instance, ";
+            code.append("   jset_" + scn + "_" + f.getName() + "(" + target + "(" + cType + ") " + f.getName() + ");\n");
+        }
 
-            String name = f.getName();
-            if (filtered.contains(name)) {
-                continue;
-            }
+        code.append("}\n");
 
-            String cType = getCType(type);
-            code.append("   jset_" + scn + "_" + name + "(env, instance, (" + cType + ") " + f.getName() + ");\n");
+        if (member.getUnpackerFile() != null) {
+            generatePackedConst(member, clazz, fields, header, code);
         }
 
-        code.append("}\n");
+        writeFile(new File(member.getCodeFile()), code.toString());
+        writeFile(new File(member.getHeaderFile()), header.toString());
+    }
 
+    //jfetchconstA_ copies all constants the unpacker can assign with a single SetLongArrayRegion, the generated java class unpacks them again.
+    protected void generatePackedConst(Const member, JavaClass clazz, List<Field> constFields, StringBuilder header, StringBuilder code) {
+        String scn = simpleClassName(clazz.getClassName());
+        File javaFile = new File(member.getUnpackerFile());
+        String unpacker = javaClassName(javaFile);
+
+        //The unpacker lives in the package of the class, private and final fields cannot be assigned from there.
+        List<Field> fields = getAccessibleFields(constFields, true);
+
+        header.append("/**\n");
+        header.append(" * Copies the " + fields.size() + " constants that " + unpacker + ".unpack assigns into target, which must have at least\n");
+        header.append(" * " + unpacker + ".COUNT elements or an ArrayIndexOutOfBoundsException is pending afterwards. Does nothing if target is NULL.\n");
+        if (fields.size() != constFields.size()) {
+            header.append(" * Private and final fields are left out because the unpacker cannot assign them, use jfetchconst_" + scn + " for:\n");
+            header.append(" * " + fieldNames(constFields, fields) + "\n");
+        }
+        header.append(" */\n");
+        header.append("void jfetchconstA_" + scn + "(JNIEnv * env, jlongArray target);\n");
 
-        try {
-            File f = new File(member.getCodeFile());
-            if (f.exists()) {
-                f.delete();
+        code.append("\n");
+        code.append("void jfetchconstA_" + scn + "(JNIEnv * env, jlongArray target) {\n");
+        if (!fields.isEmpty()) {
+            code.append("   if (target == NULL) {\n");
+            code.append("      return;\n");
+            code.append("   }\n");
+            code.append("   jlong values[" + fields.size() + "];\n");
+            int i = 0;
+            for (Field f : fields) {
+                code.append(packConst(f.getType(), "values[" + (i++) + "]", f.getName()));
             }
+            code.append("   (*env)->SetLongArrayRegion(env, target, 0, " + fields.size() + ", (const jlong*) values);\n");
+        }
+        code.append("}\n");
 
-            f.createNewFile();
+        StringBuilder java = javaHeader(clazz);
+        java.append("public final class " + unpacker + " {\n");
+        java.append("\n");
+        java.append("    /**\n");
+        java.append("     * Minimum length of the long[] that has to be passed to jfetchconstA_" + scn + ".\n");
+        if (fields.size() != constFields.size()) {
+            java.append("     * Does not count the private and final fields, jfetchconstA_" + scn + " does not fill them: " + fieldNames(constFields, fields) + "\n");
+        }
+        java.append("     */\n");
+        java.append("    public static final int COUNT = " + fields.size() + ";\n");
+        java.append("\n");
+        java.append("    private " + unpacker + "() {\n");
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    /**\n");
+        java.append("     * Assigns the values filled in by jfetchconstA_" + scn + " to the fields of the instance.\n");
+        java.append("     */\n");
+        java.append("    public static void unpack(" + clazz.getClassName() + " instance, long[] values) {\n");
+        int i = 0;
+        for (Field f : fields) {
+            String target = f.isStatic() ? clazz.getClassName() : "instance";
+            java.append("        " + target + "." + f.getName() + " = " + unpackConst(f.getType(), "values[" + (i++) + "]") + ";\n");
+        }
+        java.append("    }\n");
+        java.append("}\n");
 
-            try(FileOutputStream faos = new FileOutputStream(f)) {
-                faos.write(code.toString().getBytes(StandardCharsets.UTF_8));
-            }
+        writeFile(javaFile, java.toString());
+    }
+
+    protected String packConst(Type type, String target, String value) {
+        switch (type.getType()) {
+            case(6):
+                return "   { union { jfloat f; jint i; } u; u.f = (jfloat) (" + value + "); " + target + " = (jlong) u.i; }\n";
+            case(7):
+                return "   { union { jdouble d; jlong j; } u; u.d = (jdouble) (" + value + "); " + target + " = u.j; }\n";
+            default:
+                return "   " + target + " = (jlong) (" + getCType(type) + ") (" + value + ");\n";
+        }
+    }
 
-            f = new File(member.getHeaderFile());
+    protected String unpackConst(Type type, String value) {
+        switch (type.getType()) {
+            case(4):
+                return value + " != 0";
+            case(5):
+                return "(char) " + value;
+            case(6):
+                return "Float.intBitsToFloat((int) " + value + ")";
+            case(7):
+                return "Double.longBitsToDouble(" + value + ")";
+            case(8):
+                return "(byte) " + value;
+            case(9):
+                return "(short) " + value;
+            case(10):
+                return "(int) " + value;
+            case(11):
+                return value;
+            default:
+                throw new IllegalArgumentException(type.getSignature());
+        }
+    }
+
+    protected String javaClassName(File javaFile) {
+        String name = javaFile.getName();
+        if (!name.endsWith(".java")) {
+            throw new IllegalArgumentException("java output file must end with .java " + javaFile.getPath());
+        }
+
+        return name.substring(0, name.length() - ".java".length());
+    }
+
+    protected StringBuilder javaHeader(JavaClass clazz, String... imports) {
+        return javaHeader(clazz.getPackageName(), imports);
+    }
+
+    protected StringBuilder javaHeader(String pkg, String... imports) {
+        StringBuilder java = new StringBuilder();
+        java.append("//THIS FILE IS MACHINE GENERATED, DO NOT EDIT\n");
+        if (!pkg.isEmpty()) {
+            java.append("package " + pkg + ";\n");
+            java.append("\n");
+        }
+
+        for (String imp : imports) {
+            java.append("import " + imp + ";\n");
+        }
+
+        if (imports.length > 0) {
+            java.append("\n");
+        }
+
+        return java;
+    }
+
+    protected void writeFile(File f, String content) {
+        try {
             if (f.exists()) {
                 f.delete();
             }
@@ -979,19 +2545,18 @@ public class JNIGenerator extends AbstractMojo {
             f.createNewFile();
 
             try(FileOutputStream faos = new FileOutputStream(f)) {
-                faos.write(header.toString().getBytes(StandardCharsets.UTF_8));
+                faos.write(content.getBytes(StandardCharsets.UTF_8));
             }
-
         } catch (Exception e) {
             throw new IllegalStateException(e);
         }
-
     }
 
 
     protected void generateStruct(Generation generation, Member member, JavaClass clazz) {
         String scn = simpleClassName(clazz.getClassName());
         String nat = nativeClassName(clazz.getClassName());
+        generation.scope(scn);
 
         List<String> enumValues = new ArrayList<>();
 
@@ -1012,6 +2577,13 @@ public class JNIGenerator extends AbstractMojo {
             String fieldIDMethod = f.isStatic() ? "GetStaticFieldID" : "GetFieldID";
 
             if (f.isEnum()) {
+                String field = member.getEnumValueField();
+                if (name.equals("count") || name.equals("values") || (field != null && (name.equals("from_" + field) || name.equals("to_" + field)))) {
+                    throw new IllegalArgumentException("enum constant " + clazz.getClassName() + "." + name + " clashes with the generated function jenum_" + scn + "_" + name + ", add it to filters");
+                }
+
+                //jenum_ accessors have no JNIEnv so the class cannot be resolved lazily.
+                generation.eager();
                 generation.impl("static jobject " + nativeFieldName + " = 0;");
                 generation.destroy(
                         "    if (" + nativeFieldName + " != 0) {",
@@ -1027,20 +2599,20 @@ public class JNIGenerator extends AbstractMojo {
                         "    " + enumFieldInit + " = (*env) -> " + fieldIDMethod + "(env, " + scn + ", \"" + name + "\", \"" + sig + "\");",
                         "    if (" + enumFieldInit + " == 0) {",
                         "        (*env) -> ExceptionClear(env);",
-                        "        (*env) -> ThrowNew(env, Exception, \"cant find " + nat + "_" + name + "_" + sig + "\");",
+                        "        (*env) -> ThrowNew(env, internal_Exception, \"cant find " + nat + "_" + name + "_" + sig + "\");",
                         "        return JNI_FALSE;",
                         "    }",
                         "    jobject enum_field_init_local_" + nativeFieldName + " = (*env) -> GetStaticObjectField(env, " + scn + ", " + enumFieldInit + ");",
                         "    if (enum_field_init_local_" + nativeFieldName + " == 0) {",
                         "        (*env) -> ExceptionClear(env);",
-                        "        (*env) -> ThrowNew(env, Exception, \"cant get enum value of " + nat + "_" + name + "_" + sig + "\");",
+                        "        (*env) -> ThrowNew(env, internal_Exception, \"cant get enum value of " + nat + "_" + name + "_" + sig + "\");",
                         "        return JNI_FALSE;",
                         "    }",
                         "    " + nativeFieldName + " = (*env)->NewGlobalRef(env, enum_field_init_local_"+nativeFieldName+");",
                         "    (*env)->DeleteLocalRef(env, enum_field_init_local_"+nativeFieldName+");",
                         "    if (" + nativeFieldName + " == 0) {",
                         "        (*env) -> ExceptionClear(env);",
-                        "        (*env) -> ThrowNew(env, Exception, \"cant create global ref to enum value of " + nat + "_" + name + "_" + sig + "\");",
+                        "        (*env) -> ThrowNew(env, internal_Exception, \"cant create global ref to enum value of " + nat + "_" + name + "_" + sig + "\");",
                         "        return JNI_FALSE;",
                         "    }",
                         "    ");
@@ -1062,7 +2634,7 @@ public class JNIGenerator extends AbstractMojo {
                     "    " + nativeFieldName + " = (*env) -> " + fieldIDMethod + "(env, " + scn + ", \"" + name + "\", \"" + sig + "\");",
                     "    if (" + nativeFieldName + " == 0) {",
                     "        (*env) -> ExceptionClear(env);",
-                    "        (*env) -> ThrowNew(env, Exception, \"cant find " + nat + "_" + name + "_" + sig + "\");",
+                    "        (*env) -> ThrowNew(env, internal_Exception, \"cant find " + nat + "_" + name + "_" + sig + "\");",
                     "        return JNI_FALSE;",
                     "    }",
                     "");
@@ -1079,148 +2651,106 @@ public class JNIGenerator extends AbstractMojo {
             }
 
             if (f.isStatic()) {
-                generation.header("void jset_" + scn + "_" + name + "(JNIEnv * env, "+ ctype +" value);");
-                generation.impl(
-                        "void jset_" + scn + "_" + name + "(JNIEnv * env, "+ ctype +" value) {",
-                        "   (*env)->SetStatic" + acc + "Field(env, "+ scn +", " + nativeFieldName + ", value);",
-                        "}",
-                        "");
+                wrapper(generation, scn, "void jset_" + scn + "_" + name + "(JNIEnv * env, "+ ctype +" value)",
+                        "   (*env)->SetStatic" + acc + "Field(env, "+ scn +", " + nativeFieldName + ", value);");
 
-                generation.header(ctype + " jget_" + scn + "_" + name + "(JNIEnv * env);");
-                generation.impl(
-                        ctype + " jget_" + scn + "_" + name + "(JNIEnv * env) {",
-                        "   return "+ cast +"(*env)->GetStatic" + acc + "Field(env, "+ scn +", " + nativeFieldName + ");",
-                        "}",
-                        "");
+                wrapper(generation, scn, ctype + " jget_" + scn + "_" + name + "(JNIEnv * env)",
+                        "   return "+ cast +"(*env)->GetStatic" + acc + "Field(env, "+ scn +", " + nativeFieldName + ");");
+
+                if ("Object".equals(acc)) {
+                    wrapper(generation, scn, "void jborrow_" + scn + "_" + name + "(JNIEnv * env, jborrow_fn fn, void * ctx)",
+                            "    jobject value = (*env)->GetStaticObjectField(env, " + scn + ", " + nativeFieldName + ");",
+                            "    fn(env, value, ctx);",
+                            "    (*env)->DeleteLocalRef(env, value);");
+                }
             } else {
-                generation.header("void jset_" + scn + "_" + name + "(JNIEnv * env, jobject instance, "+ ctype +" value);");
-                generation.impl(
-                        "void jset_" + scn + "_" + name + "(JNIEnv * env, jobject instance, "+ ctype +" value) {",
-                        "   (*env)->Set" + acc + "Field(env, instance, " + nativeFieldName + ", value);",
-                        "}",
-                        "");
+                wrapper(generation, scn, "void jset_" + scn + "_" + name + "(JNIEnv * env, jobject instance, "+ ctype +" value)",
+                        "   (*env)->Set" + acc + "Field(env, instance, " + nativeFieldName + ", value);");
 
-                if ("jbyteArray".equals(ctype)) {
-                    generation.header("jboolean jsetA_" + scn + "_" + name + "(JNIEnv * env, jobject instance, jbyte * value, jsize len);");
-                    generation.impl(
-                            "jboolean jsetA_" + scn + "_" + name + "(JNIEnv * env, jobject instance, jbyte * value, jsize len) {",
-                            "    if (value == 0) {",
-                            "        (*env)->SetObjectField(env, instance," + nativeFieldName + ", 0);",
-                            "        return JNI_TRUE;",
-                            "    }",
-                            "    if (len < 0) {",
-                            "        len = 0;",
-                            "    }",
-                            "    jbyteArray tmp = (*env)->NewByteArray(env, len);",
-                            "    if (tmp == 0) {",
-                            "        throw_internal_OutOfMemoryError(env, \"NewByteArray\");",
-                            "        return JNI_FALSE;",
-                            "    }",
-                            "    if (len > 0) {",
-                            "        (*env)->SetByteArrayRegion(env, tmp, 0, len, (const jbyte*) value);",
-                            "    }",
-                            "    (*env)->SetObjectField(env, instance, " + nativeFieldName + ", tmp);",
-                            "    (*env)->DeleteLocalRef(env, tmp);",
-                            "    return JNI_TRUE;",
-                            "}",
-                            "");
+                if (isPrimitiveArray(type)) {
+                    generateArrayRegion(generation, scn, name, type);
+                    generateArrayElements(generation, scn, name, type);
                 }
 
-                if ("jlongArray".equals(ctype)) {
-                    generation.header("jboolean jsetA_" + scn + "_" + name + "(JNIEnv * env, jobject instance, jlong * value, jsize len);");
-                    generation.impl(
-                            "jboolean jsetA_" + scn + "_" + name + "(JNIEnv * env, jobject instance, jlong * value, jsize len) {",
-                            "    if (value == 0) {",
-                            "        (*env)->SetObjectField(env, instance," + nativeFieldName + ", 0);",
+                if ("Ljava/nio/ByteBuffer;".equals(sig)) {
+                    generation.header(
+                            "/**",
+                            " * Stores the address and capacity of the direct ByteBuffer in the " + name + " field. Returns JNI_FALSE if the",
+                            " * field is NULL or not a direct buffer, address is then set to NULL and capacity to -1.",
+                            " */");
+                    wrapper(generation, scn, "jboolean jgetBuf_" + scn + "_" + name + "(JNIEnv * env, jobject instance, void ** address, jlong * capacity)",
+                            "    jobject tmp = (*env)->GetObjectField(env, instance, " + nativeFieldName + ");",
+                            "    jboolean res = jbufferAddress(env, tmp, address, capacity);",
+                            "    (*env)->DeleteLocalRef(env, tmp);",
+                            "    return res;");
+                    generation.header(
+                            "/**",
+                            " * Sets the " + name + " field to a direct ByteBuffer wrapping the memory without copying it, NULL address sets it to NULL.",
+                            " */");
+                    wrapper(generation, scn, "jboolean jsetBuf_" + scn + "_" + name + "(JNIEnv * env, jobject instance, void * address, jlong capacity)",
+                            "    if (address == 0) {",
+                            "        (*env)->SetObjectField(env, instance, " + nativeFieldName + ", 0);",
                             "        return JNI_TRUE;",
                             "    }",
-                            "    if (len < 0) {",
-                            "        len = 0;",
-                            "    }",
-                            "    jlongArray tmp = (*env)->NewLongArray(env, len);",
+                            "    jobject tmp = jbufferB(env, address, capacity);",
                             "    if (tmp == 0) {",
-                            "        throw_internal_OutOfMemoryError(env, \"NewByteArray\");",
                             "        return JNI_FALSE;",
                             "    }",
-                            "    if (len > 0) {",
-                            "        (*env)->SetLongArrayRegion(env, tmp, 0, len, (const jlong*) value);",
-                            "    }",
                             "    (*env)->SetObjectField(env, instance, " + nativeFieldName + ", tmp);",
                             "    (*env)->DeleteLocalRef(env, tmp);",
-                            "    return JNI_TRUE;",
-                            "}",
-                            "");
+                            "    return JNI_TRUE;");
                 }
 
-
                 if ("jstring".equals(ctype)) {
-                    generation.header("jboolean jsetC_" + scn + "_" + name + "(JNIEnv * env, jobject instance, char * value);");
-                    generation.header("jboolean jsetCC_" + scn + "_" + name + "(JNIEnv * env, jobject instance, const char * value);");
-
-                    generation.impl(
-                            "jboolean jsetC_" + scn + "_" + name + "(JNIEnv * env, jobject instance, char * value) {",
-                            "    return jsetCC_"  + scn + "_" + name + "(env, instance, (char*) value);",
-                            "}",
-                            "");
+                    wrapper(generation, scn, "jboolean jsetC_" + scn + "_" + name + "(JNIEnv * env, jobject instance, char * value)",
+                            "    return jsetCC_"  + scn + "_" + name + "(env, instance, (char*) value);");
 
-
-                    generation.impl(
-                            "jboolean jsetCC_" + scn + "_" + name + "(JNIEnv * env, jobject instance, const char * value) {",
+                    wrapper(generation, scn, "jboolean jsetCC_" + scn + "_" + name + "(JNIEnv * env, jobject instance, const char * value)",
                             "    if (value == 0) {",
                             "        (*env)->SetObjectField(env, instance," + nativeFieldName + ", 0);",
                             "        return JNI_TRUE;",
                             "    }",
-                            "    jstring tmp = (*env)->NewStringUTF(env, value);",
+                            "    jstring tmp = jstringCC(env, value);",
                             "    if (tmp == 0) {",
-                            "        throw_internal_OutOfMemoryError(env, \"NewStringUTF\");",
                             "        return JNI_FALSE;",
                             "    }",
                             "    (*env)->SetObjectField(env, instance, " + nativeFieldName + ", tmp);",
                             "    (*env)->DeleteLocalRef(env, tmp);",
-                            "    return JNI_TRUE;",
-                            "}",
-                            "");
-                    generation.header("jboolean jsetWC_" + scn + "_" + name + "(JNIEnv * env, jobject instance, wchar_t * value);");
-                    generation.impl(
-                            "jboolean jsetWC_" + scn + "_" + name + "(JNIEnv * env, jobject instance, wchar_t * value) {",
+                            "    return JNI_TRUE;");
+                    wrapper(generation, scn, "jlong jgetCC_" + scn + "_" + name + "(JNIEnv * env, jobject instance, char * buf, size_t cap)",
+                            "    jstring tmp = (jstring) (*env)->GetObjectField(env, instance, " + nativeFieldName + ");",
+                            "    jlong len = jgetCC(env, tmp, buf, cap);",
+                            "    (*env)->DeleteLocalRef(env, tmp);",
+                            "    return len;");
+                    wrapper(generation, scn, "jboolean jsetWC_" + scn + "_" + name + "(JNIEnv * env, jobject instance, wchar_t * value)",
                             "    if (value == 0) {",
                             "        (*env)->SetObjectField(env, instance," + nativeFieldName + ", 0);",
                             "        return JNI_TRUE;",
                             "    }",
-                            "    ",
-                            "    jsize i = 0;",
-                            "    while (value[i] != 0) {",
-                            "        i++;",
-                            "    }",
-                            "    ",
-                            "    jstring tmp;",
-                            "    if (sizeof(wchar_t) == sizeof(jchar)) {",
-                            "        tmp = (*env) -> NewString(env, (const jchar*) value, i);",
-                            "    } else {",
-                            "        jchar tBuf[i];",
-                            "        for (jsize j = 0; j < i; j++) {",
-                            "            tBuf[j] = (jchar) value[j];",
-                            "        }",
-                            "        tmp = (*env) -> NewString(env, (const jchar*) tBuf, i);",
-                            "    }",
+                            "    jstring tmp = jstringWC(env, value);",
                             "    if (tmp == 0) {",
-                            "        throw_internal_OutOfMemoryError(env, \"NewByteArray\");",
                             "        return JNI_FALSE;",
                             "    }",
                             "    (*env)->SetObjectField(env, instance, " + nativeFieldName + ", tmp);",
                             "    (*env)->DeleteLocalRef(env, tmp);",
-                            "    return JNI_TRUE;",
-                            "}",
-                            "");
+                            "    return JNI_TRUE;");
+                    wrapper(generation, scn, "jlong jgetWC_" + scn + "_" + name + "(JNIEnv * env, jobject instance, wchar_t * buf, size_t cap)",
+                            "    jstring tmp = (jstring) (*env)->GetObjectField(env, instance, " + nativeFieldName + ");",
+                            "    jlong len = jgetWC(env, tmp, buf, cap);",
+                            "    (*env)->DeleteLocalRef(env, tmp);",
+                            "    return len;");
                 }
 
 
-                generation.header(ctype + " jget_" + scn + "_" + name + "(JNIEnv * env, jobject instance);");
-                generation.impl(
-                        ctype + " jget_" + scn + "_" + name + "(JNIEnv * env, jobject instance) {",
-                        "   return "+ cast +"(*env)->Get" + acc + "Field(env, instance, " + nativeFieldName +");",
-                        "}",
-                        "");
+                wrapper(generation, scn, ctype + " jget_" + scn + "_" + name + "(JNIEnv * env, jobject instance)",
+                        "   return "+ cast +"(*env)->Get" + acc + "Field(env, instance, " + nativeFieldName +");");
+
+                if ("Object".equals(acc)) {
+                    wrapper(generation, scn, "void jborrow_" + scn + "_" + name + "(JNIEnv * env, jobject instance, jborrow_fn fn, void * ctx)",
+                            "    jobject value = (*env)->GetObjectField(env, instance, " + nativeFieldName + ");",
+                            "    fn(env, value, ctx);",
+                            "    (*env)->DeleteLocalRef(env, value);");
+                }
             }
         }
 
@@ -1322,7 +2852,7 @@ public class JNIGenerator extends AbstractMojo {
                     "    " + nativeMethodRefName + " = (*env) -> "+ refFunc +"(env, " + scn + ", \"" + name + "\", \"" + sig + "\");",
                     "    if (" + nativeMethodRefName + " == 0) {",
                     "        (*env) -> ExceptionClear(env);",
-                    "        (*env) -> ThrowNew(env, Exception, \"cant find " + nat + "." + name + sig + "\");",
+                    "        (*env) -> ThrowNew(env, internal_Exception, \"cant find " + nat + "." + name + sig + "\");",
                     "        return JNI_FALSE;",
                     "    }",
                     "");
@@ -1334,86 +2864,2215 @@ public class JNIGenerator extends AbstractMojo {
             generateMethod(generation, scn, m, name, nativeMethodRefName, suffix);
 
         }
-    }
 
-    private void generateMethod(Generation generation, String scn, Method m, String name, String nativeMethodRefName, String suffix) {
+        if (clazz.isEnum()) {
+            generateEnumMirror(generation, clazz);
+        }
 
+        if (member.getEnumValueField() != null) {
+            generateEnumValueTable(generation, member, clazz, enumValues);
+        }
 
-        if (name.equals("<init>")) {
-            generation.header("jobject jnew_" + scn + suffix + "(JNIEnv * env" + getCParameters(m, NO_SUBSTITUTION) + ");");
-            generation.impl(
-                    "jobject jnew_" + scn + suffix + "(JNIEnv * env" + getCParameters(m, NO_SUBSTITUTION) + ") {",
-                    "    jobject obj = (*env) -> NewObject(env, " + scn + ", " + nativeMethodRefName + getCParameterUse(m, NO_CASTS) + ");",
-                    "    if (obj == NULL) {",
-                    "        throw_internal_OutOfMemoryError(env, \"NewObject\");",
-                    "    }",
-                    "    return obj;",
-                    "}",
-                    ""
-            );
+        if (member.isMirror()) {
+            generateMirror(generation, member, clazz);
+        }
 
-            return;
+        if (member.getLayoutFile() != null) {
+            generateLayout(generation, member, clazz);
         }
 
-        String rctype = getCType(m.getReturnType());
-        String acc = getCAccessor(m.getReturnType());
-        String cast = "";
-        if ("Object".equals(acc) && !"jobject".equals(rctype)) {
-            cast = "(" + rctype + ") ";
+        if (member.getPanamaFile() != null) {
+            generatePanama(generation, member, clazz);
         }
 
-        if (!"void".equals(rctype)) {
-            cast = "return " + cast;
+        if (member.getBatchMethod() != null) {
+            generateBatch(generation, member, clazz);
         }
 
-        if (m.isStatic()) {
-            generation.header(rctype + " jcall_" + scn + "_" + name + suffix + "(JNIEnv * env" + getCParameters(m, NO_SUBSTITUTION) + ");");
-            generation.impl(
-                    rctype + " jcall_" + scn + "_" + name + suffix + "(JNIEnv * env" + getCParameters(m, NO_SUBSTITUTION) + ") {",
-                    "    " + cast + "(*env) -> CallStatic" + acc + "Method(env, " + scn + ", " + nativeMethodRefName + getCParameterUse(m, NO_CASTS) + ");",
-                    "}",
-                    ""
-            );
+        if (member.getPoolSize() > 0) {
+            generatePool(generation, member, clazz);
+        }
 
-            return;
+        if (member.getHandleFields() != null) {
+            for (String handleField : member.getHandleFields()) {
+                generateHandleTable(generation, member, clazz, handleField);
+            }
+        }
+
+        generation.scope(null);
+    }
+
+    protected String getByteBufferAccessor(Type type) {
+        switch (type.getType()) {
+            case(5):
+                return "Char";
+            case(6):
+                return "Float";
+            case(7):
+                return "Double";
+            case(9):
+                return "Short";
+            case(10):
+                return "Int";
+            case(11):
+                return "Long";
+            default:
+                return "";
         }
+    }
+
+    //Fixed binary layout of the primitive instance fields shared by a c struct and a java view on a direct ByteBuffer.
+    protected void generateLayout(Generation generation, Member member, JavaClass clazz) {
+        String scn = simpleClassName(clazz.getClassName());
+        String cn = clazz.getClassName();
+        String layoutName = "jlayout_" + scn;
+        List<Field> fields = getInstanceFields(member, clazz, true);
+        StructLayout layout = new StructLayout(fields);
+
+        generateLayoutStruct(generation, layoutName, layout);
+        generation.header(
+                "/**",
+                " * Wraps count consecutive " + layoutName + " in a direct ByteBuffer that can be read by the generated java view.",
+                " * The memory must stay valid as long as java uses the buffer. Returns NULL and throws a java exception on failure.",
+                " */");
+
+        wrapper(generation, null, "jobject " + layoutName + "_buffer(JNIEnv * env, " + layoutName + " * values, jsize count)",
+                "    if (count < 0) {",
+                "        throw_internal_IllegalArgumentException(env, \"" + layoutName + "_buffer count < 0\");",
+                "        return 0;",
+                "    }",
+                "    jobject buffer = (*env)->NewDirectByteBuffer(env, (void*) values, (jlong) count * (jlong) sizeof(" + layoutName + "));",
+                "    if (buffer == 0) {",
+                "        throw_internal_OutOfMemoryError(env, \"NewDirectByteBuffer\");",
+                "    }",
+                "    return buffer;");
+        generation.header("");
+
+        File javaFile = new File(member.getLayoutFile());
+        String name = javaClassName(javaFile);
+        String pkg = clazz.getPackageName();
+        String viewNat = pkg.isEmpty() ? name : pkg.replace('.', '/') + "/" + name;
+        String viewRef = layoutName + "_view";
+        String wrapSig = "(JI)Ljava/nio/ByteBuffer;";
 
-        generation.header(rctype + " jcall_" + scn + "_" + name + suffix + "(JNIEnv * env, jobject instance" + getCParameters(m, NO_SUBSTITUTION) + ");");
+        //The view wraps a native address with jlayout_X_buffer through a native method bound with RegisterNatives.
         generation.impl(
-                rctype + " jcall_" + scn + "_" + name + suffix + "(JNIEnv * env, jobject instance" + getCParameters(m, NO_SUBSTITUTION) + ") {",
-                "    " + cast + "(*env) -> Call" + acc + "Method(env, instance, " + nativeMethodRefName + getCParameterUse(m, NO_CASTS) + ");",
+                "static jclass " + viewRef + " = 0;",
+                "",
+                "static jobject JNICALL " + layoutName + "_wrap(JNIEnv * env, jclass clazz, jlong address, jint count) {",
+                "    if (address == 0 && count > 0) {",
+                "        throw_internal_NullPointerException(env, \"" + name + " address is 0\");",
+                "        return 0;",
+                "    }",
+                "    return " + layoutName + "_buffer(env, (" + layoutName + " *) (intptr_t) address, count);",
                 "}",
-                ""
-        );
+                "",
+                "static const JNINativeMethod " + layoutName + "_natives[] = {",
+                "    {(char *) \"wrap\", (char *) \"" + wrapSig + "\", (void *) " + layoutName + "_wrap}",
+                "};",
+                "");
 
-    }
+        //java may construct a view before any function of the class was used, so this is not part of the lazy class scope.
+        generation.scope(null);
+        generation.init(
+                "    " + viewRef + " = makeGlobalClassRef(env, \"" + viewNat + "\");",
+                "    if (" + viewRef + " == 0) {",
+                "        return JNI_FALSE;",
+                "    }",
+                "    if ((*env) -> RegisterNatives(env, " + viewRef + ", " + layoutName + "_natives, 1) != 0) {",
+                "        (*env) -> ExceptionClear(env);",
+                "        (*env) -> ThrowNew(env, internal_Exception, \"cant register native methods of " + viewNat + "\");",
+                "        return JNI_FALSE;",
+                "    }",
+                "");
+        generation.destroy(
+                "    if (" + viewRef + " != 0) {",
+                "        (*env) -> UnregisterNatives(env, " + viewRef + ");",
+                "        (*env) -> DeleteGlobalRef(env, " + viewRef + ");",
+                "        " + viewRef + " = 0;",
+                "    }");
+        generation.scope(scn);
+
+        StringBuilder java = javaHeader(clazz, "java.nio.ByteBuffer", "java.nio.ByteOrder");
+        java.append("/**\n");
+        java.append(" * View on " + layoutName + " structs stored in a ByteBuffer in native byte order or at a native address.\n");
+        java.append(" */\n");
+        java.append("public final class " + name + " {\n");
+        java.append("\n");
+        java.append("    public static final int SIZE = " + layout.getSize() + ";\n");
+        for (StructLayout.Entry e : layout.getEntries()) {
+            java.append("    public static final int OFFSET_" + e.getName() + " = " + e.getOffset() + ";\n");
+        }
+        java.append("\n");
+        java.append("    private final ByteBuffer buffer;\n");
+        java.append("    private int base;\n");
+        java.append("\n");
+        java.append("    public " + name + "(ByteBuffer buffer) {\n");
+        java.append("        this(buffer, 0);\n");
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    public " + name + "(ByteBuffer buffer, int index) {\n");
+        java.append("        this.buffer = buffer.duplicate().order(ByteOrder.nativeOrder());\n");
+        java.append("        at(index);\n");
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    /**\n");
+        java.append("     * View on count structs at the native address, for example a " + layoutName + " * passed to java as a long.\n");
+        java.append("     * The memory must stay valid as long as the view is used. Needs the native library to be initialized.\n");
+        java.append("     */\n");
+        java.append("    public " + name + "(long address, int count) {\n");
+        java.append("        this(wrap(address, count), 0);\n");
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    /**\n");
+        java.append("     * Moves the view to the struct with the given index in the buffer.\n");
+        java.append("     */\n");
+        java.append("    public " + name + " at(int index) {\n");
+        java.append("        this.base = index * SIZE;\n");
+        java.append("        return this;\n");
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    public int count() {\n");
+        java.append("        return buffer.capacity() / SIZE;\n");
+        java.append("    }\n");
+
+        for (StructLayout.Entry e : layout.getEntries()) {
+            Type type = e.getType();
+            String jt = type.toString();
+            String acc = getByteBufferAccessor(type);
+            String off = "base + OFFSET_" + e.getName();
+            String get = "buffer.get" + acc + "(" + off + ")";
+            String put = "buffer.put" + acc + "(" + off + ", value)";
+            if (type.getType() == 4) {
+                get = get + " != 0";
+                put = "buffer.put(" + off + ", (byte) (value ? 1 : 0))";
+            }
 
-    protected void finish(Generation generation) throws IOException {
-        File header = new File(headerOutput);
-        File impl = new File(implOutput);
+            java.append("\n");
+            java.append("    public " + jt + " get_" + e.getName() + "() {\n");
+            java.append("        return " + get + ";\n");
+            java.append("    }\n");
+            java.append("\n");
+            java.append("    public void set_" + e.getName() + "(" + jt + " value) {\n");
+            java.append("        " + put + ";\n");
+            java.append("    }\n");
+        }
 
-        System.out.println(header.getAbsolutePath());
-        System.out.println(impl.getAbsolutePath());
+        List<Field> assignable = getAccessibleFields(fields, true);
+        java.append("\n");
+        appendCopyDoc(java, "Copies the fields of the current struct into the instance.", fields, assignable);
+        java.append("    public void read(" + cn + " instance) {\n");
+        for (Field f : assignable) {
+            java.append("        instance." + f.getName() + " = get_" + f.getName() + "();\n");
+        }
+        java.append("    }\n");
+        java.append("\n");
+        List<Field> readable = getAccessibleFields(fields, false);
+        appendCopyDoc(java, "Copies the fields of the instance into the current struct.", fields, readable);
+        java.append("    public void write(" + cn + " instance) {\n");
+        for (Field f : readable) {
+            java.append("        set_" + f.getName() + "(instance." + f.getName() + ");\n");
+        }
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    private static native ByteBuffer wrap(long address, int count);\n");
+        java.append("}\n");
 
-        header.delete();
-        header.createNewFile();
-        impl.delete();
-        impl.createNewFile();
+        writeFile(javaFile, java.toString());
+    }
 
-        try(FileOutputStream faos = new FileOutputStream(header)) {
-            faos.write(generation.getHeader().getBytes(StandardCharsets.UTF_8));
+    //C enum with the ordinals of all constants and a name table, both taken from the class file so they need no JNIEnv.
+    protected void generateEnumMirror(Generation generation, JavaClass clazz) {
+        String scn = simpleClassName(clazz.getClassName());
+        List<String> constants = new ArrayList<>();
+        for (Field f : clazz.getFields()) {
+            //javac emits the constants in declaration order, which is the ordinal order
+            if (f.isEnum()) {
+                constants.add(f.getName());
+            }
         }
 
-        generation.impl(
+        generation.header(
+                "/**",
+                " * Ordinals of " + scn + " for use in switch statements together with jenum_ordinal.",
+                " */",
+                "typedef enum {");
+        for (int i = 0; i < constants.size(); i++) {
+            generation.header("    JENUM_" + scn + "_" + constants.get(i) + " = " + i + ",");
+        }
+        generation.header(
+                "} jordinal_" + scn + ";",
                 "",
-                "jboolean jnigenerator_init(JNIEnv * env) {",
-                generation.getInit(),
-                "    return JNI_TRUE;",
-                "}");
+                "#define JENUMCOUNT_" + scn + " " + constants.size(),
+                "",
+                "/**",
+                " * Returns the name of the constant with the given ordinal or NULL if there is none.",
+                " */",
+                "const char * jenumname_" + scn + "(jint ordinal);",
+                "");
 
+        generation.impl("static const char * const " + scn + "_enum_names[" + Math.max(1, constants.size()) + "] = {");
+        for (String c : constants) {
+            generation.impl("    " + cStringLiteral(c) + ",");
+        }
+        if (constants.isEmpty()) {
+            generation.impl("    0");
+        }
         generation.impl(
+                "};",
                 "",
-                "void jnigenerator_destroy(JNIEnv * env) {",
+                "const char * jenumname_" + scn + "(jint ordinal) {",
+                "    if (ordinal < 0 || ordinal >= " + constants.size() + ") {",
+                "        return 0;",
+                "    }",
+                "    return " + scn + "_enum_names[ordinal];",
+                "}",
+                "");
+    }
+
+    //Maps the int field of every enum constant back to the constant. The values are read once in jnigenerator_init
+    //into a dense table if they are close together or into an open addressing hash table otherwise.
+    protected void generateEnumValueTable(Generation generation, Member member, JavaClass clazz, List<String> enumValues) {
+        String scn = simpleClassName(clazz.getClassName());
+        String nat = nativeClassName(clazz.getClassName());
+        String field = member.getEnumValueField();
+        if (!clazz.isEnum()) {
+            throw new IllegalArgumentException("enumValueField is set but " + nat + " is not an enum");
+        }
+
+        boolean found = false;
+        for (Field f : clazz.getFields()) {
+            if (!f.isStatic() && f.getName().equals(field) && f.getType().getSignature().equals("I")) {
+                found = true;
+            }
+        }
+        if (!found) {
+            throw new IllegalArgumentException(nat + " has no int instance field " + field);
+        }
+
+        int count = Math.max(1, enumValues.size());
+        int denseSize = enumValues.size() * 4 + 16;
+        int hashBits = 1;
+        while ((1 << hashBits) < enumValues.size() * 2) {
+            hashBits++;
+        }
+        int hashSize = 1 << hashBits;
+
+        String prefix = scn + "_" + field;
+        String hash = "((((unsigned int) value) * 0x9E3779B1u) >> " + (32 - hashBits) + ")";
+        generation.impl(
+                "static jfieldID " + prefix + "_fid = 0;",
+                "static int " + prefix + "_mode = 0;",
+                "static jint " + prefix + "_min = 0;",
+                "static jobject " + prefix + "_dense[" + denseSize + "];",
+                "static jint " + prefix + "_keys[" + hashSize + "];",
+                "static jobject " + prefix + "_objects[" + hashSize + "];",
+                "");
+
+        StringBuilder refs = new StringBuilder();
+        for (String ref : enumValues) {
+            if (refs.length() > 0) {
+                refs.append(", ");
+            }
+            refs.append(ref);
+        }
+        if (enumValues.isEmpty()) {
+            refs.append("0");
+        }
+
+        generation.init(
+                "    " + prefix + "_fid = (*env) -> GetFieldID(env, " + scn + ", \"" + field + "\", \"I\");",
+                "    if (" + prefix + "_fid == 0) {",
+                "        (*env) -> ExceptionClear(env);",
+                "        (*env) -> ThrowNew(env, internal_Exception, \"cant find " + nat + "_" + field + "_I\");",
+                "        return JNI_FALSE;",
+                "    }",
+                "    {",
+                "        jobject refs[" + count + "] = {" + refs + "};",
+                "        jint values[" + count + "];",
+                "        jint min = 0;",
+                "        jint max = 0;",
+                "        for (int i = 0; i < " + enumValues.size() + "; i++) {",
+                "            values[i] = (*env) -> GetIntField(env, refs[i], " + prefix + "_fid);",
+                "            if (i == 0 || values[i] < min) {",
+                "                min = values[i];",
+                "            }",
+                "            if (i == 0 || values[i] > max) {",
+                "                max = values[i];",
+                "            }",
+                "        }",
+                "        " + prefix + "_min = min;",
+                "        " + prefix + "_mode = (jlong) max - (jlong) min < " + denseSize + " ? 1 : 2;",
+                "        //the first constant wins if several have the same value",
+                "        for (int i = " + enumValues.size() + " - 1; i >= 0; i--) {",
+                "            jint value = values[i];",
+                "            if (" + prefix + "_mode == 1) {",
+                "                " + prefix + "_dense[(unsigned int) value - (unsigned int) min] = refs[i];",
+                "                continue;",
+                "            }",
+                "            unsigned int slot = " + hash + ";",
+                "            while (" + prefix + "_objects[slot] != 0 && " + prefix + "_keys[slot] != value) {",
+                "                slot = (slot + 1) & " + (hashSize - 1) + ";",
+                "            }",
+                "            " + prefix + "_keys[slot] = value;",
+                "            " + prefix + "_objects[slot] = refs[i];",
+                "        }",
+                "    }",
+                "");
+
+        generation.destroy(
+                "    " + prefix + "_fid = 0;",
+                "    " + prefix + "_mode = 0;",
+                "    memset(" + prefix + "_dense, 0, sizeof(" + prefix + "_dense));",
+                "    memset(" + prefix + "_objects, 0, sizeof(" + prefix + "_objects));");
+
+        generation.header(
+                "/**",
+                " * Returns the " + scn + " constant whose " + field + " equals value or NULL if there is none. The result is a global",
+                " * reference that must not be deleted. If several constants have the same value the first declared one is returned.",
+                " */",
+                "jobject jenum_" + scn + "_from_" + field + "(jint value);",
+                "");
+        generation.impl(
+                "jobject jenum_" + scn + "_from_" + field + "(jint value) {",
+                "    if (" + prefix + "_mode == 1) {",
+                "        unsigned int index = (unsigned int) value - (unsigned int) " + prefix + "_min;",
+                "        return index < " + denseSize + " ? " + prefix + "_dense[index] : 0;",
+                "    }",
+                "    unsigned int slot = " + hash + ";",
+                "    while (" + prefix + "_objects[slot] != 0) {",
+                "        if (" + prefix + "_keys[slot] == value) {",
+                "            return " + prefix + "_objects[slot];",
+                "        }",
+                "        slot = (slot + 1) & " + (hashSize - 1) + ";",
+                "    }",
+                "    return 0;",
+                "}",
+                "");
+
+        generation.header(
+                "/**",
+                " * Returns the " + field + " of the " + scn + " constant or fallback if value is NULL.",
+                " */");
+        wrapper(generation, scn, "jint jenum_" + scn + "_to_" + field + "(JNIEnv * env, jobject value, jint fallback)",
+                "    if (value == 0) {",
+                "        return fallback;",
+                "    }",
+                "    return (*env) -> GetIntField(env, value, " + prefix + "_fid);");
+        generation.header("");
+    }
+
+    //Plain c struct with one member per instance field and functions that copy a whole object in or out.
+    protected void generateMirror(Generation generation, Member member, JavaClass clazz) {
+        String scn = simpleClassName(clazz.getClassName());
+        String mirror = "jstruct_" + scn;
+        List<Field> fields = getInstanceFields(member, clazz, false);
+
+        generation.header("typedef struct {");
+        for (Field f : fields) {
+            generation.header("    " + getCType(f.getType()) + " " + f.getName() + ";");
+        }
+        generation.header("} " + mirror + ";", "");
+
+        List<String> set = new ArrayList<>();
+        List<String> get = new ArrayList<>();
+        int objects = 0;
+        for (Field f : fields) {
+            String ctype = getCType(f.getType());
+            String acc = getCAccessor(f.getType());
+            String cast = "";
+            if ("Object".equals(acc) && !"jobject".equals(ctype)) {
+                cast = "(" + ctype + ") ";
+            }
+            if ("Object".equals(acc)) {
+                objects++;
+            }
+
+            set.add("    (*env)->Set" + acc + "Field(env, instance, " + scn + "_" + f.getName() + ", value->" + f.getName() + ");");
+            get.add("    value->" + f.getName() + " = " + cast + "(*env)->Get" + acc + "Field(env, instance, " + scn + "_" + f.getName() + ");");
+        }
+
+        //unguarded copies shared by the single and the array functions
+        generation.impl("static void jnigenerator_get_all_" + scn + "(JNIEnv * env, jobject instance, " + mirror + " * value) {");
+        generation.impl(get.toArray(new String[0]));
+        generation.impl("}", "");
+        generation.impl("static void jnigenerator_set_all_" + scn + "(JNIEnv * env, jobject instance, const " + mirror + " * value) {");
+        generation.impl(set.toArray(new String[0]));
+        generation.impl("}", "");
+
+        generation.header(
+                "/**",
+                " * Copies all fields of the instance into value. Object members of value are new local references.",
+                " */");
+        wrapper(generation, scn, "void jget_all_" + scn + "(JNIEnv * env, jobject instance, " + mirror + " * value)",
+                "    jnigenerator_get_all_" + scn + "(env, instance, value);");
+
+        generation.header(
+                "",
+                "/**",
+                " * Copies all members of value into the fields of the instance.",
+                " */");
+        wrapper(generation, scn, "void jset_all_" + scn + "(JNIEnv * env, jobject instance, const " + mirror + " * value)",
+                "    jnigenerator_set_all_" + scn + "(env, instance, value);");
+
+        generation.header(
+                "",
+                "/**",
+                " * Allocates a new instance without calling a constructor and fills all fields from value.",
+                " * Returns NULL if allocation fails. In this case a java exception is thrown.",
+                " */");
+        wrapperBegin(generation, scn, "jobject jnew_from_" + scn + "(JNIEnv * env, const " + mirror + " * value)");
+        generation.impl(
+                "    jobject instance = (*env)->AllocObject(env, " + scn + ");",
+                "    if (instance == 0) {",
+                "        throw_internal_OutOfMemoryError(env, \"AllocObject\");",
+                "        return 0;",
+                "    }",
+                "    jnigenerator_set_all_" + scn + "(env, instance, value);",
+                "    return instance;");
+        wrapperEnd(generation, scn, "jobject jnew_from_" + scn + "(JNIEnv * env, const " + mirror + " * value)");
+
+        generation.header(
+                "",
+                "/**",
+                " * Creates a new array of count instances filled from values.",
+                " * Returns NULL on failure. In this case a java exception is thrown.",
+                " */");
+        wrapper(generation, scn, "jobjectArray jnewArray_" + scn + "(JNIEnv * env, const " + mirror + " * values, jsize count)",
+                "    jobjectArray array = (*env)->NewObjectArray(env, count, " + scn + ", 0);",
+                "    if (array == 0) {",
+                "        throw_internal_OutOfMemoryError(env, \"NewObjectArray\");",
+                "        return 0;",
+                "    }",
+                "    for (jsize i = 0; i < count; i += JNIGENERATOR_ARRAY_CHUNK) {",
+                "        jsize end = count - i < JNIGENERATOR_ARRAY_CHUNK ? count : i + JNIGENERATOR_ARRAY_CHUNK;",
+                "        if ((*env)->PushLocalFrame(env, end - i) != 0) {",
+                "            (*env)->DeleteLocalRef(env, array);",
+                "            return 0;",
+                "        }",
+                "        for (jsize j = i; j < end; j++) {",
+                "            jobject instance = (*env)->AllocObject(env, " + scn + ");",
+                "            if (instance == 0) {",
+                "                (*env)->PopLocalFrame(env, 0);",
+                "                (*env)->DeleteLocalRef(env, array);",
+                "                throw_internal_OutOfMemoryError(env, \"AllocObject\");",
+                "                return 0;",
+                "            }",
+                "            jnigenerator_set_all_" + scn + "(env, instance, &values[j]);",
+                "            (*env)->SetObjectArrayElement(env, array, j, instance);",
+                "        }",
+                "        (*env)->PopLocalFrame(env, 0);",
+                "    }",
+                "    return array;");
+
+        generation.header(
+                "",
+                "/**",
+                " * Copies values into the instances of an existing array, NULL elements are replaced with new instances.",
+                " * At most count elements are written. Returns the number of elements written or -1 on failure,",
+                " * in this case a java exception is thrown.",
+                " */");
+        wrapper(generation, scn, "jsize jfillArray_" + scn + "(JNIEnv * env, jobjectArray array, const " + mirror + " * values, jsize count)",
+                "    jsize len = (*env)->GetArrayLength(env, array);",
+                "    if (count > len) {",
+                "        count = len;",
+                "    }",
+                "    for (jsize i = 0; i < count; i += JNIGENERATOR_ARRAY_CHUNK) {",
+                "        jsize end = count - i < JNIGENERATOR_ARRAY_CHUNK ? count : i + JNIGENERATOR_ARRAY_CHUNK;",
+                "        if ((*env)->PushLocalFrame(env, end - i) != 0) {",
+                "            return -1;",
+                "        }",
+                "        for (jsize j = i; j < end; j++) {",
+                "            jobject instance = (*env)->GetObjectArrayElement(env, array, j);",
+                "            if (instance == 0) {",
+                "                instance = (*env)->AllocObject(env, " + scn + ");",
+                "                if (instance == 0) {",
+                "                    (*env)->PopLocalFrame(env, 0);",
+                "                    throw_internal_OutOfMemoryError(env, \"AllocObject\");",
+                "                    return -1;",
+                "                }",
+                "                (*env)->SetObjectArrayElement(env, array, j, instance);",
+                "            }",
+                "            jnigenerator_set_all_" + scn + "(env, instance, &values[j]);",
+                "        }",
+                "        (*env)->PopLocalFrame(env, 0);",
+                "    }",
+                "    return count;");
+
+        generation.header(
+                "",
+                "/**",
+                " * Copies the fields of at most count instances of the array into values.",
+                " * NULL elements are zeroed. " + (objects > 0 ? "Object members of values are new local references. " : "") + "Returns the number of elements copied",
+                " * or -1 on failure, in this case a java exception is thrown.",
+                " */");
+        List<String> getArray = new ArrayList<>();
+        getArray.add("    jsize len = (*env)->GetArrayLength(env, array);");
+        getArray.add("    if (count > len) {");
+        getArray.add("        count = len;");
+        getArray.add("    }");
+        if (objects > 0) {
+            getArray.add("    if (count > INT_MAX / " + objects + ") {");
+            getArray.add("        throw_internal_IllegalArgumentException(env, \"jgetArray_" + scn + " count * " + objects + " local references exceed INT_MAX\");");
+            getArray.add("        return -1;");
+            getArray.add("    }");
+            getArray.add("    if (count > 0 && (*env)->EnsureLocalCapacity(env, count * " + objects + ") != 0) {");
+            getArray.add("        return -1;");
+            getArray.add("    }");
+        }
+        getArray.add("    for (jsize i = 0; i < count; i++) {");
+        getArray.add("        jobject instance = (*env)->GetObjectArrayElement(env, array, i);");
+        getArray.add("        if (instance == 0) {");
+        getArray.add("            memset(&values[i], 0, sizeof(" + mirror + "));");
+        getArray.add("            continue;");
+        getArray.add("        }");
+        getArray.add("        jnigenerator_get_all_" + scn + "(env, instance, &values[i]);");
+        getArray.add("        (*env)->DeleteLocalRef(env, instance);");
+        getArray.add("    }");
+        getArray.add("    return count;");
+        wrapper(generation, scn, "jsize jgetArray_" + scn + "(JNIEnv * env, jobjectArray array, " + mirror + " * values, jsize count)",
+                getArray.toArray(new String[0]));
+        generation.header("");
+    }
+
+    protected List<Field> getInstanceFields(Member member, JavaClass clazz, boolean primitiveOnly) {
+        List<Field> fields = new ArrayList<>();
+        for (Field f : clazz.getFields()) {
+            if (f.isStatic() || f.isEnum()) {
+                continue;
+            }
+
+            if (!f.isPublic() && member.isOnlyPublic()) {
+                continue;
+            }
+
+            if (member.containsFilter(f.getName())) {
+                continue;
+            }
+
+            if (primitiveOnly && f.getType().getSignature().length() != 1) {
+                continue;
+            }
+
+            fields.add(f);
+        }
+
+        return fields;
+    }
+
+    //The generated java classes live in the package of the class, they can read every field that is not private
+    //and assign every field that is neither private nor final.
+    protected List<Field> getAccessibleFields(List<Field> fields, boolean assign) {
+        List<Field> accessible = new ArrayList<>();
+        for (Field f : fields) {
+            if (f.isPrivate() || (assign && f.isFinal())) {
+                continue;
+            }
+            accessible.add(f);
+        }
+
+        return accessible;
+    }
+
+    protected void appendCopyDoc(StringBuilder java, String description, List<Field> fields, List<Field> copied) {
+        java.append("    /**\n");
+        java.append("     * " + description + "\n");
+        if (copied.size() != fields.size()) {
+            java.append("     * Not copied because they are private or final, use their accessors instead: " + fieldNames(fields, copied) + "\n");
+        }
+        java.append("     */\n");
+    }
+
+    //Comma separated names of the fields that are not in the subset.
+    protected String fieldNames(List<Field> fields, List<Field> subset) {
+        StringBuilder names = new StringBuilder();
+        for (Field f : fields) {
+            if (subset.contains(f)) {
+                continue;
+            }
+            if (names.length() > 0) {
+                names.append(", ");
+            }
+            names.append(f.getName());
+        }
+        return names.toString();
+    }
+
+    protected String getPanamaLayout(Type type) {
+        switch (type.getType()) {
+            case(4):
+                return "ValueLayout.JAVA_BOOLEAN";
+            case(5):
+                return "ValueLayout.JAVA_CHAR";
+            case(6):
+                return "ValueLayout.JAVA_FLOAT";
+            case(7):
+                return "ValueLayout.JAVA_DOUBLE";
+            case(8):
+                return "ValueLayout.JAVA_BYTE";
+            case(9):
+                return "ValueLayout.JAVA_SHORT";
+            case(10):
+                return "ValueLayout.JAVA_INT";
+            case(11):
+                return "ValueLayout.JAVA_LONG";
+            default:
+                throw new IllegalArgumentException(type.getSignature());
+        }
+    }
+
+    protected void generateLayoutStruct(Generation generation, String layoutName, StructLayout layout) {
+        if (layout.getEntries().isEmpty()) {
+            //An empty struct is not valid C and the java view would divide by its size.
+            throw new IllegalArgumentException(layoutName + " has no primitive instance fields");
+        }
+
+        generation.header("typedef struct {");
+        for (StructLayout.Entry e : layout.getEntries()) {
+            generation.header("    " + getCType(e.getType()) + " " + e.getName() + ";");
+        }
+        generation.header("} " + layoutName + ";", "");
+
+        for (StructLayout.Entry e : layout.getEntries()) {
+            generation.header("_Static_assert(offsetof(" + layoutName + ", " + e.getName() + ") == " + e.getOffset() + ", \"" + layoutName + "." + e.getName() + " offset\");");
+        }
+        generation.header("_Static_assert(sizeof(" + layoutName + ") == " + layout.getSize() + ", \"" + layoutName + " size\");", "");
+    }
+
+    //Emits a java.lang.foreign (java 22+) description of the primitive instance fields of the struct
+    //and downcall handles for the configured panamaFunctions.
+    protected void generatePanama(Generation generation, Member member, JavaClass clazz) {
+        File javaFile = new File(member.getPanamaFile());
+        String name = javaClassName(javaFile);
+        String cn = clazz.getClassName();
+        List<Field> fields = getInstanceFields(member, clazz, true);
+        StructLayout layout = new StructLayout(fields);
+        List<Method> functions = getPanamaFunctions(member, clazz);
+
+        StringBuilder java = javaHeader(clazz,
+                "java.lang.foreign.FunctionDescriptor",
+                "java.lang.foreign.Linker",
+                "java.lang.foreign.MemoryLayout",
+                "java.lang.foreign.MemorySegment",
+                "java.lang.foreign.SegmentAllocator",
+                "java.lang.foreign.StructLayout",
+                "java.lang.foreign.SymbolLookup",
+                "java.lang.foreign.ValueLayout",
+                "java.lang.invoke.MethodHandle",
+                "java.lang.invoke.VarHandle");
+
+        java.append("public final class " + name + " {\n");
+        java.append("\n");
+        java.append("    /**\n");
+        java.append("     * Layout of the primitive instance fields of " + cn + " using natural alignment.\n");
+        java.append("     */\n");
+        java.append("    public static final StructLayout LAYOUT = MemoryLayout.structLayout(");
+
+        int position = 0;
+        String sep = "\n";
+        for (StructLayout.Entry e : layout.getEntries()) {
+            if (e.getOffset() > position) {
+                java.append(sep + "            MemoryLayout.paddingLayout(" + (e.getOffset() - position) + ")");
+                sep = ",\n";
+            }
+
+            java.append(sep + "            " + getPanamaLayout(e.getType()) + ".withName(\"" + e.getName() + "\")");
+            sep = ",\n";
+            position = e.getOffset() + e.getSize();
+        }
+
+        if (layout.getSize() > position) {
+            java.append(sep + "            MemoryLayout.paddingLayout(" + (layout.getSize() - position) + ")");
+        }
+
+        java.append(");\n");
+        java.append("\n");
+
+        for (StructLayout.Entry e : layout.getEntries()) {
+            java.append("    public static final long OFFSET_" + e.getName() + " = " + e.getOffset() + ";\n");
+            java.append("    private static final VarHandle VH_" + e.getName() + " = LAYOUT.varHandle(MemoryLayout.PathElement.groupElement(\"" + e.getName() + "\"));\n");
+        }
+
+        java.append("\n");
+        java.append("    private " + name + "() {\n");
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    public static MemorySegment allocate(SegmentAllocator allocator) {\n");
+        java.append("        return allocator.allocate(LAYOUT);\n");
+        java.append("    }\n");
+
+        for (StructLayout.Entry e : layout.getEntries()) {
+            String jt = e.getType().toString();
+            java.append("\n");
+            java.append("    public static " + jt + " get_" + e.getName() + "(MemorySegment segment) {\n");
+            java.append("        return (" + jt + ") VH_" + e.getName() + ".get(segment, 0L);\n");
+            java.append("    }\n");
+            java.append("\n");
+            java.append("    public static void set_" + e.getName() + "(MemorySegment segment, " + jt + " value) {\n");
+            java.append("        VH_" + e.getName() + ".set(segment, 0L, value);\n");
+            java.append("    }\n");
+        }
+
+        List<Field> assignable = getAccessibleFields(fields, true);
+        java.append("\n");
+        appendCopyDoc(java, "Copies the fields of the segment into the instance.", fields, assignable);
+        java.append("    public static void read(MemorySegment segment, " + cn + " instance) {\n");
+        for (Field f : assignable) {
+            java.append("        instance." + f.getName() + " = get_" + f.getName() + "(segment);\n");
+        }
+        java.append("    }\n");
+        java.append("\n");
+        List<Field> readable = getAccessibleFields(fields, false);
+        appendCopyDoc(java, "Copies the fields of the instance into the segment.", fields, readable);
+        java.append("    public static void write(" + cn + " instance, MemorySegment segment) {\n");
+        for (Field f : readable) {
+            java.append("        set_" + f.getName() + "(segment, instance." + f.getName() + ");\n");
+        }
+        java.append("    }\n");
+
+        if (!functions.isEmpty()) {
+            generatePanamaFunctions(generation, member, clazz, layout, functions, java);
+        }
+
+        java.append("}\n");
+
+        writeFile(javaFile, java.toString());
+    }
+
+    protected List<Method> getPanamaFunctions(Member member, JavaClass clazz) {
+        String nat = nativeClassName(clazz.getClassName());
+        List<Method> functions = new ArrayList<>();
+        if (member.getPanamaFunctions() == null) {
+            return functions;
+        }
+
+        for (String function : member.getPanamaFunctions()) {
+            Method method = null;
+            for (Method m : clazz.getMethods()) {
+                if (!m.getName().equals(function)) {
+                    continue;
+                }
+
+                if (method != null) {
+                    throw new IllegalArgumentException("panamaFunction " + function + " of " + nat + " is overloaded");
+                }
+                method = m;
+            }
+
+            if (method == null) {
+                throw new IllegalArgumentException("panamaFunction " + function + " not found in " + nat);
+            }
+
+            if (!method.isStatic()) {
+                throw new IllegalArgumentException("panamaFunction " + function + " of " + nat + " must be static");
+            }
+
+            if (method.getReturnType() != Type.VOID && !(method.getReturnType() instanceof BasicType)) {
+                throw new IllegalArgumentException("panamaFunction " + function + " of " + nat + " must return void or a primitive");
+            }
+
+            for (Type type : method.getArgumentTypes()) {
+                if (!(type instanceof BasicType) && !type.getSignature().equals("L" + nat + ";")) {
+                    throw new IllegalArgumentException("panamaFunction " + function + " of " + nat + " may only have primitive parameters or parameters of type " + clazz.getClassName());
+                }
+            }
+
+            functions.add(method);
+        }
+
+        return functions;
+    }
+
+    //Each function becomes a plain c function without JNIEnv that java calls through a downcall handle.
+    //Parameters of the struct type are passed as a pointer to the LAYOUT of the struct.
+    protected void generatePanamaFunctions(Generation generation, Member member, JavaClass clazz, StructLayout layout, List<Method> functions, StringBuilder java) {
+        String scn = simpleClassName(clazz.getClassName());
+        String cn = clazz.getClassName();
+        String layoutName = "jlayout_" + scn;
+        if (member.getLayoutFile() == null) {
+            generateLayoutStruct(generation, layoutName, layout);
+        }
+
+        java.append("\n");
+        java.append("    private static MethodHandle downcall(String name, FunctionDescriptor descriptor) {\n");
+        java.append("        MemorySegment symbol = SymbolLookup.loaderLookup().find(name).orElseThrow(() -> new UnsatisfiedLinkError(name));\n");
+        java.append("        return Linker.nativeLinker().downcallHandle(symbol, descriptor);\n");
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    /**\n");
+        java.append("     * Resolved on first use, the library containing the functions has to be loaded by then.\n");
+        java.append("     */\n");
+        java.append("    private static final class Downcalls {\n");
+
+        for (Method m : functions) {
+            String function = "jpanama_" + scn + "_" + m.getName();
+            Type[] argumentTypes = m.getArgumentTypes();
+            StringBuilder cParams = new StringBuilder();
+            StringBuilder layouts = new StringBuilder();
+            for (int i = 0; i < argumentTypes.length; i++) {
+                Type type = argumentTypes[i];
+                boolean struct = !(type instanceof BasicType);
+                cParams.append(i == 0 ? "" : ", ").append(struct ? layoutName + " *" : getCType(type)).append(" p").append(i);
+                layouts.append(", ").append(struct ? "ValueLayout.ADDRESS" : getPanamaLayout(type));
+            }
+
+            String descriptor;
+            if (m.getReturnType() == Type.VOID) {
+                descriptor = "FunctionDescriptor.ofVoid(" + (layouts.length() == 0 ? "" : layouts.substring(2)) + ")";
+            } else {
+                descriptor = "FunctionDescriptor.of(" + getPanamaLayout(m.getReturnType()) + layouts + ")";
+            }
+
+            generation.header(
+                    "/**",
+                    " * Implementation of " + cn + "." + m.getName() + m.getSignature() + " called by " + javaClassName(new File(member.getPanamaFile())) + " through a downcall handle.",
+                    " * Must be implemented by you and exported from the library, there is no JNIEnv and java exceptions cannot be thrown.",
+                    " */",
+                    getCType(m.getReturnType()) + " " + function + "(" + (cParams.length() == 0 ? "void" : cParams) + ");",
+                    "");
+
+            java.append("        static final MethodHandle " + m.getName() + " = downcall(\"" + function + "\", " + descriptor + ");\n");
+        }
+
+        java.append("    }\n");
+
+        for (Method m : functions) {
+            Type[] argumentTypes = m.getArgumentTypes();
+            StringBuilder params = new StringBuilder();
+            StringBuilder args = new StringBuilder();
+            for (int i = 0; i < argumentTypes.length; i++) {
+                Type type = argumentTypes[i];
+                params.append(i == 0 ? "" : ", ").append(type instanceof BasicType ? type.toString() : "MemorySegment").append(" p").append(i);
+                args.append(i == 0 ? "" : ", ").append("p").append(i);
+            }
+
+            String jt = m.getReturnType().toString();
+            boolean isVoid = m.getReturnType() == Type.VOID;
+            java.append("\n");
+            java.append("    /**\n");
+            java.append("     * Calls jpanama_" + scn + "_" + m.getName() + (params.indexOf("MemorySegment") >= 0 ? ", parameters of type " + cn + " are passed as segments of LAYOUT" : "") + ".\n");
+            java.append("     */\n");
+            java.append("    public static " + jt + " " + m.getName() + "(" + params + ") {\n");
+            java.append("        try {\n");
+            java.append("            " + (isVoid ? "" : "return (" + jt + ") ") + "Downcalls." + m.getName() + ".invokeExact(" + args + ");\n");
+            java.append("        } catch (RuntimeException | Error e) {\n");
+            java.append("            throw e;\n");
+            java.append("        } catch (Throwable e) {\n");
+            java.append("            throw new AssertionError(e);\n");
+            java.append("        }\n");
+            java.append("    }\n");
+        }
+    }
+
+    //A long field holds (generation << 32 | index + 1) instead of a raw pointer. The generation of a slot is odd while it is
+    //in use and is bumped on every free, so a stale or double freed handle is detected without locking the table.
+    protected void generateHandleTable(Generation generation, Member member, JavaClass clazz, String name) {
+        String scn = simpleClassName(clazz.getClassName());
+        String nat = nativeClassName(clazz.getClassName());
+        Field field = null;
+        for (Field f : clazz.getFields()) {
+            if (f.getName().equals(name)) {
+                field = f;
+            }
+        }
+
+        if (field == null || field.getType() != Type.LONG) {
+            throw new IllegalArgumentException("handle field " + name + " of " + nat + " must be a long field");
+        }
+
+        int capacity = member.getHandleCapacity();
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("handleCapacity of " + nat + " must be positive");
+        }
+
+        String exception = nativeClassName(member.getHandleException() == null ? "java.lang.IllegalStateException" : member.getHandleException());
+        String table = "jhandle_" + scn + "_" + name;
+        String capacityMacro = "JHANDLE_" + scn + "_" + name + "_CAPACITY";
+        String fieldRef = table + "_field";
+        String exceptionRef = table + "_exception";
+        String values = table + "_values";
+        String generations = table + "_generations";
+        String next = table + "_next";
+        String fresh = table + "_fresh";
+        String head = table + "_head";
+        String staleFn = "jthrowStale_" + scn + "_" + name;
+
+        generation.impl(
+                "static jfieldID " + fieldRef + " = 0;",
+                "static jclass " + exceptionRef + " = 0;",
+                "static void * " + values + "[" + capacityMacro + "];",
+                "static uint32_t " + generations + "[" + capacityMacro + "];",
+                "static uint32_t " + next + "[" + capacityMacro + "];",
+                "static uint32_t " + fresh + " = 0;",
+                "//free list, tag in the upper 32 bits against ABA, index + 1 in the lower 32 bits",
+                "static uint64_t " + head + " = 0;",
+                "");
+
+        generation.init(
+                "    " + fieldRef + " = (*env) -> " + (field.isStatic() ? "GetStaticFieldID" : "GetFieldID") + "(env, " + scn + ", \"" + name + "\", \"J\");",
+                "    if (" + fieldRef + " == 0) {",
+                "        (*env) -> ExceptionClear(env);",
+                "        (*env) -> ThrowNew(env, internal_Exception, \"cant find " + nat + "_" + name + "_J\");",
+                "        return JNI_FALSE;",
+                "    }",
+                "    " + exceptionRef + " = makeGlobalClassRef(env, \"" + exception + "\");",
+                "    if (" + exceptionRef + " == 0) {",
+                "        return JNI_FALSE;",
+                "    }",
+                "");
+
+        generation.destroy(
+                "    " + fieldRef + " = 0;",
+                "    if (" + exceptionRef + " != 0) {",
+                "        (*env) -> DeleteGlobalRef(env, " + exceptionRef + ");",
+                "        " + exceptionRef + " = 0;",
+                "    }");
+
+        generation.header(
+                "",
+                "/**",
+                " * Slots of the handle table for " + scn + "." + name + ". Handles are 0 for NULL or (generation << 32 | index + 1).",
+                " */",
+                "#ifndef " + capacityMacro,
+                "#define " + capacityMacro + " " + capacity,
+                "#endif",
+                "",
+                "/**",
+                " * Throws " + exception.replace('/', '.') + " for a handle of " + scn + "." + name + " that is not in use, does nothing if an exception is pending.",
+                " */");
+        wrapper(generation, scn, "void " + staleFn + "(JNIEnv * env, jlong handle)",
+                "    if ((*env) -> ExceptionCheck(env)) {",
+                "        return;",
+                "    }",
+                "    char message[96];",
+                "    snprintf(message, sizeof(message), \"stale " + scn + "." + name + " handle 0x%llx\", (unsigned long long) handle);",
+                "    (*env) -> ThrowNew(env, " + exceptionRef + ", message);");
+
+        generation.header(
+                "",
+                "/**",
+                " * Stores pointer in a free slot and returns its handle. Returns 0 and throws an OutOfMemoryError if the table is full.",
+                " */");
+        wrapper(generation, scn, "jlong " + table + "_new(JNIEnv * env, void * pointer)",
+                "    uint32_t index;",
+                "    uint64_t old = __atomic_load_n(&" + head + ", __ATOMIC_ACQUIRE);",
+                "    while (1) {",
+                "        if ((uint32_t) old == 0) {",
+                "            index = __atomic_fetch_add(&" + fresh + ", 1, __ATOMIC_RELAXED);",
+                "            if (index >= " + capacityMacro + ") {",
+                "                __atomic_fetch_sub(&" + fresh + ", 1, __ATOMIC_RELAXED);",
+                "                throw_internal_OutOfMemoryError(env, \"" + table + " is full\");",
+                "                return 0;",
+                "            }",
+                "            break;",
+                "        }",
+                "        index = (uint32_t) old - 1;",
+                "        uint64_t replacement = (((old >> 32) + 1) << 32) | __atomic_load_n(&" + next + "[index], __ATOMIC_RELAXED);",
+                "        if (__atomic_compare_exchange_n(&" + head + ", &old, replacement, 1, __ATOMIC_ACQUIRE, __ATOMIC_ACQUIRE)) {",
+                "            break;",
+                "        }",
+                "    }",
+                "    __atomic_store_n(&" + values + "[index], pointer, __ATOMIC_RELAXED);",
+                "    uint32_t gen = __atomic_load_n(&" + generations + "[index], __ATOMIC_RELAXED) + 1;",
+                "    __atomic_store_n(&" + generations + "[index], gen, __ATOMIC_RELEASE);",
+                "    return (jlong) (((uint64_t) gen << 32) | (uint64_t) (index + 1));");
+
+        generation.header(
+                "",
+                "/**",
+                " * Returns the pointer of the handle or NULL for the handle 0. A handle that was freed or never created returns NULL",
+                " * and throws with " + staleFn + ". The table does not stop another thread from freeing the handle after the lookup.",
+                " */");
+        wrapper(generation, scn, "void * " + table + "_lookup(JNIEnv * env, jlong handle)",
+                "    uint32_t index = (uint32_t) handle - 1;",
+                "    uint32_t gen = (uint32_t) ((uint64_t) handle >> 32);",
+                "    if (handle == 0) {",
+                "        return 0;",
+                "    }",
+                "    if (__builtin_expect(index < " + capacityMacro + " && (gen & 1) != 0, 1)) {",
+                "        if (__atomic_load_n(&" + generations + "[index], __ATOMIC_ACQUIRE) == gen) {",
+                "            void * pointer = __atomic_load_n(&" + values + "[index], __ATOMIC_RELAXED);",
+                "            __atomic_thread_fence(__ATOMIC_ACQUIRE);",
+                "            if (__atomic_load_n(&" + generations + "[index], __ATOMIC_RELAXED) == gen) {",
+                "                return pointer;",
+                "            }",
+                "        }",
+                "    }",
+                "    " + staleFn + "(env, handle);",
+                "    return 0;");
+
+        generation.header(
+                "",
+                "/**",
+                " * Frees the slot of the handle and returns the pointer it held, so it can be released by the caller.",
+                " * Returns NULL for the handle 0. A stale or already freed handle returns NULL and throws with " + staleFn + ".",
+                " */");
+        wrapper(generation, scn, "void * " + table + "_free(JNIEnv * env, jlong handle)",
+                "    uint32_t index = (uint32_t) handle - 1;",
+                "    uint32_t gen = (uint32_t) ((uint64_t) handle >> 32);",
+                "    if (handle == 0) {",
+                "        return 0;",
+                "    }",
+                "    if (index >= " + capacityMacro + " || (gen & 1) == 0) {",
+                "        " + staleFn + "(env, handle);",
+                "        return 0;",
+                "    }",
+                "    void * pointer = __atomic_load_n(&" + values + "[index], __ATOMIC_RELAXED);",
+                "    uint32_t expected = gen;",
+                "    if (!__atomic_compare_exchange_n(&" + generations + "[index], &expected, gen + 1, 0, __ATOMIC_ACQ_REL, __ATOMIC_RELAXED)) {",
+                "        " + staleFn + "(env, handle);",
+                "        return 0;",
+                "    }",
+                "    uint64_t old = __atomic_load_n(&" + head + ", __ATOMIC_RELAXED);",
+                "    uint64_t replacement;",
+                "    do {",
+                "        __atomic_store_n(&" + next + "[index], (uint32_t) old, __ATOMIC_RELAXED);",
+                "        replacement = (((old >> 32) + 1) << 32) | (uint64_t) (index + 1);",
+                "    } while (!__atomic_compare_exchange_n(&" + head + ", &old, replacement, 1, __ATOMIC_RELEASE, __ATOMIC_RELAXED));",
+                "    return pointer;");
+
+        String self = field.isStatic() ? "" : ", jobject instance";
+        String getField = field.isStatic()
+                ? "(*env)->GetStaticLongField(env, " + scn + ", " + fieldRef + ")"
+                : "(*env)->GetLongField(env, instance, " + fieldRef + ")";
+        String setPrefix = field.isStatic()
+                ? "(*env)->SetStaticLongField(env, " + scn + ", " + fieldRef + ", "
+                : "(*env)->SetLongField(env, instance, " + fieldRef + ", ";
+
+        generation.header(
+                "",
+                "/**",
+                " * Resolves the handle stored in the " + name + " field, see " + table + "_lookup.",
+                " */");
+        wrapper(generation, scn, "void * " + table + "_get(JNIEnv * env" + self + ")",
+                "    return " + table + "_lookup(env, " + getField + ");");
+
+        generation.header(
+                "",
+                "/**",
+                " * Stores a new handle for pointer in the " + name + " field, the previous handle in the field is not freed.",
+                " * Returns JNI_FALSE and throws a java exception if the table is full.",
+                " */");
+        wrapper(generation, scn, "jboolean " + table + "_set(JNIEnv * env" + self + ", void * pointer)",
+                "    jlong handle = " + table + "_new(env, pointer);",
+                "    if (handle == 0) {",
+                "        return JNI_FALSE;",
+                "    }",
+                "    " + setPrefix + "handle);",
+                "    return JNI_TRUE;");
+
+        generation.header(
+                "",
+                "/**",
+                " * Frees the handle stored in the " + name + " field, sets the field to 0 and returns the pointer, see " + table + "_free.",
+                " */");
+        wrapper(generation, scn, "void * " + table + "_clear(JNIEnv * env" + self + ")",
+                "    jlong handle = " + getField + ";",
+                "    void * pointer = " + table + "_free(env, handle);",
+                "    if (handle != 0 && !(*env)->ExceptionCheck(env)) {",
+                "        " + setPrefix + "0);",
+                "    }",
+                "    return pointer;");
+        generation.header("");
+    }
+
+    //Preallocated instances held as global refs. The in use flags live in native memory and are shared with the generated
+    //java pool through a direct ByteBuffer, both sides claim and free a slot with a compare and swap so a double release is detected.
+    protected void generatePool(Generation generation, Member member, JavaClass clazz) {
+        String scn = simpleClassName(clazz.getClassName());
+        String nat = nativeClassName(clazz.getClassName());
+        String cn = clazz.getClassName();
+        int capacity = member.getPoolSize();
+        if (member.getPoolFile() == null) {
+            throw new IllegalArgumentException("poolSize of " + nat + " requires poolFile");
+        }
+
+        boolean found = false;
+        for (Method m : clazz.getMethods()) {
+            if (m.getName().equals("<init>") && m.getSignature().equals("()V")) {
+                found = true;
+            }
+        }
+        if (!found || clazz.isAbstract()) {
+            throw new IllegalArgumentException(nat + " must be a concrete class with a no argument constructor to be pooled");
+        }
+
+        File javaFile = new File(member.getPoolFile());
+        String pool = javaClassName(javaFile);
+        String pkg = clazz.getPackageName();
+        String poolNat = pkg.isEmpty() ? pool : pkg.replace('.', '/') + "/" + pool;
+
+        String prefix = "jpool_" + scn;
+        String instances = prefix + "_instances";
+        String state = prefix + "_state";
+        String next = prefix + "_next";
+        String poolRef = prefix + "_class";
+        String attachRef = prefix + "_attach";
+        String detachRef = prefix + "_detach";
+        String ctorRef = prefix + "_ctor";
+        String attachSig = "([Ljava/lang/Object;Ljava/nio/ByteBuffer;)V";
+
+        generation.impl(
+                "static jobject " + instances + "[" + capacity + "];",
+                "static jint " + state + "[" + capacity + "];",
+                "static jint " + next + " = 0;",
+                "static jclass " + poolRef + " = 0;",
+                "static jmethodID " + attachRef + " = 0;",
+                "static jmethodID " + detachRef + " = 0;",
+                "static jmethodID " + ctorRef + " = 0;");
+
+        generation.init(
+                "    " + poolRef + " = makeGlobalClassRef(env, \"" + poolNat + "\");",
+                "    if (" + poolRef + " == 0) {",
+                "        return JNI_FALSE;",
+                "    }",
+                "    " + attachRef + " = (*env) -> GetStaticMethodID(env, " + poolRef + ", \"attach\", \"" + attachSig + "\");",
+                "    " + detachRef + " = (*env) -> GetStaticMethodID(env, " + poolRef + ", \"detach\", \"()V\");",
+                "    " + ctorRef + " = (*env) -> GetMethodID(env, " + scn + ", \"<init>\", \"()V\");",
+                "    if (" + attachRef + " == 0 || " + detachRef + " == 0 || " + ctorRef + " == 0) {",
+                "        (*env) -> ExceptionClear(env);",
+                "        (*env) -> ThrowNew(env, internal_Exception, \"cant find " + poolNat + ".attach" + attachSig + ", " + poolNat + ".detach()V or " + nat + ".<init>()V\");",
+                "        return JNI_FALSE;",
+                "    }",
+                "    jobjectArray pool_array_" + scn + " = (*env) -> NewObjectArray(env, " + capacity + ", " + scn + ", 0);",
+                "    if (pool_array_" + scn + " == 0) {",
+                "        (*env) -> ExceptionClear(env);",
+                "        (*env) -> ThrowNew(env, internal_Exception, \"cant create the instance array for the pool of " + nat + "\");",
+                "        return JNI_FALSE;",
+                "    }",
+                "    for (jsize i = 0; i < " + capacity + "; i++) {",
+                "        jobject pooled = (*env) -> NewObject(env, " + scn + ", " + ctorRef + ");",
+                "        if (pooled == 0) {",
+                "            (*env) -> DeleteLocalRef(env, pool_array_" + scn + ");",
+                "            (*env) -> ExceptionClear(env);",
+                "            (*env) -> ThrowNew(env, internal_Exception, \"cant create pooled " + nat + "\");",
+                "            return JNI_FALSE;",
+                "        }",
+                "        (*env) -> SetObjectArrayElement(env, pool_array_" + scn + ", i, pooled);",
+                "        " + instances + "[i] = (*env) -> NewGlobalRef(env, pooled);",
+                "        (*env) -> DeleteLocalRef(env, pooled);",
+                "        if (" + instances + "[i] == 0) {",
+                "            (*env) -> DeleteLocalRef(env, pool_array_" + scn + ");",
+                "            (*env) -> ThrowNew(env, internal_Exception, \"cant create global ref to pooled " + nat + "\");",
+                "            return JNI_FALSE;",
+                "        }",
+                "        " + state + "[i] = 0;",
+                "    }",
+                "    jobject pool_buffer_" + scn + " = (*env) -> NewDirectByteBuffer(env, (void*) " + state + ", (jlong) sizeof(" + state + "));",
+                "    if (pool_buffer_" + scn + " == 0) {",
+                "        (*env) -> DeleteLocalRef(env, pool_array_" + scn + ");",
+                "        (*env) -> ExceptionClear(env);",
+                "        (*env) -> ThrowNew(env, internal_Exception, \"cant create direct ByteBuffer for the pool of " + nat + "\");",
+                "        return JNI_FALSE;",
+                "    }",
+                "    (*env) -> CallStaticVoidMethod(env, " + poolRef + ", " + attachRef + ", pool_array_" + scn + ", pool_buffer_" + scn + ");",
+                "    (*env) -> DeleteLocalRef(env, pool_array_" + scn + ");",
+                "    (*env) -> DeleteLocalRef(env, pool_buffer_" + scn + ");",
+                "    if ((*env) -> ExceptionCheck(env)) {",
+                "        return JNI_FALSE;",
+                "    }",
+                "");
+
+        generation.destroy(
+                "    if (" + poolRef + " != 0) {",
+                "        if (" + detachRef + " != 0) {",
+                "            (*env) -> CallStaticVoidMethod(env, " + poolRef + ", " + detachRef + ");",
+                "            (*env) -> ExceptionClear(env);",
+                "        }",
+                "        (*env) -> DeleteGlobalRef(env, " + poolRef + ");",
+                "        " + poolRef + " = 0;",
+                "    }",
+                "    for (jsize i = 0; i < " + capacity + "; i++) {",
+                "        if (" + instances + "[i] != 0) {",
+                "            (*env) -> DeleteGlobalRef(env, " + instances + "[i]);",
+                "            " + instances + "[i] = 0;",
+                "        }",
+                "    }",
+                "    " + attachRef + " = 0;",
+                "    " + detachRef + " = 0;",
+                "    " + ctorRef + " = 0;");
+
+        generation.header(
+                "",
+                "/**",
+                " * Takes one of the " + capacity + " preallocated " + scn + " instances that are shared with " + pool + ".",
+                " * Returns a new local reference to it and stores its slot in index, index may be NULL.",
+                " * Returns NULL without a pending exception if every instance is in use.",
+                " * The instance is returned to the pool by " + pool + ".release in java or " + prefix + "_release.",
+                " */");
+        wrapper(generation, scn, "jobject " + prefix + "_acquire(JNIEnv * env, jint * index)",
+                "    jint start = __atomic_fetch_add(&" + next + ", 1, __ATOMIC_RELAXED);",
+                "    for (jint i = 0; i < " + capacity + "; i++) {",
+                "        jint slot = (jint) (((unsigned int) start + (unsigned int) i) % " + capacity + "u);",
+                "        jint expected = 0;",
+                "        if (__atomic_load_n(&" + state + "[slot], __ATOMIC_RELAXED) != 0) {",
+                "            continue;",
+                "        }",
+                "        if (!__atomic_compare_exchange_n(&" + state + "[slot], &expected, 1, 0, __ATOMIC_ACQUIRE, __ATOMIC_RELAXED)) {",
+                "            continue;",
+                "        }",
+                "        jobject instance = (*env) -> NewLocalRef(env, " + instances + "[slot]);",
+                "        if (instance == 0) {",
+                "            __atomic_store_n(&" + state + "[slot], 0, __ATOMIC_RELEASE);",
+                "            throw_internal_OutOfMemoryError(env, \"NewLocalRef\");",
+                "            return 0;",
+                "        }",
+                "        if (index != 0) {",
+                "            *index = slot;",
+                "        }",
+                "        return instance;",
+                "    }",
+                "    return 0;");
+
+        generation.header(
+                "",
+                "/**",
+                " * Returns the instance in the slot stored by " + prefix + "_acquire to the pool, for instances that never reached java.",
+                " * Throws an IllegalArgumentException if the slot is not in use, for example because it was already released.",
+                " */");
+        wrapper(generation, scn, "void " + prefix + "_release(JNIEnv * env, jint index)",
+                "    if (index < 0 || index >= " + capacity + ") {",
+                "        throw_internal_IllegalArgumentException(env, \"" + prefix + "_release index out of range\");",
+                "        return;",
+                "    }",
+                "    jint expected = 1;",
+                "    if (!__atomic_compare_exchange_n(&" + state + "[index], &expected, 0, 0, __ATOMIC_RELEASE, __ATOMIC_RELAXED)) {",
+                "        throw_internal_IllegalArgumentException(env, \"" + prefix + "_release slot is not in use\");",
+                "    }");
+        generation.header("");
+
+        StringBuilder java = javaHeader(clazz,
+                "java.lang.invoke.MethodHandles",
+                "java.lang.invoke.VarHandle",
+                "java.nio.ByteBuffer",
+                "java.nio.ByteOrder",
+                "java.util.IdentityHashMap",
+                "java.util.Map");
+        java.append("/**\n");
+        java.append(" * Pool of " + capacity + " " + cn + " instances shared with native code, see " + prefix + "_acquire.\n");
+        java.append(" * Instances received from native code or from acquire must be given back with release once they are no longer used.\n");
+        java.append(" */\n");
+        java.append("public final class " + pool + " {\n");
+        java.append("\n");
+        java.append("    public static final int CAPACITY = " + capacity + ";\n");
+        java.append("\n");
+        java.append("    private static final VarHandle STATE = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());\n");
+        java.append("\n");
+        java.append("    private static final class Slots {\n");
+        java.append("        private final " + cn + "[] instances = new " + cn + "[CAPACITY];\n");
+        java.append("        private final Map<" + cn + ", Integer> index = new IdentityHashMap<>();\n");
+        java.append("        private final ByteBuffer state;\n");
+        java.append("\n");
+        java.append("        private Slots(Object[] instances, ByteBuffer state) {\n");
+        java.append("            for (int i = 0; i < CAPACITY; i++) {\n");
+        java.append("                this.instances[i] = (" + cn + ") instances[i];\n");
+        java.append("                this.index.put(this.instances[i], i);\n");
+        java.append("            }\n");
+        java.append("            this.state = state;\n");
+        java.append("        }\n");
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    private static volatile Slots slots;\n");
+        java.append("\n");
+        java.append("    private " + pool + "() {\n");
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    static void attach(Object[] instances, ByteBuffer state) {\n");
+        java.append("        slots = new Slots(instances, state);\n");
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    static void detach() {\n");
+        java.append("        slots = null;\n");
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    /**\n");
+        java.append("     * Returns a free instance or null if every instance is in use or the native library is not initialized.\n");
+        java.append("     */\n");
+        java.append("    public static " + cn + " acquire() {\n");
+        java.append("        Slots current = slots;\n");
+        java.append("        if (current == null) {\n");
+        java.append("            return null;\n");
+        java.append("        }\n");
+        java.append("        for (int i = 0; i < CAPACITY; i++) {\n");
+        java.append("            if ((int) STATE.getOpaque(current.state, i * 4) == 0 && STATE.compareAndSet(current.state, i * 4, 0, 1)) {\n");
+        java.append("                return current.instances[i];\n");
+        java.append("            }\n");
+        java.append("        }\n");
+        java.append("        return null;\n");
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    /**\n");
+        java.append("     * Returns the instance to the pool, it must not be used afterwards.\n");
+        java.append("     * Throws IllegalStateException if the instance is not in use, for example because it was already released.\n");
+        java.append("     */\n");
+        java.append("    public static void release(" + cn + " instance) {\n");
+        java.append("        Slots current = slots;\n");
+        java.append("        Integer slot = current == null ? null : current.index.get(instance);\n");
+        java.append("        if (slot == null) {\n");
+        java.append("            throw new IllegalArgumentException(\"instance is not part of the pool\");\n");
+        java.append("        }\n");
+        java.append("        if (!STATE.compareAndSet(current.state, slot * 4, 1, 0)) {\n");
+        java.append("            throw new IllegalStateException(\"instance is not in use\");\n");
+        java.append("        }\n");
+        java.append("    }\n");
+        java.append("}\n");
+
+        writeFile(javaFile, java.toString());
+    }
+
+    //Binds the native methods of the class with RegisterNatives so the jvm never has to look up Java_ symbols.
+    //The implementations are declared in the header, a mismatch with the java signature fails to compile or link.
+    protected void generateNatives(Generation generation, JavaClass clazz) {
+        String scn = simpleClassName(clazz.getClassName());
+        String nat = nativeClassName(clazz.getClassName());
+        String cn = clazz.getClassName();
+
+        Map<String, Method> sorter = new TreeMap<>();
+        for (Method m : clazz.getMethods()) {
+            if (m.isNative()) {
+                sorter.put(m.getName() + m.getSignature(), m);
+            }
+        }
+
+        if (sorter.isEmpty()) {
+            throw new IllegalArgumentException(nat + " is listed in natives but has no native methods");
+        }
+
+        generation.scope(scn);
+        //Registration has to happen before java calls any of the methods, which may be before any wrapper is used.
+        generation.eager();
+
+        String table = scn + "_natives";
+        List<String> entries = new ArrayList<>();
+        Map<String, Integer> counter = new TreeMap<>();
+        for (Method m : sorter.values()) {
+            String name = m.getName();
+            Integer cnt = counter.get(name);
+            if (cnt == null) {
+                cnt = -1;
+            }
+            cnt++;
+            counter.put(name, cnt);
+
+            String function = "jnative_" + scn + "_" + name + (cnt > 0 ? "_" + cnt : "");
+            String self = m.isStatic() ? "jclass clazz" : "jobject instance";
+            generation.header(
+                    "/**",
+                    " * Implementation of the native method " + cn + "." + name + m.getSignature() + " registered by jnigenerator_init.",
+                    " * Must be implemented by you.",
+                    " */",
+                    "JNIGENERATOR_HIDDEN " + getCType(m.getReturnType()) + " " + function + "(JNIEnv * env, " + self + getCParameters(m, NO_SUBSTITUTION) + ");",
+                    "");
+
+            //RegisterNatives takes void pointers, this keeps a function with the wrong type out of the table.
+            StringBuilder pointer = new StringBuilder(getCType(m.getReturnType()) + " (*)(JNIEnv *, " + (m.isStatic() ? "jclass" : "jobject"));
+            for (Type type : m.getArgumentTypes()) {
+                pointer.append(", ").append(getCType(type));
+            }
+            pointer.append(")");
+            generation.impl("_Static_assert(_Generic(" + function + ", " + pointer + ": 1, default: 0), \"" + function + " does not match " + cn + "." + name + m.getSignature() + "\");");
+            entries.add("    {(char *) \"" + name + "\", (char *) \"" + m.getSignature() + "\", (void *) " + function + "}");
+        }
+
+        generation.impl("");
+        generation.impl("static const JNINativeMethod " + table + "[] = {");
+        generation.impl(String.join(",\n", entries));
+        generation.impl("};");
+
+        generation.init(
+                "    if ((*env) -> RegisterNatives(env, " + scn + ", " + table + ", " + entries.size() + ") != 0) {",
+                "        (*env) -> ExceptionClear(env);",
+                "        (*env) -> ThrowNew(env, internal_Exception, \"cant register native methods of " + nat + "\");",
+                "        return JNI_FALSE;",
+                "    }",
+                "");
+
+        //java must not call into the library after it is destroyed, this needs the class reference that the scope deletes.
+        generation.destroyFirst(
+                "    if (" + scn + " != 0) {",
+                "        jthrowable natives_pending_" + scn + " = (*env) -> ExceptionOccurred(env);",
+                "        (*env) -> ExceptionClear(env);",
+                "        (*env) -> UnregisterNatives(env, " + scn + ");",
+                "        if (natives_pending_" + scn + " != 0) {",
+                "            (*env) -> Throw(env, natives_pending_" + scn + ");",
+                "            (*env) -> DeleteLocalRef(env, natives_pending_" + scn + ");",
+                "        }",
+                "    }");
+
+        generation.scope(null);
+    }
+
+    //Native code queues the arguments of a void java method in a single producer single consumer ring that is shared with
+    //java as a direct ByteBuffer. The producer only touches native memory, the generated java decoder consumes the records
+    //either when native code flushes the ring with a single call into java or from a java thread that polls the ring.
+    protected void generateBatch(Generation generation, Member member, JavaClass clazz) {
+        String scn = simpleClassName(clazz.getClassName());
+        String nat = nativeClassName(clazz.getClassName());
+        String cn = clazz.getClassName();
+        String methodName = member.getBatchMethod();
+        if (member.getBatchFile() == null) {
+            throw new IllegalArgumentException("batchMethod " + methodName + " of " + nat + " requires batchFile");
+        }
+
+        Method method = null;
+        for (Method m : clazz.getMethods()) {
+            if (!m.getName().equals(methodName)) {
+                continue;
+            }
+
+            if (method != null) {
+                throw new IllegalArgumentException("batchMethod " + methodName + " of " + nat + " is overloaded");
+            }
+            method = m;
+        }
+
+        if (method == null) {
+            throw new IllegalArgumentException("batchMethod " + methodName + " not found in " + nat);
+        }
+
+        if (method.isPrivate() || method.getReturnType() != Type.VOID) {
+            throw new IllegalArgumentException("batchMethod " + methodName + " of " + nat + " must be a non private method returning void");
+        }
+
+        int capacity = member.getBatchSize();
+        int flush = member.getBatchFlush() <= 0 ? capacity : member.getBatchFlush();
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1 || flush > capacity) {
+            throw new IllegalArgumentException("batchSize " + capacity + " and batchFlush " + flush + " of " + nat + " are invalid, batchSize must be a power of two and batchFlush may not exceed it");
+        }
+
+        Type[] argumentTypes = method.getArgumentTypes();
+        if (argumentTypes.length == 0) {
+            throw new IllegalArgumentException("batchMethod " + methodName + " of " + nat + " has no parameters, a record would be empty");
+        }
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < argumentTypes.length; i++) {
+            if (!(argumentTypes[i] instanceof BasicType)) {
+                throw new IllegalArgumentException("batchMethod " + methodName + " of " + nat + " may only have primitive parameters");
+            }
+            names.add("p" + i);
+        }
+
+        StructLayout layout = new StructLayout(names, Arrays.asList(argumentTypes));
+        File javaFile = new File(member.getBatchFile());
+        String decoder = javaClassName(javaFile);
+        String pkg = clazz.getPackageName();
+        String decoderNat = pkg.isEmpty() ? decoder : pkg.replace('.', '/') + "/" + decoder;
+
+        //head is written by the consumer, tail by the producer, each on its own cache line followed by the busy flag
+        //that keeps a second consumer out and the records.
+        int headOffset = 0;
+        int tailOffset = 64;
+        int busyOffset = 128;
+        int recordsOffset = 192;
+
+        String batchName = "jbatch_" + scn + "_" + methodName;
+        String recordName = batchName + "_record";
+        String capacityMacro = "JBATCH_" + scn + "_" + methodName + "_CAPACITY";
+        String decoderRef = batchName + "_decoder";
+        String drainRef = batchName + "_drain";
+        String drainSig = "(Ljava/lang/Object;Ljava/nio/ByteBuffer;)I";
+
+        generation.impl("static jclass " + decoderRef + " = 0;");
+        generation.impl("static jmethodID " + drainRef + " = 0;");
+        generation.init(
+                "    " + decoderRef + " = makeGlobalClassRef(env, \"" + decoderNat + "\");",
+                "    if (" + decoderRef + " == 0) {",
+                "        return JNI_FALSE;",
+                "    }",
+                "    " + drainRef + " = (*env) -> GetStaticMethodID(env, " + decoderRef + ", \"drain\", \"" + drainSig + "\");",
+                "    if (" + drainRef + " == 0) {",
+                "        (*env) -> ExceptionClear(env);",
+                "        (*env) -> ThrowNew(env, internal_Exception, \"cant find " + decoderNat + ".drain" + drainSig + "\");",
+                "        return JNI_FALSE;",
+                "    }",
+                "");
+        generation.destroy(
+                "    " + drainRef + " = 0;",
+                "    if (" + decoderRef + " != 0) {",
+                "        (*env) -> DeleteGlobalRef(env, " + decoderRef + ");",
+                "        " + decoderRef + " = 0;",
+                "    }");
+
+        generation.impl("typedef struct {");
+        for (StructLayout.Entry e : layout.getEntries()) {
+            generation.impl("    " + getCType(e.getType()) + " " + e.getName() + ";");
+        }
+        generation.impl("} " + recordName + ";", "");
+        for (StructLayout.Entry e : layout.getEntries()) {
+            generation.impl("_Static_assert(offsetof(" + recordName + ", " + e.getName() + ") == " + e.getOffset() + ", \"" + recordName + "." + e.getName() + " offset\");");
+        }
+        generation.impl(
+                "_Static_assert(sizeof(" + recordName + ") == " + layout.getSize() + ", \"" + recordName + " size\");",
+                "",
+                "#include <sched.h>",
+                "",
+                "struct " + batchName + " {",
+                "    jobject target;",
+                "    jobject buffer;",
+                "    char * ring;",
+                "    jlong tail;",
+                "    jlong head;",
+                "};",
+                "",
+                "#define " + batchName + "_head(batch) ((jlong *) ((batch)->ring + " + headOffset + "))",
+                "#define " + batchName + "_tail(batch) ((jlong *) ((batch)->ring + " + tailOffset + "))",
+                "#define " + batchName + "_records(batch) ((" + recordName + " *) ((batch)->ring + " + recordsOffset + "))",
+                "");
+
+        generation.header(
+                "#define " + capacityMacro + " " + capacity,
+                "",
+                "/**",
+                " * Ring of " + capacity + " queued " + scn + "." + methodName + " calls. One thread produces records with " + batchName + "_offer or",
+                " * " + batchName + "_add, one java thread at a time consumes them through " + decoder + ".drain.",
+                " */",
+                "typedef struct " + batchName + " " + batchName + ";",
+                "",
+                "/**",
+                " * Allocates a ring that delivers its records to " + (method.isStatic() ? "the static method " + scn + "." + methodName : "target." + methodName) + ".",
+                " * Returns NULL and throws a java exception on failure.",
+                " */");
+
+        String targetParam = method.isStatic() ? "" : ", jobject target";
+        List<String> open = new ArrayList<>();
+        if (!method.isStatic()) {
+            open.addAll(Arrays.asList(
+                    "    if (target == 0) {",
+                    "        throw_internal_NullPointerException(env, \"" + batchName + "_open target is NULL\");",
+                    "        return 0;",
+                    "    }"));
+        }
+        open.addAll(Arrays.asList(
+                "    " + batchName + " * batch = (" + batchName + " *) calloc(1, sizeof(" + batchName + "));",
+                "    if (batch == 0) {",
+                "        throw_internal_OutOfMemoryError(env, \"calloc\");",
+                "        return 0;",
+                "    }",
+                "    size_t size = (" + recordsOffset + " + (size_t) " + capacity + " * sizeof(" + recordName + ") + 63) & ~(size_t) 63;",
+                "    batch->ring = (char *) aligned_alloc(64, size);",
+                "    if (batch->ring == 0) {",
+                "        free(batch);",
+                "        throw_internal_OutOfMemoryError(env, \"aligned_alloc\");",
+                "        return 0;",
+                "    }",
+                "    memset(batch->ring, 0, size);",
+                "    jobject buffer = (*env)->NewDirectByteBuffer(env, (void*) batch->ring, (jlong) size);",
+                "    if (buffer == 0) {",
+                "        free(batch->ring);",
+                "        free(batch);",
+                "        throw_internal_OutOfMemoryError(env, \"NewDirectByteBuffer\");",
+                "        return 0;",
+                "    }",
+                "    batch->buffer = (*env)->NewGlobalRef(env, buffer);",
+                "    (*env)->DeleteLocalRef(env, buffer);",
+                "    batch->target = " + (method.isStatic() ? "0" : "(*env)->NewGlobalRef(env, target)") + ";",
+                "    if (batch->buffer == 0" + (method.isStatic() ? "" : " || batch->target == 0") + ") {",
+                "        if (batch->buffer != 0) {",
+                "            (*env)->DeleteGlobalRef(env, batch->buffer);",
+                "        }",
+                "        if (batch->target != 0) {",
+                "            (*env)->DeleteGlobalRef(env, batch->target);",
+                "        }",
+                "        free(batch->ring);",
+                "        free(batch);",
+                "        throw_internal_OutOfMemoryError(env, \"NewGlobalRef\");",
+                "        return 0;",
+                "    }",
+                "    return batch;"));
+        wrapper(generation, scn, batchName + " * " + batchName + "_open(JNIEnv * env" + targetParam + ")", open.toArray(new String[0]));
+
+        StringBuilder params = new StringBuilder();
+        StringBuilder args = new StringBuilder();
+        StringBuilder assign = new StringBuilder();
+        for (StructLayout.Entry e : layout.getEntries()) {
+            params.append(", " + getCType(e.getType()) + " " + e.getName());
+            args.append(", " + e.getName());
+            assign.append("    record->" + e.getName() + " = " + e.getName() + ";\n");
+        }
+
+        generation.header(
+                "",
+                "/**",
+                " * Queues a call without a JNIEnv and without locking, only the producer thread of the ring may call this.",
+                " * Returns JNI_FALSE if the ring is full.",
+                " */",
+                "jboolean " + batchName + "_offer(" + batchName + " * batch" + params + ");",
+                "");
+        generation.impl(
+                "jboolean " + batchName + "_offer(" + batchName + " * batch" + params + ") {",
+                "    jlong tail = batch->tail;",
+                "    if (tail - batch->head >= " + capacity + ") {",
+                "        batch->head = __atomic_load_n(" + batchName + "_head(batch), __ATOMIC_ACQUIRE);",
+                "        if (tail - batch->head >= " + capacity + ") {",
+                "            return JNI_FALSE;",
+                "        }",
+                "    }",
+                "    " + recordName + " * record = &" + batchName + "_records(batch)[tail & " + (capacity - 1) + "];",
+                assign + "    batch->tail = tail + 1;",
+                "    __atomic_store_n(" + batchName + "_tail(batch), tail + 1, __ATOMIC_RELEASE);",
+                "    return JNI_TRUE;",
+                "}",
+                "");
+
+        generation.impl(
+                "//calls drain once. Returns the number of delivered records, -1 if another java thread is draining the ring",
+                "//and -2 if the callback threw.",
+                "static jint " + batchName + "_deliver(JNIEnv * env, " + batchName + " * batch) {",
+                "    if (__atomic_load_n(" + batchName + "_head(batch), __ATOMIC_ACQUIRE) == batch->tail) {",
+                "        return 0;",
+                "    }",
+                "    jint delivered = (*env)->CallStaticIntMethod(env, " + decoderRef + ", " + drainRef + ", batch->target, batch->buffer);",
+                "    return (*env)->ExceptionCheck(env) ? -2 : delivered;",
+                "}",
+                "");
+
+        generation.header(
+                "/**",
+                " * Delivers the queued records with a single call into java. If a java thread is draining the ring at the same",
+                " * time the call returns JNI_TRUE at once without delivering anything, that thread only delivers the records that",
+                " * were queued when it started. Returns JNI_FALSE if the callback threw, the exception is left pending and the",
+                " * records after the failing one stay queued.",
+                " * Only the producer thread may call this and not from within the callback.",
+                " */");
+        wrapper(generation, scn, "jboolean " + batchName + "_flush(JNIEnv * env, " + batchName + " * batch)",
+                "    return " + batchName + "_deliver(env, batch) == -2 ? JNI_FALSE : JNI_TRUE;");
+
+        generation.header(
+                "",
+                "/**",
+                " * Queues a call like " + batchName + "_offer. A full ring is flushed first, the ring is flushed after the",
+                " * call once " + flush + " records are queued. While a java thread is draining a full ring this keeps yielding and",
+                " * retrying until that thread has made room. Returns JNI_FALSE if a flush failed, the call is not queued if that",
+                " * happened before it was added.",
+                " */");
+        wrapper(generation, scn, "jboolean " + batchName + "_add(JNIEnv * env, " + batchName + " * batch" + params + ")",
+                "    while (!" + batchName + "_offer(batch" + args + ")) {",
+                "        jint delivered = " + batchName + "_deliver(env, batch);",
+                "        if (delivered == -2) {",
+                "            return JNI_FALSE;",
+                "        }",
+                "        if (delivered == -1) {",
+                "            sched_yield();",
+                "        }",
+                "    }",
+                "    if (batch->tail - __atomic_load_n(" + batchName + "_head(batch), __ATOMIC_ACQUIRE) >= " + flush + ") {",
+                "        return " + batchName + "_flush(env, batch);",
+                "    }",
+                "    return JNI_TRUE;");
+
+        generation.header(
+                "",
+                "/**",
+                " * Returns a new local reference to the direct ByteBuffer backing the ring, java polls it with " + decoder + ".drain.",
+                " */");
+        wrapper(generation, scn, "jobject " + batchName + "_buffer(JNIEnv * env, " + batchName + " * batch)",
+                "    return (*env)->NewLocalRef(env, batch->buffer);");
+
+        generation.header(
+                "",
+                "/**",
+                " * Frees the ring, records that were not delivered are discarded. Java must no longer drain the buffer.",
+                " */");
+        wrapper(generation, scn, "void " + batchName + "_close(JNIEnv * env, " + batchName + " * batch)",
+                "    if (batch == 0) {",
+                "        return;",
+                "    }",
+                "    (*env)->DeleteGlobalRef(env, batch->buffer);",
+                "    if (batch->target != 0) {",
+                "        (*env)->DeleteGlobalRef(env, batch->target);",
+                "    }",
+                "    free(batch->ring);",
+                "    free(batch);");
+        generation.header("");
+
+        StringBuilder java = javaHeader(clazz, "java.lang.invoke.MethodHandles", "java.lang.invoke.VarHandle", "java.nio.ByteBuffer", "java.nio.ByteOrder");
+        java.append("/**\n");
+        java.append(" * Consumes the " + recordName + " records queued by native code and calls " + cn + "." + methodName + " for each of them.\n");
+        java.append(" */\n");
+        java.append("public final class " + decoder + " {\n");
+        java.append("\n");
+        java.append("    public static final int SIZE = " + layout.getSize() + ";\n");
+        java.append("    public static final int CAPACITY = " + capacity + ";\n");
+        for (StructLayout.Entry e : layout.getEntries()) {
+            java.append("    public static final int OFFSET_" + e.getName() + " = " + e.getOffset() + ";\n");
+        }
+        java.append("\n");
+        java.append("    private static final int HEAD = " + headOffset + ";\n");
+        java.append("    private static final int TAIL = " + tailOffset + ";\n");
+        java.append("    private static final int BUSY = " + busyOffset + ";\n");
+        java.append("    private static final int RECORDS = " + recordsOffset + ";\n");
+        java.append("\n");
+        java.append("    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());\n");
+        java.append("    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());\n");
+        java.append("\n");
+        java.append("    private " + decoder + "() {\n");
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    /**\n");
+        java.append("     * Calls " + methodName + " for every record that was queued when the call started and returns the number of records\n");
+        java.append("     * consumed. Returns -1 if another thread is draining the ring. If " + methodName + " throws, the records after the\n");
+        java.append("     * failing one stay queued.\n");
+        java.append("     */\n");
+        java.append("    public static int drain(Object target, ByteBuffer ring) {\n");
+        java.append("        if (!INT.compareAndSet(ring, BUSY, 0, 1)) {\n");
+        java.append("            return -1;\n");
+        java.append("        }\n");
+        java.append("\n");
+        java.append("        try {\n");
+        java.append("            ByteBuffer records = ring.order(ByteOrder.nativeOrder());\n");
+        if (!method.isStatic()) {
+            java.append("            " + cn + " instance = (" + cn + ") target;\n");
+        }
+        java.append("            long head = (long) LONG.getAcquire(ring, HEAD);\n");
+        java.append("            long tail = (long) LONG.getAcquire(ring, TAIL);\n");
+        java.append("            int count = 0;\n");
+        java.append("            while (head != tail) {\n");
+        java.append("                int base = RECORDS + (int) (head & (CAPACITY - 1)) * SIZE;\n");
+        StringBuilder call = new StringBuilder();
+        for (StructLayout.Entry e : layout.getEntries()) {
+            Type type = e.getType();
+            String get = "records.get" + getByteBufferAccessor(type) + "(base + OFFSET_" + e.getName() + ")";
+            if (type.getType() == 4) {
+                get = get + " != 0";
+            }
+            java.append("                " + type + " " + e.getName() + " = " + get + ";\n");
+            call.append(call.length() == 0 ? "" : ", ").append(e.getName());
+        }
+        java.append("                //the record is copied, the producer may reuse the slot while the method runs\n");
+        java.append("                LONG.setRelease(ring, HEAD, ++head);\n");
+        java.append("                count++;\n");
+        java.append("                " + (method.isStatic() ? cn : "instance") + "." + methodName + "(" + call + ");\n");
+        java.append("            }\n");
+        java.append("            return count;\n");
+        java.append("        } finally {\n");
+        java.append("            INT.setRelease(ring, BUSY, 0);\n");
+        java.append("        }\n");
+        java.append("    }\n");
+        java.append("}\n");
+
+        writeFile(javaFile, java.toString());
+    }
+
+    //Region copies between a primitive array field and a C buffer, jcopyA_ reuses the current array if the length matches.
+    protected void generateArrayRegion(Generation generation, String scn, String name, Type type) {
+        String nativeFieldName = scn + "_" + name;
+        String ctype = getCType(type);
+        Type elementType = ((ArrayType) type).getElementType();
+        String ectype = getCType(elementType);
+        String eacc = getCAccessor(elementType);
+
+        generation.header(
+                "",
+                "/**",
+                " * Sets the " + name + " field to a new array holding a copy of the len elements of value, NULL sets the field to NULL.",
+                " * Java code holding the previous array never observes a change. Returns JNI_FALSE if allocating the array failed,",
+                " * a java exception is pending in that case.",
+                " */");
+        wrapper(generation, scn, "jboolean jsetA_" + nativeFieldName + "(JNIEnv * env, jobject instance, " + ectype + " * value, jsize len)",
+                "    if (value == 0) {",
+                "        (*env)->SetObjectField(env, instance, " + nativeFieldName + ", 0);",
+                "        return JNI_TRUE;",
+                "    }",
+                "    if (len < 0) {",
+                "        len = 0;",
+                "    }",
+                "    " + ctype + " tmp = (*env)->New" + eacc + "Array(env, len);",
+                "    if (tmp == 0) {",
+                "        throw_internal_OutOfMemoryError(env, \"New" + eacc + "Array\");",
+                "        return JNI_FALSE;",
+                "    }",
+                "    if (len > 0) {",
+                "        (*env)->Set" + eacc + "ArrayRegion(env, tmp, 0, len, (const " + ectype + "*) value);",
+                "    }",
+                "    (*env)->SetObjectField(env, instance, " + nativeFieldName + ", tmp);",
+                "    (*env)->DeleteLocalRef(env, tmp);",
+                "    return JNI_TRUE;");
+
+        generation.header(
+                "",
+                "/**",
+                " * Like jsetA_" + nativeFieldName + " but overwrites the elements of the current array in place when it is not NULL",
+                " * and has exactly len elements, no array is allocated then. Java code holding that array sees the new values,",
+                " * only use this when the array is not shared or sharing the update is intended.",
+                " */");
+        wrapper(generation, scn, "jboolean jcopyA_" + nativeFieldName + "(JNIEnv * env, jobject instance, " + ectype + " * value, jsize len)",
+                "    if (value == 0) {",
+                "        (*env)->SetObjectField(env, instance, " + nativeFieldName + ", 0);",
+                "        return JNI_TRUE;",
+                "    }",
+                "    if (len < 0) {",
+                "        len = 0;",
+                "    }",
+                "    " + ctype + " tmp = (" + ctype + ") (*env)->GetObjectField(env, instance, " + nativeFieldName + ");",
+                "    if (tmp == 0 || (*env)->GetArrayLength(env, tmp) != len) {",
+                "        (*env)->DeleteLocalRef(env, tmp);",
+                "        return jsetA_" + nativeFieldName + "(env, instance, value, len);",
+                "    }",
+                "    if (len > 0) {",
+                "        (*env)->Set" + eacc + "ArrayRegion(env, tmp, 0, len, (const " + ectype + "*) value);",
+                "    }",
+                "    (*env)->DeleteLocalRef(env, tmp);",
+                "    return JNI_TRUE;");
+
+        generation.header(
+                "",
+                "/**",
+                " * Copies up to len elements of the " + name + " array into buffer.",
+                " * Returns the number of elements copied or -1 if the field is NULL.",
+                " */");
+        wrapper(generation, scn, "jsize jgetA_" + nativeFieldName + "(JNIEnv * env, jobject instance, " + ectype + " * buffer, jsize len)",
+                "    " + ctype + " tmp = (" + ctype + ") (*env)->GetObjectField(env, instance, " + nativeFieldName + ");",
+                "    if (tmp == 0) {",
+                "        return -1;",
+                "    }",
+                "    jsize count = (*env)->GetArrayLength(env, tmp);",
+                "    if (count > len) {",
+                "        count = len < 0 ? 0 : len;",
+                "    }",
+                "    if (count > 0) {",
+                "        (*env)->Get" + eacc + "ArrayRegion(env, tmp, 0, count, buffer);",
+                "    }",
+                "    (*env)->DeleteLocalRef(env, tmp);",
+                "    return count;");
+    }
+
+    //Pinned access to the elements of a primitive array field, either critical or through Get<Type>ArrayElements.
+    protected void generateArrayElements(Generation generation, String scn, String name, Type type) {
+        String nativeFieldName = scn + "_" + name;
+        Type elementType = ((ArrayType) type).getElementType();
+        String ectype = getCType(elementType);
+        String eacc = getCAccessor(elementType);
+
+        generation.header(
+                "",
+                "/**",
+                " * Pins the elements of the " + name + " array, array and len are set to the array and its length.",
+                " * Returns NULL if the field is NULL or pinning failed, in the later case a java exception is pending.",
+                " * Always call the matching release function with the same array, even if NULL was returned.",
+                " * No JNI function may be called until jcritical_release_" + nativeFieldName + " is called.",
+                " */");
+        wrapper(generation, scn, ectype + " * jcritical_" + nativeFieldName + "(JNIEnv * env, jobject instance, jarray * array, jsize * len)",
+                "    *len = 0;",
+                "    *array = (*env)->GetObjectField(env, instance, " + nativeFieldName + ");",
+                "    if (*array == 0) {",
+                "        return 0;",
+                "    }",
+                "    *len = (*env)->GetArrayLength(env, *array);",
+                "    " + ectype + " * data = (" + ectype + " *) (*env)->GetPrimitiveArrayCritical(env, *array, 0);",
+                "    if (data == 0) {",
+                "        throw_internal_OutOfMemoryError(env, \"GetPrimitiveArrayCritical\");",
+                "        return 0;",
+                "    }",
+                "    JNIGEN_CRITICAL_ENTER(env);",
+                "    return data;");
+
+        generation.header("void jcritical_release_" + nativeFieldName + "(JNIEnv * env, jarray array, " + ectype + " * data, jint mode);");
+        generation.impl(
+                "void jcritical_release_" + nativeFieldName + "(JNIEnv * env, jarray array, " + ectype + " * data, jint mode) {",
+                "    if (data != 0) {",
+                "        JNIGEN_CRITICAL_EXIT(env);",
+                "        (*env)->ReleasePrimitiveArrayCritical(env, array, (void *) data, mode);",
+                "    }",
+                "    if (array != 0) {",
+                "        (*env)->DeleteLocalRef(env, array);",
+                "    }",
+                "}",
+                "");
+
+        generation.header(
+                "",
+                "/**",
+                " * Same as jcritical_" + nativeFieldName + " but uses Get" + eacc + "ArrayElements, JNI functions may be called while the elements are held.",
+                " */");
+        wrapper(generation, scn, ectype + " * jelements_" + nativeFieldName + "(JNIEnv * env, jobject instance, jarray * array, jsize * len)",
+                "    *len = 0;",
+                "    *array = (*env)->GetObjectField(env, instance, " + nativeFieldName + ");",
+                "    if (*array == 0) {",
+                "        return 0;",
+                "    }",
+                "    *len = (*env)->GetArrayLength(env, *array);",
+                "    " + ectype + " * data = (*env)->Get" + eacc + "ArrayElements(env, (" + getCType(type) + ") *array, 0);",
+                "    if (data == 0) {",
+                "        throw_internal_OutOfMemoryError(env, \"Get" + eacc + "ArrayElements\");",
+                "        return 0;",
+                "    }",
+                "    return data;");
+
+        generation.header("void jelements_release_" + nativeFieldName + "(JNIEnv * env, jarray array, " + ectype + " * data, jint mode);", "");
+        generation.impl(
+                "void jelements_release_" + nativeFieldName + "(JNIEnv * env, jarray array, " + ectype + " * data, jint mode) {",
+                "    if (data != 0) {",
+                "        (*env)->Release" + eacc + "ArrayElements(env, (" + getCType(type) + ") array, data, mode);",
+                "    }",
+                "    if (array != 0) {",
+                "        (*env)->DeleteLocalRef(env, array);",
+                "    }",
+                "}",
+                "");
+    }
+
+    private void generateMethod(Generation generation, String scn, Method m, String name, String nativeMethodRefName, String suffix) {
+
+
+        if (name.equals("<init>")) {
+            wrapper(generation, scn, "jobject jnew_" + scn + suffix + "(JNIEnv * env" + getCParameters(m, NO_SUBSTITUTION) + ")",
+                    "    jobject obj = (*env) -> NewObject(env, " + scn + ", " + nativeMethodRefName + getCParameterUse(m, NO_CASTS) + ");",
+                    "    if (obj == NULL) {",
+                    "        throw_internal_OutOfMemoryError(env, \"NewObject\");",
+                    "    }",
+                    "    return obj;"
+            );
+
+            return;
+        }
+
+        String rctype = getCType(m.getReturnType());
+        String acc = getCAccessor(m.getReturnType());
+        String cast = "";
+        if ("Object".equals(acc) && !"jobject".equals(rctype)) {
+            cast = "(" + rctype + ") ";
+        }
+
+        if (!"void".equals(rctype)) {
+            cast = "return " + cast;
+        }
+
+        if (m.isStatic()) {
+            wrapper(generation, scn, rctype + " jcall_" + scn + "_" + name + suffix + "(JNIEnv * env" + getCParameters(m, NO_SUBSTITUTION) + ")",
+                    "    " + cast + "(*env) -> CallStatic" + acc + "Method(env, " + scn + ", " + nativeMethodRefName + getCParameterUse(m, NO_CASTS) + ");"
+            );
+
+            return;
+        }
+
+        wrapper(generation, scn, rctype + " jcall_" + scn + "_" + name + suffix + "(JNIEnv * env, jobject instance" + getCParameters(m, NO_SUBSTITUTION) + ")",
+                "    " + cast + "(*env) -> Call" + acc + "Method(env, instance, " + nativeMethodRefName + getCParameterUse(m, NO_CASTS) + ");"
+        );
+
+    }
+
+    //Counters and histograms behind JNIGENERATOR_STATS, the indices used by JNIGEN_STATS are assigned in wrapperBegin.
+    protected void generateStats(Generation generation) {
+        List<String> functions = generation.getStats();
+        List<String> scopes = new ArrayList<>(generation.getScopes());
+        int functionCount = functions.size();
+        int scopeCount = scopes.size();
+
+        generation.impl(
+                "",
+                "#ifdef JNIGENERATOR_STATS",
+                "#include <time.h>",
+                "#define JNIGENERATOR_STATS_FUNCTIONS " + functionCount,
+                "#define JNIGENERATOR_STATS_SCOPES " + scopeCount,
+                "static long jnigenerator_stat_calls[" + Math.max(functionCount, 1) + "];",
+                "static long jnigenerator_stat_latency[" + Math.max(functionCount, 1) + "][JNIGENERATOR_STATS_BUCKETS];",
+                "static long jnigenerator_stat_init[" + Math.max(scopeCount, 1) + "];",
+                "",
+                "static jlong jnigenerator_stat_nanos(void) {",
+                "    struct timespec ts;",
+                "    clock_gettime(CLOCK_MONOTONIC, &ts);",
+                "    return (jlong) ts.tv_sec * 1000000000LL + (jlong) ts.tv_nsec;",
+                "}",
+                "",
+                "static jlong jnigenerator_stat_clock(void) {",
+                "#if defined(JNIGENERATOR_STATS_TSC) && (defined(__x86_64__) || defined(__i386__))",
+                "    return (jlong) __builtin_ia32_rdtsc();",
+                "#elif defined(JNIGENERATOR_STATS_LATENCY) || defined(JNIGENERATOR_STATS_TSC)",
+                "    return jnigenerator_stat_nanos();",
+                "#else",
+                "    return 0;",
+                "#endif",
+                "}",
+                "",
+                "static void jnigenerator_stat_end(jnigenerator_stat * stat) {",
+                "    __atomic_fetch_add(&jnigenerator_stat_calls[stat->index], 1, __ATOMIC_RELAXED);",
+                "#if defined(JNIGENERATOR_STATS_LATENCY) || defined(JNIGENERATOR_STATS_TSC)",
+                "    unsigned long long elapsed = (unsigned long long) (jnigenerator_stat_clock() - stat->start);",
+                "    int bucket = elapsed == 0 ? 0 : 64 - __builtin_clzll(elapsed);",
+                "    if (bucket >= JNIGENERATOR_STATS_BUCKETS) {",
+                "        bucket = JNIGENERATOR_STATS_BUCKETS - 1;",
+                "    }",
+                "    __atomic_fetch_add(&jnigenerator_stat_latency[stat->index][bucket], 1, __ATOMIC_RELAXED);",
+                "#endif",
+                "}",
+                "",
+                "static void jnigenerator_stat_init_end(jnigenerator_stat * stat) {",
+                "    __atomic_fetch_add(&jnigenerator_stat_init[stat->index], (long) (jnigenerator_stat_nanos() - stat->start), __ATOMIC_RELAXED);",
+                "}",
+                "#endif",
+                "",
+                "jlongArray jnigenerator_stats(JNIEnv * env) {",
+                "#ifdef JNIGENERATOR_STATS",
+                "    jsize header = 3;",
+                "    jsize size = header + JNIGENERATOR_STATS_FUNCTIONS * (1 + JNIGENERATOR_STATS_BUCKETS) + JNIGENERATOR_STATS_SCOPES;",
+                "    jlongArray result = (*env)->NewLongArray(env, size);",
+                "    if (result == 0) {",
+                "        throw_internal_OutOfMemoryError(env, \"NewLongArray\");",
+                "        return 0;",
+                "    }",
+                "    jlong * values = (jlong *) malloc(sizeof(jlong) * size);",
+                "    if (values == 0) {",
+                "        (*env)->DeleteLocalRef(env, result);",
+                "        throw_internal_OutOfMemoryError(env, \"malloc\");",
+                "        return 0;",
+                "    }",
+                "    values[0] = JNIGENERATOR_STATS_FUNCTIONS;",
+                "    values[1] = JNIGENERATOR_STATS_BUCKETS;",
+                "    values[2] = JNIGENERATOR_STATS_SCOPES;",
+                "    jsize pos = header;",
+                "    for (int i = 0; i < JNIGENERATOR_STATS_FUNCTIONS; i++) {",
+                "        values[pos++] = __atomic_load_n(&jnigenerator_stat_calls[i], __ATOMIC_RELAXED);",
+                "    }",
+                "    for (int i = 0; i < JNIGENERATOR_STATS_FUNCTIONS; i++) {",
+                "        for (int b = 0; b < JNIGENERATOR_STATS_BUCKETS; b++) {",
+                "            values[pos++] = __atomic_load_n(&jnigenerator_stat_latency[i][b], __ATOMIC_RELAXED);",
+                "        }",
+                "    }",
+                "    for (int i = 0; i < JNIGENERATOR_STATS_SCOPES; i++) {",
+                "        values[pos++] = __atomic_load_n(&jnigenerator_stat_init[i], __ATOMIC_RELAXED);",
+                "    }",
+                "    (*env)->SetLongArrayRegion(env, result, 0, size, values);",
+                "    free(values);",
+                "    return result;",
+                "#else",
+                "    return 0;",
+                "#endif",
+                "}");
+
+        if (statsFile == null) {
+            return;
+        }
+
+        File javaFile = new File(statsFile);
+        String name = javaClassName(javaFile);
+        StringBuilder java = javaHeader(statsPackage == null ? "" : statsPackage);
+        java.append("/**\n");
+        java.append(" * Names of the entries in the long[] returned by jnigenerator_stats.\n");
+        java.append(" */\n");
+        java.append("public final class " + name + " {\n");
+        java.append("\n");
+        java.append("    public static final String[] FUNCTIONS = {");
+        String sep = "\n";
+        for (String function : functions) {
+            java.append(sep + "            \"" + function + "\"");
+            sep = ",\n";
+        }
+        java.append("\n    };\n");
+        java.append("\n");
+        java.append("    public static final String[] SCOPES = {");
+        sep = "\n";
+        for (String scope : scopes) {
+            java.append(sep + "            \"" + scope + "\"");
+            sep = ",\n";
+        }
+        java.append("\n    };\n");
+        java.append("\n");
+        java.append("    private " + name + "() {\n");
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    public static long calls(long[] stats, int function) {\n");
+        java.append("        return stats[3 + function];\n");
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    public static long latency(long[] stats, int function, int bucket) {\n");
+        java.append("        return stats[3 + (int) stats[0] + function * (int) stats[1] + bucket];\n");
+        java.append("    }\n");
+        java.append("\n");
+        java.append("    public static long initNanos(long[] stats, int scope) {\n");
+        java.append("        return stats[3 + (int) stats[0] * (1 + (int) stats[1]) + scope];\n");
+        java.append("    }\n");
+        java.append("}\n");
+
+        writeFile(javaFile, java.toString());
+    }
+
+    protected void finish(Generation generation) throws IOException {
+        File header = new File(headerOutput);
+        File impl = new File(implOutput);
+
+        System.out.println(header.getAbsolutePath());
+        System.out.println(impl.getAbsolutePath());
+
+        header.delete();
+        header.createNewFile();
+        impl.delete();
+        impl.createNewFile();
+
+        generation.header(
+                "",
+                "#if defined(JNIGENERATOR_DEBUG_REFS) && !defined(JNIGENERATOR_IMPL)",
+                generation.getRefTracking() + "#endif");
+
+        try(FileOutputStream faos = new FileOutputStream(header)) {
+            faos.write(generation.getHeader().getBytes(StandardCharsets.UTF_8));
+        }
+
+        generateStats(generation);
+
+        int scopeIndex = 0;
+        for (String scope : generation.getScopes()) {
+            generation.impl(
+                    "",
+                    "static jboolean jnigenerator_init_" + scope + "(JNIEnv * env) {",
+                    "    JNIGEN_INIT_STATS(" + (scopeIndex++) + ");",
+                    generation.getInit(scope),
+                    "    return JNI_TRUE;",
+                    "}");
+
+            generation.impl(
+                    "",
+                    "static void jnigenerator_destroy_" + scope + "(JNIEnv * env) {",
+                    generation.getDestroy(scope),
+                    "}");
+        }
+
+        generation.impl(
+                "",
+                "jboolean jnigenerator_init(JNIEnv * env) {",
+                generation.getInit());
+
+        for (String scope : generation.getScopes()) {
+            if (!lazyInit) {
+                generation.impl(
+                        "    if (!jnigenerator_init_" + scope + "(env)) {",
+                        "        return JNI_FALSE;",
+                        "    }");
+                continue;
+            }
+
+            if (generation.isEager(scope)) {
+                generation.impl(
+                        "    if (!jnigenerator_lazy(env, &jnigenerator_state_" + scope + ", jnigenerator_init_" + scope + ", jnigenerator_destroy_" + scope + ")) {",
+                        "        return JNI_FALSE;",
+                        "    }");
+            }
+        }
+
+        if (safeDestroy) {
+            generation.impl("    __atomic_store_n(&jnigenerator_alive, 1, __ATOMIC_SEQ_CST);");
+        }
+
+        generation.impl(
+                "    return JNI_TRUE;",
+                "}");
+
+        generation.impl(
+                "",
+                "void jnigenerator_destroy(JNIEnv * env) {");
+
+        if (safeDestroy) {
+            generation.impl("    jnigenerator_quiesce();");
+        }
+
+        for (String scope : generation.getScopes()) {
+            generation.impl("    jnigenerator_destroy_" + scope + "(env);");
+            if (lazyInit) {
+                generation.impl("    __atomic_store_n(&jnigenerator_state_" + scope + ", 0, __ATOMIC_RELEASE);");
+            }
+        }
+
+        generation.impl(
                 generation.getDestroy(),
                 "}");
 
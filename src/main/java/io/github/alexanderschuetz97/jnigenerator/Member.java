@@ -25,6 +25,166 @@ public class Member {
 
     private boolean onlyPublic = false;
 
+    private String panamaFile;
+
+    private String[] panamaFunctions;
+
+    private boolean mirror = false;
+
+    private String layoutFile;
+
+    private String fastThrow;
+
+    private String enumValueField;
+
+    private String fastThrowMessage;
+
+    private String batchMethod;
+
+    private String batchFile;
+
+    private int batchSize = 1024;
+
+    private int batchFlush = 0;
+
+    private int poolSize = 0;
+
+    private String poolFile;
+
+    private String[] handleFields;
+
+    private int handleCapacity = 4096;
+
+    private String handleException;
+
+    public String[] getHandleFields() {
+        return handleFields;
+    }
+
+    public void setHandleFields(String[] handleFields) {
+        this.handleFields = handleFields;
+    }
+
+    public int getHandleCapacity() {
+        return handleCapacity;
+    }
+
+    public void setHandleCapacity(int handleCapacity) {
+        this.handleCapacity = handleCapacity;
+    }
+
+    public String getHandleException() {
+        return handleException;
+    }
+
+    public void setHandleException(String handleException) {
+        this.handleException = handleException;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    public String getPoolFile() {
+        return poolFile;
+    }
+
+    public void setPoolFile(String poolFile) {
+        this.poolFile = poolFile;
+    }
+
+    public String getBatchMethod() {
+        return batchMethod;
+    }
+
+    public void setBatchMethod(String batchMethod) {
+        this.batchMethod = batchMethod;
+    }
+
+    public String getBatchFile() {
+        return batchFile;
+    }
+
+    public void setBatchFile(String batchFile) {
+        this.batchFile = batchFile;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchFlush() {
+        return batchFlush;
+    }
+
+    public void setBatchFlush(int batchFlush) {
+        this.batchFlush = batchFlush;
+    }
+
+    public String getEnumValueField() {
+        return enumValueField;
+    }
+
+    public void setEnumValueField(String enumValueField) {
+        this.enumValueField = enumValueField;
+    }
+
+    public String getFastThrow() {
+        return fastThrow;
+    }
+
+    public void setFastThrow(String fastThrow) {
+        this.fastThrow = fastThrow;
+    }
+
+    public String getFastThrowMessage() {
+        return fastThrowMessage;
+    }
+
+    public void setFastThrowMessage(String fastThrowMessage) {
+        this.fastThrowMessage = fastThrowMessage;
+    }
+
+    public String getLayoutFile() {
+        return layoutFile;
+    }
+
+    public void setLayoutFile(String layoutFile) {
+        this.layoutFile = layoutFile;
+    }
+
+    public boolean isMirror() {
+        return mirror;
+    }
+
+    public void setMirror(boolean mirror) {
+        this.mirror = mirror;
+    }
+
+    public String getPanamaFile() {
+        return panamaFile;
+    }
+
+    public void setPanamaFile(String panamaFile) {
+        this.panamaFile = panamaFile;
+    }
+
+    public String[] getPanamaFunctions() {
+        return panamaFunctions;
+    }
+
+    public void setPanamaFunctions(String[] panamaFunctions) {
+        this.panamaFunctions = panamaFunctions;
+    }
+
     public boolean isOnlyPublic() {
         return onlyPublic;
     }
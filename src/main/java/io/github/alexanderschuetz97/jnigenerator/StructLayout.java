@@ -0,0 +1,139 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator;
+
+import org.apache.bcel.classfile.Field;
+import org.apache.bcel.generic.Type;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class StructLayout {
+
+    public static class Entry {
+        private final String name;
+        private final Type type;
+        private final int size;
+        private final int offset;
+
+        public Entry(String name, Type type, int size, int offset) {
+            this.name = name;
+            this.type = type;
+            this.size = size;
+            this.offset = offset;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final int size;
+    private final int alignment;
+
+    public StructLayout(List<Field> fields) {
+        this(names(fields), types(fields));
+    }
+
+    //Natural alignment in declaration order, this is what a c compiler does for a struct declaring the same members.
+    public StructLayout(List<String> names, List<Type> types) {
+        int offset = 0;
+        int align = 1;
+        for (int i = 0; i < names.size(); i++) {
+            int memberSize = sizeOf(names.get(i), types.get(i));
+            offset = alignUp(offset, memberSize);
+            entries.add(new Entry(names.get(i), types.get(i), memberSize, offset));
+            offset += memberSize;
+            align = Math.max(align, memberSize);
+        }
+
+        this.alignment = align;
+        this.size = alignUp(offset, align);
+    }
+
+    private static List<String> names(List<Field> fields) {
+        List<String> names = new ArrayList<>();
+        for (Field f : fields) {
+            names.add(f.getName());
+        }
+        return names;
+    }
+
+    private static List<Type> types(List<Field> fields) {
+        List<Type> types = new ArrayList<>();
+        for (Field f : fields) {
+            types.add(f.getType());
+        }
+        return types;
+    }
+
+    public static int sizeOf(Field field) {
+        return sizeOf(field.getName(), field.getType());
+    }
+
+    public static int sizeOf(String name, Type type) {
+        switch (type.getType()) {
+            case(4):
+            case(8):
+                return 1;
+            case(5):
+            case(9):
+                return 2;
+            case(6):
+            case(10):
+                return 4;
+            case(7):
+            case(11):
+                return 8;
+            default:
+                throw new IllegalArgumentException(name + " of type " + type.getSignature() + " has no fixed layout");
+        }
+    }
+
+    private static int alignUp(int value, int align) {
+        return (value + align - 1) / align * align;
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getAlignment() {
+        return alignment;
+    }
+}
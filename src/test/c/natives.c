@@ -0,0 +1,963 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+#include "jnigenerator.h"
+#include "consts.h"
+#include <pthread.h>
+#include <sched.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <wchar.h>
+
+#define NATIVE(type, name) JNIEXPORT type JNICALL Java_io_github_alexanderschuetz97_jnigenerator_sample_Natives_ ## name
+
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM * vm, void * reserved) {
+    JNIEnv * env;
+    if ((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_8) != JNI_OK) {
+        return JNI_ERR;
+    }
+    if (!jnigenerator_init(env)) {
+        return JNI_ERR;
+    }
+    return JNI_VERSION_1_8;
+}
+
+NATIVE(jboolean, init)(JNIEnv * env, jclass c) {
+    return jnigenerator_init(env);
+}
+
+NATIVE(void, destroy)(JNIEnv * env, jclass c) {
+    jnigenerator_destroy(env);
+}
+
+//structs and arrays
+
+NATIVE(jobjectArray, newArray)(JNIEnv * env, jclass c, jint n) {
+    jstruct_Point * v = calloc(n, sizeof(jstruct_Point));
+    char buf[32];
+    if ((*env)->EnsureLocalCapacity(env, n + 16) != 0) {
+        free(v);
+        return 0;
+    }
+    for (int i = 0; i < n; i++) {
+        v[i].x = i;
+        v[i].y = 2 * i;
+        snprintf(buf, sizeof(buf), "n%d", i);
+        v[i].name = (*env)->NewStringUTF(env, buf);
+    }
+    jobjectArray r = jnewArray_Point(env, v, n);
+    for (int i = 0; i < n; i++) {
+        (*env)->DeleteLocalRef(env, v[i].name);
+    }
+    free(v);
+    return r;
+}
+
+NATIVE(jint, fillArray)(JNIEnv * env, jclass c, jobjectArray a) {
+    jstruct_Point v[20];
+    memset(v, 0, sizeof(v));
+    for (int i = 0; i < 20; i++) {
+        v[i].x = i;
+    }
+    return jfillArray_Point(env, a, v, 20);
+}
+
+static void release_struct(JNIEnv * env, jstruct_Point * v) {
+    (*env)->DeleteLocalRef(env, v->name);
+    (*env)->DeleteLocalRef(env, v->data);
+    (*env)->DeleteLocalRef(env, v->ints);
+    (*env)->DeleteLocalRef(env, v->color);
+    (*env)->DeleteLocalRef(env, v->other);
+    (*env)->DeleteLocalRef(env, v->buf);
+}
+
+NATIVE(jlong, sumArray)(JNIEnv * env, jclass c, jobjectArray a) {
+    jsize n = (*env)->GetArrayLength(env, a);
+    jstruct_Point * v = calloc(n, sizeof(jstruct_Point));
+    jsize got = jgetArray_Point(env, a, v, n);
+    jlong s = 0;
+    for (int i = 0; i < got; i++) {
+        s += v[i].x;
+        release_struct(env, &v[i]);
+    }
+    free(v);
+    return s;
+}
+
+NATIVE(jlong, copyAll)(JNIEnv * env, jclass c, jobject from, jobject to) {
+    jstruct_Point v;
+    jget_all_Point(env, from, &v);
+    jset_all_Point(env, to, &v);
+    release_struct(env, &v);
+    return v.x + v.y;
+}
+
+static jlayout_Point layout[16];
+
+NATIVE(jobject, layoutBuffer)(JNIEnv * env, jclass c, jint n) {
+    for (int i = 0; i < 16; i++) {
+        layout[i].x = i;
+        layout[i].y = 1000LL * i;
+        layout[i].handle = -i;
+    }
+    return jlayout_Point_buffer(env, layout, n);
+}
+
+NATIVE(jlong, layoutAddress)(JNIEnv * env, jclass c) {
+    for (int i = 0; i < 16; i++) {
+        layout[i].x = i;
+        layout[i].y = 1000LL * i;
+        layout[i].handle = -i;
+    }
+    return (jlong) (intptr_t) layout;
+}
+
+NATIVE(void, setInts)(JNIEnv * env, jclass c, jobject p, jint n, jboolean copy) {
+    jint v[8];
+    for (jint i = 0; i < n; i++) {
+        v[i] = 100 + i;
+    }
+    if (copy) {
+        jcopyA_Point_ints(env, p, v, n);
+    } else {
+        jsetA_Point_ints(env, p, v, n);
+    }
+}
+
+NATIVE(jint, critical)(JNIEnv * env, jclass c, jobject p, jboolean violate) {
+    jint sum = -1;
+    JNIGEN_CRITICAL_BEGIN(env, Point_ints, p, jint, data, len)
+        sum = 0;
+        for (jsize i = 0; i < len; i++) {
+            sum += data[i];
+        }
+        if (violate) {
+            //not allowed inside a critical region, the debug build aborts here
+            sum = (*env)->GetArrayLength(env, data_array);
+        }
+    JNIGEN_CRITICAL_END(env, Point_ints, data, 0)
+    return sum;
+}
+
+NATIVE(void, fetchConsts)(JNIEnv * env, jclass c, jobject consts) {
+    jfetchconst_Consts(env, consts);
+}
+
+NATIVE(void, fetchConstsPacked)(JNIEnv * env, jclass c, jlongArray values) {
+    jfetchconstA_Consts(env, values);
+}
+
+//strings
+
+static char * cstr(JNIEnv * env, jbyteArray a) {
+    if (a == 0) {
+        return 0;
+    }
+    jsize n = (*env)->GetArrayLength(env, a);
+    char * s = calloc(n + 1, 1);
+    (*env)->GetByteArrayRegion(env, a, 0, n, (jbyte *) s);
+    return s;
+}
+
+static wchar_t * wstr(JNIEnv * env, jintArray a) {
+    jsize n = (*env)->GetArrayLength(env, a);
+    wchar_t * s = calloc(n + 1, sizeof(wchar_t));
+    jint * e = (*env)->GetIntArrayElements(env, a, 0);
+    for (int i = 0; i < n; i++) {
+        s[i] = (wchar_t) e[i];
+    }
+    (*env)->ReleaseIntArrayElements(env, a, e, JNI_ABORT);
+    return s;
+}
+
+NATIVE(jstring, viaCC)(JNIEnv * env, jclass c, jbyteArray a) {
+    char * s = cstr(env, a);
+    jstring r = jstringCC(env, s);
+    free(s);
+    return r;
+}
+
+NATIVE(jbyteArray, toCC)(JNIEnv * env, jclass c, jstring s, jint cap, jlongArray total) {
+    char * buf = cap > 0 ? malloc(cap) : 0;
+    jlong t = jgetCC(env, s, buf, cap);
+    (*env)->SetLongArrayRegion(env, total, 0, 1, &t);
+    jbyteArray r = jarrayB(env, (jbyte *) buf, cap > 0 ? (jsize) strlen(buf) : 0);
+    free(buf);
+    return r;
+}
+
+NATIVE(jstring, fieldCC)(JNIEnv * env, jclass c, jobject p, jbyteArray a) {
+    char * s = cstr(env, a);
+    jsetCC_Point_name(env, p, s);
+    free(s);
+    char buf[256];
+    if (jgetCC_Point_name(env, p, buf, sizeof(buf)) < 0) {
+        return 0;
+    }
+    return jstringCC(env, buf);
+}
+
+NATIVE(void, throwCC)(JNIEnv * env, jclass c, jbyteArray a) {
+    char * s = cstr(env, a);
+    jthrowCC_MyException(env, s);
+    free(s);
+}
+
+NATIVE(jstring, viaWC)(JNIEnv * env, jclass c, jintArray a) {
+    wchar_t * s = wstr(env, a);
+    jstring r = jstringWC(env, s);
+    free(s);
+    return r;
+}
+
+NATIVE(jintArray, toWC)(JNIEnv * env, jclass c, jstring s, jint cap, jlongArray total) {
+    wchar_t * buf = cap > 0 ? malloc(cap * sizeof(wchar_t)) : 0;
+    jlong t = jgetWC(env, s, buf, cap);
+    (*env)->SetLongArrayRegion(env, total, 0, 1, &t);
+    jsize n = cap > 0 ? (jsize) wcslen(buf) : 0;
+    jintArray r = (*env)->NewIntArray(env, n);
+    for (int i = 0; i < n; i++) {
+        jint v = buf[i];
+        (*env)->SetIntArrayRegion(env, r, i, 1, &v);
+    }
+    free(buf);
+    return r;
+}
+
+NATIVE(jstring, fieldWC)(JNIEnv * env, jclass c, jobject p, jintArray a) {
+    wchar_t * s = wstr(env, a);
+    jsetWC_Point_name(env, p, s);
+    free(s);
+    wchar_t buf[2000];
+    jgetWC_Point_name(env, p, buf, 2000);
+    return jstringWC(env, buf);
+}
+
+NATIVE(jboolean, interned)(JNIEnv * env, jclass c, jobject p) {
+    jset_Point_name(env, p, jstr_EAGAIN());
+    jstring a = jget_Point_name(env, p);
+    jboolean same = (*env)->IsSameObject(env, a, jstr_EAGAIN());
+    (*env)->DeleteLocalRef(env, a);
+    return same;
+}
+
+static const char * bench_input(jboolean utf8) {
+    return utf8 ? "grüße aus Köln, ein längerer Pfad /tmp/ü" : "/usr/lib/x86_64-linux-gnu/libexample.so.1";
+}
+
+//cached like the generated code does it so only the string conversion differs
+static jfieldID point_name_field(JNIEnv * env, jobject p) {
+    static jfieldID field = 0;
+    if (field == 0) {
+        jclass clazz = (*env)->GetObjectClass(env, p);
+        field = (*env)->GetFieldID(env, clazz, "name", "Ljava/lang/String;");
+        (*env)->DeleteLocalRef(env, clazz);
+    }
+    return field;
+}
+
+NATIVE(jstring, stringCC)(JNIEnv * env, jclass c, jboolean utf8) {
+    return jstringCC(env, bench_input(utf8));
+}
+
+NATIVE(jstring, newStringUTF)(JNIEnv * env, jclass c, jboolean utf8) {
+    return (*env)->NewStringUTF(env, bench_input(utf8));
+}
+
+NATIVE(jint, getCC)(JNIEnv * env, jclass c, jstring s) {
+    char buf[256];
+    return (jint) jgetCC(env, s, buf, sizeof(buf));
+}
+
+NATIVE(jint, getStringUTFChars)(JNIEnv * env, jclass c, jstring s) {
+    char buf[256];
+    const char * chars = (*env)->GetStringUTFChars(env, s, 0);
+    if (chars == 0) {
+        return -1;
+    }
+    strncpy(buf, chars, sizeof(buf) - 1);
+    buf[sizeof(buf) - 1] = 0;
+    (*env)->ReleaseStringUTFChars(env, s, chars);
+    return (jint) strlen(buf);
+}
+
+NATIVE(void, setFieldCC)(JNIEnv * env, jclass c, jobject p, jboolean utf8) {
+    jsetCC_Point_name(env, p, bench_input(utf8));
+}
+
+NATIVE(void, setFieldUTF)(JNIEnv * env, jclass c, jobject p, jboolean utf8) {
+    jstring s = (*env)->NewStringUTF(env, bench_input(utf8));
+    if (s == 0) {
+        return;
+    }
+    (*env)->SetObjectField(env, p, point_name_field(env, p), s);
+    (*env)->DeleteLocalRef(env, s);
+}
+
+NATIVE(jint, getFieldCC)(JNIEnv * env, jclass c, jobject p) {
+    char buf[256];
+    return (jint) jgetCC_Point_name(env, p, buf, sizeof(buf));
+}
+
+NATIVE(jint, getFieldUTF)(JNIEnv * env, jclass c, jobject p) {
+    jstring s = (*env)->GetObjectField(env, p, point_name_field(env, p));
+    jint len = Java_io_github_alexanderschuetz97_jnigenerator_sample_Natives_getStringUTFChars(env, c, s);
+    (*env)->DeleteLocalRef(env, s);
+    return len;
+}
+
+//exceptions
+
+NATIVE(void, throwInterned)(JNIEnv * env, jclass c) {
+    jthrow_MyException(env, jstr_odd());
+}
+
+NATIVE(void, throwFast)(JNIEnv * env, jclass c, jint kind) {
+    if (kind == 0) {
+        jthrow_MyException(env, jstr_EAGAIN());
+    } else if (kind == 1) {
+        jthrowFast_FastException(env, jstr_EAGAIN());
+    } else {
+        jthrowFast_CachedException(env);
+    }
+}
+
+NATIVE(void, throwPending)(JNIEnv * env, jclass c) {
+    jclass ise = (*env)->FindClass(env, "java/lang/IllegalStateException");
+    (*env)->ThrowNew(env, ise, "first");
+    //must neither replace the pending exception nor run the lazy init of PendingException with it pending
+    jthrowC_PendingException(env, "second");
+}
+
+//local references
+
+static void borrowed(JNIEnv * env, jobject value, void * ctx) {
+    *(jsize *) ctx += (*env)->GetStringLength(env, (jstring) value);
+}
+
+NATIVE(jlong, frames)(JNIEnv * env, jclass c, jobjectArray ps) {
+    JNIGEN_RESET_REFS();
+    jsize n = (*env)->GetArrayLength(env, ps);
+    jsize total = 0;
+    jstring last = 0;
+    for (jsize i = 0; i < n; i++) {
+        JNIGEN_FRAME_BEGIN(env, 4)
+            jobject p = (*env)->GetObjectArrayElement(env, ps, i);
+            jstring name = jget_Point_name(env, p);
+            total += (*env)->GetStringLength(env, name);
+            jborrow_Point_name(env, p, borrowed, &total);
+            last = name;
+        JNIGEN_FRAME_END_KEEP(env, last)
+        JNIGEN_RELEASE(env, last);
+    }
+    JNIGEN_CHECK_REFS(0);
+#ifdef JNIGENERATOR_DEBUG_REFS
+    long before = jnigenerator_debug_refs;
+    jstring leak = jget_Point_name(env, (*env)->GetObjectArrayElement(env, ps, 0));
+    if (jnigenerator_debug_refs != before + 1) {
+        return -2;
+    }
+    JNIGEN_RELEASE(env, leak);
+    JNIGEN_CHECK_REFS(0);
+    if (total != 2 * 23890) {
+        return -3;
+    }
+    return jnigenerator_debug_refs;
+#else
+    return total == 2 * 23890 ? 0 : -1;
+#endif
+}
+
+//enums
+
+NATIVE(jstring, enumSwitch)(JNIEnv * env, jclass c, jobject color) {
+    char buf[64];
+    const char * s;
+    jint o = jenum_ordinal(env, color);
+    switch ((jordinal_Color) o) {
+        case JENUM_Color_RED:
+            s = "red";
+            break;
+        case JENUM_Color_GREEN:
+            s = "green";
+            break;
+        case JENUM_Color_BLUE:
+            s = "blue";
+            break;
+        default:
+            return jstringCC(env, "null");
+    }
+    jstring name = jenum_name(env, color);
+    char nbuf[16];
+    jgetCC(env, name, nbuf, sizeof(nbuf));
+    (*env)->DeleteLocalRef(env, name);
+    snprintf(buf, sizeof(buf), "%s %s %s", s, jenumname_Color(o), nbuf);
+    if (JENUMCOUNT_Color != 3 || jenumname_Color(3) != 0) {
+        return 0;
+    }
+    return jstringCC(env, buf);
+}
+
+NATIVE(jboolean, names)(JNIEnv * env, jclass c) {
+    return jenum_Names_name() != 0 && jenum_Names_ordinal() != 0 && JENUMCOUNT_Names == 2 && strcmp(jenumname_Names(1), "ordinal") == 0;
+}
+
+NATIVE(jobject, fromErrno)(JNIEnv * env, jclass c, jint v) {
+    return jenum_Errno_from_code(v);
+}
+
+NATIVE(jobject, fromSparse)(JNIEnv * env, jclass c, jint v) {
+    return jenum_Sparse_from_flag(v);
+}
+
+NATIVE(jint, toErrno)(JNIEnv * env, jclass c, jobject e) {
+    return jenum_Errno_to_code(env, e, -1);
+}
+
+//threads and upcalls
+
+static jint attached_ok = 0;
+
+static void * attach_worker(void * arg) {
+    JNIEnv * env = jnigenerator_env();
+    if (env == 0 || env != jnigenerator_env()) {
+        return 0;
+    }
+    __atomic_fetch_add(&attached_ok, 1, __ATOMIC_SEQ_CST);
+    jset_Point_counter(env, 42);
+
+    jclass tc = (*env)->FindClass(env, "java/lang/Thread");
+    jmethodID current = (*env)->GetStaticMethodID(env, tc, "currentThread", "()Ljava/lang/Thread;");
+    jmethodID getName = (*env)->GetMethodID(env, tc, "getName", "()Ljava/lang/String;");
+    jobject cur = (*env)->CallStaticObjectMethod(env, tc, current);
+    if ((*env)->ExceptionCheck(env)) {
+        return 0;
+    }
+    jobject name = (*env)->CallObjectMethod(env, cur, getName);
+    if ((*env)->ExceptionCheck(env)) {
+        return 0;
+    }
+    jclass nc = (*env)->FindClass(env, "io/github/alexanderschuetz97/jnigenerator/sample/Natives");
+    (*env)->SetStaticObjectField(env, nc, (*env)->GetStaticFieldID(env, nc, "seenName", "Ljava/lang/String;"), name);
+    if (name != 0) {
+        __atomic_fetch_add(&attached_ok, 1, __ATOMIC_SEQ_CST);
+    }
+    (*env)->DeleteLocalRef(env, tc);
+    (*env)->DeleteLocalRef(env, cur);
+    (*env)->DeleteLocalRef(env, name);
+    (*env)->DeleteLocalRef(env, nc);
+
+    //a user detach must not leave a stale env behind
+    JavaVM * vm = jnigenerator_vm();
+    (*vm)->DetachCurrentThread(vm);
+    env = jnigenerator_env();
+    if (env == 0) {
+        return 0;
+    }
+    jclass again = (*env)->FindClass(env, "java/lang/Thread");
+    if (again != 0) {
+        __atomic_fetch_add(&attached_ok, 1, __ATOMIC_SEQ_CST);
+    }
+    (*env)->DeleteLocalRef(env, again);
+    return 0;
+}
+
+NATIVE(jint, attach)(JNIEnv * env, jclass c, jint n) {
+    attached_ok = 0;
+    if (jnigenerator_env() != env) {
+        return -1;
+    }
+    for (int i = 0; i < n; i++) {
+        pthread_t t;
+        pthread_create(&t, 0, attach_worker, 0);
+        pthread_join(t, 0);
+        __atomic_fetch_add(&attached_ok, 1, __ATOMIC_SEQ_CST);
+    }
+    return attached_ok;
+}
+
+NATIVE(jint, batch)(JNIEnv * env, jclass c, jobject sink, jint n) {
+    jbatch_Sink_event * b = jbatch_Sink_event_open(env, sink);
+    if (b == 0) {
+        return -1;
+    }
+    for (jint i = 0; i < n; i++) {
+        if (!jbatch_Sink_event_add(env, b, i, i * 1000LL, (jboolean) (i & 1), i * 0.5, (jbyte) i)) {
+            jbatch_Sink_event_close(env, b);
+            return -2;
+        }
+    }
+    jboolean ok = jbatch_Sink_event_flush(env, b);
+    jbatch_Sink_event_close(env, b);
+    return ok ? 1 : -3;
+}
+
+NATIVE(jlong, ringOpen)(JNIEnv * env, jclass c, jobject sink) {
+    return (jlong) (intptr_t) jbatch_Sink_event_open(env, sink);
+}
+
+NATIVE(jobject, ringBuffer)(JNIEnv * env, jclass c, jlong ring) {
+    return jbatch_Sink_event_buffer(env, (jbatch_Sink_event *) (intptr_t) ring);
+}
+
+NATIVE(jint, ringProduce)(JNIEnv * env, jclass c, jlong ring, jint n) {
+    jbatch_Sink_event * b = (jbatch_Sink_event *) (intptr_t) ring;
+    jint full = 0;
+    for (jint i = 0; i < n; i++) {
+        while (!jbatch_Sink_event_offer(b, i, i * 1000LL, (jboolean) (i & 1), i * 0.5, (jbyte) i)) {
+            full++;
+            sched_yield();
+        }
+    }
+    return full;
+}
+
+NATIVE(jint, ringAdd)(JNIEnv * env, jclass c, jlong ring, jint n) {
+    jbatch_Sink_event * b = (jbatch_Sink_event *) (intptr_t) ring;
+    for (jint i = 0; i < n; i++) {
+        if (!jbatch_Sink_event_add(env, b, i, i * 1000LL, (jboolean) (i & 1), i * 0.5, (jbyte) i)) {
+            return -2;
+        }
+    }
+    return jbatch_Sink_event_flush(env, b) ? 1 : -3;
+}
+
+NATIVE(void, ringClose)(JNIEnv * env, jclass c, jlong ring) {
+    jbatch_Sink_event_close(env, (jbatch_Sink_event *) (intptr_t) ring);
+}
+
+NATIVE(jlongArray, stats)(JNIEnv * env, jclass c) {
+    return jnigenerator_stats(env);
+}
+
+jint jnative_Registered_add(JNIEnv * env, jclass clazz, jint p0, jint p1) {
+    return p0 + p1;
+}
+
+jlong jnative_Registered_add_1(JNIEnv * env, jclass clazz, jlong p0) {
+    return p0 + 1;
+}
+
+jstring jnative_Registered_describe(JNIEnv * env, jobject instance, jstring p0, jdoubleArray p1) {
+    char buf[64];
+    char s[16];
+    jgetCC(env, p0, s, sizeof(s));
+    snprintf(buf, sizeof(buf), "%s%d:%d", s, (int) (*env)->GetArrayLength(env, p1), (int) jget_Registered_base(env, instance));
+    return jstringCC(env, buf);
+}
+
+void jnative_Registered_nothing(JNIEnv * env, jobject instance) {
+}
+
+//pools, buffers and handles
+
+NATIVE(jobject, poolTake)(JNIEnv * env, jclass c, jint x) {
+    jobject p = jpool_Point_acquire(env, 0);
+    if (p != 0) {
+        jset_Point_x(env, p, x);
+    }
+    return p;
+}
+
+NATIVE(jint, poolTakeRelease)(JNIEnv * env, jclass c) {
+    jint ok = 0;
+    for (int i = 0; i < 100; i++) {
+        jint idx = -1;
+        jobject p = jpool_Point_acquire(env, &idx);
+        if (p == 0) {
+            return ok;
+        }
+        if (idx >= 0 && idx < 4) {
+            ok++;
+        }
+        jpool_Point_release(env, idx);
+        (*env)->DeleteLocalRef(env, p);
+    }
+    return ok;
+}
+
+NATIVE(jboolean, poolDoubleRelease)(JNIEnv * env, jclass c) {
+    jint idx = -1;
+    jobject p = jpool_Point_acquire(env, &idx);
+    if (p == 0) {
+        return JNI_FALSE;
+    }
+    (*env)->DeleteLocalRef(env, p);
+    jpool_Point_release(env, idx);
+    if ((*env)->ExceptionCheck(env)) {
+        return JNI_FALSE;
+    }
+    jpool_Point_release(env, idx);
+    return JNI_TRUE;
+}
+
+static jint stress_rounds;
+static jint stress_ok;
+
+//every holder stamps the instance with its own token, a second holder of the same slot would overwrite it
+static void * pool_worker(void * arg) {
+    JNIEnv * env = jnigenerator_env();
+    jint token = (jint) (intptr_t) arg;
+    for (jint i = 0; i < stress_rounds; i++) {
+        jint idx = -1;
+        jobject p = jpool_Point_acquire(env, &idx);
+        if (p == 0) {
+            sched_yield();
+            continue;
+        }
+        jset_Point_x(env, p, token);
+        sched_yield();
+        jboolean mine = jget_Point_x(env, p) == token;
+        jset_Point_x(env, p, 0);
+        (*env)->DeleteLocalRef(env, p);
+        jpool_Point_release(env, idx);
+        if (!mine || (*env)->ExceptionCheck(env)) {
+            (*env)->ExceptionClear(env);
+            return 0;
+        }
+    }
+    __atomic_fetch_add(&stress_ok, 1, __ATOMIC_SEQ_CST);
+    return 0;
+}
+
+NATIVE(jint, poolStress)(JNIEnv * env, jclass c, jint n, jint rounds) {
+    pthread_t t[16];
+    stress_rounds = rounds;
+    stress_ok = 0;
+    for (jint i = 0; i < n; i++) {
+        pthread_create(&t[i], 0, pool_worker, (void *) (intptr_t) (i + 1));
+    }
+    for (jint i = 0; i < n; i++) {
+        pthread_join(t[i], 0);
+    }
+    return stress_ok;
+}
+
+NATIVE(jint, arrayPool)(JNIEnv * env, jclass c, jbyteArray out) {
+    jbyte bytes[100];
+    for (int i = 0; i < 100; i++) {
+        bytes[i] = (jbyte) (i + 1);
+    }
+    jtrimArrayPool(env, 0);
+    jbyteArray a = jpooledArrayB(env, bytes, 100);
+    if (a == 0 || (*env)->GetArrayLength(env, a) != 128) {
+        return 1;
+    }
+    jreleaseArrayB(env, a);
+    jbyteArray b = jpooledArrayB(env, bytes, 70);
+    if (!(*env)->IsSameObject(env, a, b)) {
+        return 2;
+    }
+    (*env)->GetByteArrayRegion(env, b, 0, 3, bytes + 50);
+    (*env)->SetByteArrayRegion(env, out, 0, 3, bytes + 50);
+    jbyteArray empty = jpooledArrayB(env, bytes, 0);
+    if (empty == 0 || (*env)->GetArrayLength(env, empty) != 64) {
+        return 3;
+    }
+    jreleaseArrayB(env, b);
+    jtrimArrayPool(env, 0);
+    jbyteArray d = jpooledArrayB(env, bytes, 100);
+    if ((*env)->IsSameObject(env, a, d)) {
+        return 4;
+    }
+    jlong longs[5] = {1, 2, 3, 4, 5};
+    jlongArray l = jpooledArrayJ(env, longs, 5);
+    jreleaseArrayJ(env, l);
+    jlongArray l2 = jpooledArrayJ(env, longs, 64);
+    if (!(*env)->IsSameObject(env, l, l2)) {
+        return 5;
+    }
+    jbyte * big = calloc(1, (1 << 21) + 1);
+    jbyteArray huge = jpooledArrayB(env, big, (1 << 21) + 1);
+    free(big);
+    if ((*env)->GetArrayLength(env, huge) != (1 << 21) + 1) {
+        return 6;
+    }
+    jreleaseArrayB(env, huge);
+    for (int i = 0; i < 20; i++) {
+        jdoubleArray dd = jpooledArrayD(env, 0, 0);
+        jbyte * mid = calloc(1, 1 << 20);
+        jbyteArray m = jpooledArrayB(env, mid, 1 << 20);
+        free(mid);
+        jreleaseArrayB(env, m);
+        jreleaseArrayD(env, dd);
+        (*env)->DeleteLocalRef(env, m);
+        (*env)->DeleteLocalRef(env, dd);
+    }
+    //more entries than one trim batch drops under the lock
+    jtrimArrayPool(env, 0);
+    jshort zeros[1024] = {0};
+    jshortArray pooled[40];
+    (*env)->EnsureLocalCapacity(env, 100);
+    for (int i = 0; i < 40; i++) {
+        pooled[i] = jpooledArrayS(env, zeros, 64 << (i % 5));
+    }
+    for (int i = 0; i < 40; i++) {
+        jreleaseArrayS(env, pooled[i]);
+    }
+    jtrimArrayPool(env, 0);
+    for (int i = 0; i < 40; i++) {
+        jshortArray fresh = jpooledArrayS(env, zeros, 64 << (i % 5));
+        for (int k = 0; k < 40; k++) {
+            if ((*env)->IsSameObject(env, fresh, pooled[k])) {
+                return 7;
+            }
+        }
+        (*env)->DeleteLocalRef(env, fresh);
+    }
+    for (int i = 0; i < 40; i++) {
+        (*env)->DeleteLocalRef(env, pooled[i]);
+    }
+    (*env)->DeleteLocalRef(env, a);
+    (*env)->DeleteLocalRef(env, d);
+    (*env)->DeleteLocalRef(env, empty);
+    (*env)->DeleteLocalRef(env, l);
+    (*env)->DeleteLocalRef(env, l2);
+    (*env)->DeleteLocalRef(env, huge);
+    return 0;
+}
+
+//fills a pooled array with a thread specific pattern and checks nobody else got the same array meanwhile
+static void * array_pool_worker(void * arg) {
+    JNIEnv * env = jnigenerator_env();
+    jbyte pattern[300];
+    jbyte check[300];
+    memset(pattern, (int) (intptr_t) arg, sizeof(pattern));
+    for (jint i = 0; i < stress_rounds; i++) {
+        jsize len = 1 + (i * 37) % 300;
+        jbyteArray a = jpooledArrayB(env, pattern, len);
+        if (a == 0) {
+            return 0;
+        }
+        sched_yield();
+        (*env)->GetByteArrayRegion(env, a, 0, len, check);
+        jreleaseArrayB(env, a);
+        (*env)->DeleteLocalRef(env, a);
+        if (memcmp(pattern, check, len) != 0) {
+            return 0;
+        }
+    }
+    __atomic_fetch_add(&stress_ok, 1, __ATOMIC_SEQ_CST);
+    return 0;
+}
+
+NATIVE(jint, arrayPoolStress)(JNIEnv * env, jclass c, jint n, jint rounds) {
+    pthread_t t[16];
+    stress_rounds = rounds;
+    stress_ok = 0;
+    for (jint i = 0; i < n; i++) {
+        pthread_create(&t[i], 0, array_pool_worker, (void *) (intptr_t) (i + 1));
+    }
+    for (jint i = 0; i < n; i++) {
+        pthread_join(t[i], 0);
+    }
+    return stress_ok;
+}
+
+static unsigned char field_mem[64];
+
+NATIVE(jlong, bufferField)(JNIEnv * env, jclass c, jobject p, jint size) {
+    for (int i = 0; i < 64; i++) {
+        field_mem[i] = (unsigned char) i;
+    }
+    if (size > 0 && !jsetBuf_Point_buf(env, p, field_mem, size)) {
+        return -2;
+    }
+    void * addr;
+    jlong cap;
+    if (!jgetBuf_Point_buf(env, p, &addr, &cap)) {
+        return addr == 0 && cap == -1 ? -1 : -3;
+    }
+    return addr == field_mem ? cap : -4;
+}
+
+static int freed_count = 0;
+
+static void free_callback(void * address, jlong capacity, void * ctx) {
+    if (ctx == (void *) 0x1234 && capacity == 1024) {
+        __atomic_fetch_add(&freed_count, 1, __ATOMIC_SEQ_CST);
+    }
+    free(address);
+}
+
+NATIVE(jobject, freeBuffer)(JNIEnv * env, jclass c, jint size) {
+    unsigned char * mem = malloc(size);
+    for (int i = 0; i < size; i++) {
+        mem[i] = (unsigned char) i;
+    }
+    return jbufferFreeB(env, mem, size, free_callback, (void *) 0x1234);
+}
+
+NATIVE(jint, freed)(JNIEnv * env, jclass c) {
+    return __atomic_load_n(&freed_count, __ATOMIC_SEQ_CST);
+}
+
+static int stale_thrown(JNIEnv * env) {
+    jthrowable t = (*env)->ExceptionOccurred(env);
+    if (t == 0) {
+        return 0;
+    }
+    (*env)->ExceptionClear(env);
+    jclass ise = (*env)->FindClass(env, "java/lang/IllegalStateException");
+    int r = (*env)->IsInstanceOf(env, t, ise) ? 1 : 2;
+    (*env)->DeleteLocalRef(env, t);
+    (*env)->DeleteLocalRef(env, ise);
+    return r;
+}
+
+static int oom_thrown(JNIEnv * env) {
+    if (!(*env)->ExceptionCheck(env)) {
+        return 0;
+    }
+    (*env)->ExceptionClear(env);
+    return 1;
+}
+
+NATIVE(jint, handles)(JNIEnv * env, jclass c, jobject p) {
+    int a = 1, b = 2;
+    if (jhandle_Point_handle_get(env, p) != 0 || (*env)->ExceptionCheck(env)) return 1;
+    if (!jhandle_Point_handle_set(env, p, &a)) return 2;
+    if (jhandle_Point_handle_get(env, p) != &a) return 3;
+    jlong h = jget_Point_handle(env, p);
+    if (h == 0 || jhandle_Point_handle_clear(env, p) != &a || jget_Point_handle(env, p) != 0) return 4;
+    if (jhandle_Point_handle_lookup(env, h) != 0 || stale_thrown(env) != 1) return 5;
+    if (jhandle_Point_handle_free(env, h) != 0 || stale_thrown(env) != 1) return 6;
+    if (jhandle_Point_handle_lookup(env, 12345) != 0 || stale_thrown(env) != 1) return 7;
+    jlong hs[4];
+    for (int i = 0; i < 4; i++) {
+        hs[i] = jhandle_Point_handle_new(env, &b);
+        if (hs[i] == 0) return 8;
+    }
+    if (jhandle_Point_handle_new(env, &b) != 0 || !oom_thrown(env)) return 9;
+    for (int i = 0; i < 4; i++) {
+        if (jhandle_Point_handle_free(env, hs[i]) != &b) return 10;
+    }
+    jlong again = jhandle_Point_handle_new(env, &a);
+    for (int i = 0; i < 4; i++) {
+        if (hs[i] == again) return 11;
+    }
+    if (jhandle_Point_handle_lookup(env, hs[0]) != 0 || stale_thrown(env) != 1) return 12;
+    if (jhandle_Point_handle_free(env, again) != &a) return 13;
+    jset_Point_handle(env, p, hs[1]);
+    if (jhandle_Point_handle_clear(env, p) != 0 || stale_thrown(env) != 1 || jget_Point_handle(env, p) != hs[1]) return 14;
+    jhandle_Point_handle_set(env, p, 0);
+    if (jhandle_Point_handle_clear(env, p) != 0 || (*env)->ExceptionCheck(env) || jget_Point_handle(env, p) != 0) return 15;
+    return 0;
+}
+
+static void * handle_worker(void * arg) {
+    JNIEnv * env = jnigenerator_env();
+    int mine = 0;
+    for (jint i = 0; i < stress_rounds; i++) {
+        jlong h = jhandle_Point_handle_new(env, &mine);
+        if (h == 0) {
+            //table full, the other threads hold all slots right now
+            (*env)->ExceptionClear(env);
+            continue;
+        }
+        if (jhandle_Point_handle_lookup(env, h) != &mine) return 0;
+        if (jhandle_Point_handle_free(env, h) != &mine) return 0;
+        if (jhandle_Point_handle_lookup(env, h) != 0) return 0;
+        (*env)->ExceptionClear(env);
+    }
+    __atomic_fetch_add(&stress_ok, 1, __ATOMIC_SEQ_CST);
+    return 0;
+}
+
+NATIVE(jint, handleStress)(JNIEnv * env, jclass c, jint n, jint rounds) {
+    pthread_t t[16];
+    stress_rounds = rounds;
+    stress_ok = 0;
+    for (jint i = 0; i < n; i++) {
+        pthread_create(&t[i], 0, handle_worker, 0);
+    }
+    for (jint i = 0; i < n; i++) {
+        pthread_join(t[i], 0);
+    }
+    return stress_ok;
+}
+
+//implementations of the panama functions of Point, called through downcall handles without jni
+
+jlong jpanama_Point_sum(jlayout_Point * p0, jint p1) {
+    return p0->x + p0->y + p1;
+}
+
+void jpanama_Point_nop(void) {
+}
+
+//one generated function per call
+
+NATIVE(void, noop)(JNIEnv * env, jclass c) {
+}
+
+NATIVE(jint, getField)(JNIEnv * env, jclass c, jobject p) {
+    return jget_Point_x(env, p);
+}
+
+NATIVE(jlong, sumPoint)(JNIEnv * env, jclass c, jobject p, jint add) {
+    return jget_Point_x(env, p) + jget_Point_y(env, p) + add;
+}
+
+NATIVE(void, setField)(JNIEnv * env, jclass c, jobject p, jint v) {
+    jset_Point_x(env, p, v);
+}
+
+NATIVE(jobject, newObject)(JNIEnv * env, jclass c) {
+    return jnew_Point(env);
+}
+
+NATIVE(void, setString)(JNIEnv * env, jclass c, jobject p) {
+    jsetCC_Point_name(env, p, "/usr/lib/x86_64-linux-gnu/libexample.so.1");
+}
+
+NATIVE(jint, ordinal)(JNIEnv * env, jclass c, jobject color) {
+    return jenum_ordinal(env, color);
+}
+
+//touches several generated functions so a concurrent destroy catches the reader in different places.
+//Only functions taking the env are guarded, so nothing here may use a global ref like jstr_ or jenum_ constants.
+NATIVE(jint, safeRead)(JNIEnv * env, jclass c, jobject p) {
+    jint x = jget_Point_x(env, p);
+    if ((*env)->ExceptionCheck(env)) {
+        return -1;
+    }
+    jstring name = jget_Point_name(env, p);
+    if ((*env)->ExceptionCheck(env)) {
+        return -1;
+    }
+    jstring s = jcall_Point_echo(env, name);
+    (*env)->DeleteLocalRef(env, name);
+    if ((*env)->ExceptionCheck(env)) {
+        return -1;
+    }
+    (*env)->DeleteLocalRef(env, s);
+    jobject color = jget_Point_color(env, p);
+    if ((*env)->ExceptionCheck(env)) {
+        return -1;
+    }
+    jint o = jenum_ordinal(env, color);
+    (*env)->DeleteLocalRef(env, color);
+    if ((*env)->ExceptionCheck(env)) {
+        return -1;
+    }
+    return x + o;
+}
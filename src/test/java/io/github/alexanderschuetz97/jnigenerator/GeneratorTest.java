@@ -0,0 +1,73 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Configurations the generator must reject. These only need the sample classes, not gcc.
+ */
+public class GeneratorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private void assertRejected(Member member, String message) throws Throwable {
+        File out = folder.getRoot();
+        NativeTestLibrary gen = new NativeTestLibrary();
+        gen.headerOutput = new File(out, "err.h").getAbsolutePath();
+        gen.implOutput = new File(out, "err.c").getAbsolutePath();
+        gen.headerInclude = "#include \"err.h\"";
+        gen.structs = new Member[]{member};
+        try {
+            gen.generate();
+            fail(member.getClassname() + " generated");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    @Test
+    public void testEmptyLayout() throws Throwable {
+        Member member = NativeTestLibrary.member("Color");
+        member.setLayoutFile(new File(folder.getRoot(), "ColorView.java").getAbsolutePath());
+        assertRejected(member, "has no primitive instance fields");
+    }
+
+    @Test
+    public void testBatchWithoutParameters() throws Throwable {
+        Member member = NativeTestLibrary.member("Sink");
+        member.setBatchMethod("empty");
+        member.setBatchFile(new File(folder.getRoot(), "EmptyBatch.java").getAbsolutePath());
+        assertRejected(member, "has no parameters");
+    }
+
+    @Test
+    public void testEnumConstantClash() throws Throwable {
+        assertRejected(NativeTestLibrary.member("Clash"), "clashes with the generated function");
+    }
+}
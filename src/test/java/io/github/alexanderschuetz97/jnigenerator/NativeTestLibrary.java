@@ -0,0 +1,340 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator;
+
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.JavaClass;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs the generator on the classes in the sample package, compiles the output together with src/test/c
+ * into a shared library with the local gcc and loads it.
+ * The generated java classes are compiled into the test classes directory so the native code and the tests find them.
+ */
+public class NativeTestLibrary extends JNIGenerator {
+
+    public static final String SAMPLE = "io.github.alexanderschuetz97.jnigenerator.sample";
+
+    private static final String[] STATS_FLAGS = {"-DJNIGENERATOR_STATS", "-DJNIGENERATOR_STATS_LATENCY"};
+
+    private static final String[] DEBUG_FLAGS = {"-DJNIGENERATOR_DEBUG_CRITICAL", "-DJNIGENERATOR_DEBUG_REFS"};
+
+    private static Boolean supported;
+
+    private static File output;
+
+    private static File library;
+
+    private static File debugLibrary;
+
+    /**
+     * true if the native tests can run here: linux, a JDK with javac and gcc on the PATH.
+     */
+    public static synchronized boolean isSupported() {
+        if (supported != null) {
+            return supported;
+        }
+
+        supported = false;
+        if (!System.getProperty("os.name", "").toLowerCase(Locale.ROOT).contains("linux")) {
+            return false;
+        }
+
+        if (ToolProvider.getSystemJavaCompiler() == null || !getJavaInclude().isDirectory()) {
+            return false;
+        }
+
+        try {
+            supported = run(new File("."), "gcc", "--version") == 0;
+        } catch (IOException e) {
+            return false;
+        }
+
+        return supported;
+    }
+
+    /**
+     * Generates and compiles the library with call statistics enabled and loads it. Does nothing if it is already loaded.
+     */
+    public static void load() throws Throwable {
+        load("libjnigenerator-test.so", STATS_FLAGS);
+    }
+
+    /**
+     * Like load() but without call statistics, they would distort the measurements.
+     */
+    public static void loadBenchmark() throws Throwable {
+        load("libjnigenerator-bench.so", new String[0]);
+    }
+
+    //Both libraries export the same symbols, only one of them may be loaded into a jvm.
+    private static synchronized void load(String name, String[] flags) throws Throwable {
+        if (library != null) {
+            if (!library.getName().equals(name)) {
+                throw new IllegalStateException(library.getName() + " is already loaded");
+            }
+            return;
+        }
+
+        File lib = compile(name, flags);
+        System.load(lib.getAbsolutePath());
+        library = lib;
+    }
+
+    /**
+     * Returns the library compiled with the debug checks for critical regions and local references.
+     * It must be loaded by a different jvm than the one that loaded the library from load().
+     */
+    public static synchronized File debugLibrary() throws Throwable {
+        if (debugLibrary == null) {
+            debugLibrary = compile("libjnigenerator-test-debug.so", DEBUG_FLAGS);
+        }
+
+        return debugLibrary;
+    }
+
+    private static File compile(String name, String[] flags) throws Throwable {
+        if (!isSupported()) {
+            throw new IllegalStateException("native tests need linux, a JDK and gcc");
+        }
+
+        File classes = getTestClasses();
+        if (output == null) {
+            File out = new File(classes.getParentFile(), "jnigenerator-test");
+            generate(out);
+            compileJava(out, classes);
+            output = out;
+        }
+
+        File source = new File(classes.getParentFile().getParentFile(), "src/test/c");
+        File include = getJavaInclude();
+        File tmp = new File(output, name + ".tmp");
+
+        List<String> cmd = new ArrayList<>(Arrays.asList("gcc", "-std=gnu11", "-O2", "-shared", "-fPIC", "-Wall", "-Wno-unused-function",
+                "-I" + output.getAbsolutePath(), "-I" + include.getAbsolutePath(), "-I" + new File(include, "linux").getAbsolutePath()));
+        cmd.addAll(Arrays.asList(flags));
+        cmd.add(new File(output, "jnigenerator.c").getAbsolutePath());
+        cmd.add(new File(output, "consts.c").getAbsolutePath());
+        File[] sources = source.listFiles();
+        if (sources == null) {
+            throw new IOException(source.getAbsolutePath() + " not found");
+        }
+        for (File f : sources) {
+            if (f.getName().endsWith(".c")) {
+                cmd.add(f.getAbsolutePath());
+            }
+        }
+        cmd.addAll(Arrays.asList("-o", tmp.getAbsolutePath(), "-lpthread"));
+
+        if (run(output, cmd.toArray(new String[0])) != 0) {
+            throw new IllegalStateException("gcc failed to compile " + name);
+        }
+
+        //a jvm from an earlier run may still map the old file, never overwrite it in place
+        File lib = new File(output, name);
+        Files.move(tmp.toPath(), lib.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return lib;
+    }
+
+    private static void generate(File out) throws Throwable {
+        if (!out.isDirectory() && !out.mkdirs()) {
+            throw new IOException("cannot create " + out.getAbsolutePath());
+        }
+
+        String dir = out.getAbsolutePath() + File.separator;
+        NativeTestLibrary gen = new NativeTestLibrary();
+        gen.headerOutput = dir + "jnigenerator.h";
+        gen.implOutput = dir + "jnigenerator.c";
+        gen.headerInclude = "#include \"jnigenerator.h\"";
+        gen.lazyInit = true;
+        gen.safeDestroy = true;
+
+        Member point = member("Point");
+        point.setMirror(true);
+        point.setLayoutFile(dir + "PointView.java");
+        point.setPoolSize(4);
+        point.setPoolFile(dir + "PointPool.java");
+        point.setHandleFields(new String[]{"handle"});
+        point.setHandleCapacity(4);
+        point.setPanamaFile(dir + "PointPanama.java");
+        point.setPanamaFunctions(new String[]{"sum", "nop"});
+
+        Member encapsulated = member("Encapsulated");
+        encapsulated.setLayoutFile(dir + "EncapsulatedView.java");
+        encapsulated.setPanamaFile(dir + "EncapsulatedPanama.java");
+
+        Member errno = member("Errno");
+        errno.setEnumValueField("code");
+
+        Member sparse = member("Sparse");
+        sparse.setEnumValueField("flag");
+
+        Member sink = member("Sink");
+        sink.setBatchMethod("event");
+        sink.setBatchFile(dir + "SinkBatch.java");
+        sink.setBatchFlush(1000);
+
+        gen.structs = new Member[]{point, member("Color"), member("Consts"), errno, sparse, sink, member("Registered"), member("Names"), encapsulated};
+
+        Member fast = member("FastException");
+        fast.setFastThrow("stackless");
+
+        Member cached = member("CachedException");
+        cached.setFastThrow("cached");
+        cached.setFastThrowMessage("would block");
+
+        gen.exceptions = new Member[]{member("MyException"), fast, cached, member("PendingException")};
+
+        Const consts = new Const();
+        consts.setClassname(SAMPLE + ".Consts");
+        consts.setHeaders(new String[]{"#include \"jnigenerator.h\"", "#define A 1", "#define B 2", "#define C 3.0", "#define D 4", "#define E 5"});
+        consts.setCodeFile(dir + "consts.c");
+        consts.setHeaderFile(dir + "consts.h");
+        consts.setUnpackerFile(dir + "ConstsUnpacker.java");
+        gen.consts = new Const[]{consts};
+
+        InternedString eagain = new InternedString();
+        eagain.setName("EAGAIN");
+        eagain.setValue("Resource temporarily unavailable");
+        InternedString odd = new InternedString();
+        odd.setName("odd");
+        odd.setValue("quote \" back \\ nl \n tri ??= grüße 😀");
+        gen.strings = new InternedString[]{eagain, odd};
+
+        gen.natives = new String[]{SAMPLE + ".Registered"};
+        gen.statsFile = dir + "JniStats.java";
+        gen.statsPackage = SAMPLE;
+        gen.bufferCleanerFile = dir + "BufferCleaner.java";
+        gen.bufferCleanerPackage = SAMPLE;
+        gen.arrayPool = true;
+        gen.attachThreads = true;
+        gen.attachThreadName = "native-worker";
+        gen.generate();
+    }
+
+    static Member member(String name) {
+        Member member = new Member();
+        member.setClassname(SAMPLE + "." + name);
+        return member;
+    }
+
+    /**
+     * true if the jvm has the final java.lang.foreign api the generated panama classes are written against.
+     */
+    public static boolean hasPanama() {
+        String version = System.getProperty("java.specification.version", "1.8");
+        return !version.startsWith("1.") && Integer.parseInt(version) >= 22;
+    }
+
+    //The panama classes are only compiled where the tests in src/test/java22 can use them.
+    private static void compileJava(File out, File classes) throws IOException {
+        List<String> args = new ArrayList<>(Arrays.asList("-nowarn", "-encoding", "UTF-8", "-d", classes.getAbsolutePath(),
+                "-cp", classes.getAbsolutePath() + File.pathSeparator + System.getProperty("java.class.path")));
+        File[] files = out.listFiles();
+        if (files == null) {
+            throw new IOException(out.getAbsolutePath() + " not found");
+        }
+        for (File f : files) {
+            if (f.getName().endsWith(".java") && (hasPanama() || !f.getName().endsWith("Panama.java"))) {
+                args.add(f.getAbsolutePath());
+            }
+        }
+
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac.run(null, null, null, args.toArray(new String[0])) != 0) {
+            throw new IllegalStateException("javac failed to compile the generated java classes");
+        }
+    }
+
+    private static int run(File dir, String... cmd) throws IOException {
+        Process process = new ProcessBuilder(cmd).directory(dir).redirectErrorStream(true).start();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            byte[] buf = new byte[4096];
+            int r;
+            while ((r = in.read(buf)) != -1) {
+                baos.write(buf, 0, r);
+            }
+        }
+
+        int code;
+        try {
+            code = process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+
+        if (code != 0) {
+            System.err.println(String.join(" ", cmd));
+            System.err.write(baos.toByteArray());
+            System.err.flush();
+        }
+
+        return code;
+    }
+
+    private static File getTestClasses() throws URISyntaxException {
+        return new File(NativeTestLibrary.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    }
+
+    //jdk 8 has java.home pointing at the bundled jre
+    private static File getJavaInclude() {
+        File home = new File(System.getProperty("java.home"));
+        File include = new File(home, "include");
+        if (include.isDirectory()) {
+            return include;
+        }
+
+        return new File(home.getParentFile(), "include");
+    }
+
+    @Override
+    public Map<String, JavaClass> getClasses(Set<String> needed) throws IOException {
+        Map<String, JavaClass> classes = new HashMap<>();
+        for (String name : needed) {
+            String resource = name.replace('.', '/') + ".class";
+            try (InputStream in = NativeTestLibrary.class.getClassLoader().getResourceAsStream(resource)) {
+                if (in == null) {
+                    throw new IOException(resource + " not found");
+                }
+                classes.put(name, new ClassParser(in, resource).parse());
+            }
+        }
+
+        return classes;
+    }
+}
@@ -0,0 +1,53 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+/**
+ * Entry point of the child jvm started by DebugTest. Loads the debug build of the test library,
+ * checks the local reference tracking and then breaks the rules of a critical region, which must abort the jvm.
+ */
+public final class CriticalViolation {
+
+    private CriticalViolation() {
+    }
+
+    public static void main(String[] args) {
+        System.load(args[0]);
+        Point[] points = new Point[5000];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point("p" + i);
+        }
+        if (Natives.frames(points) != 0) {
+            System.out.println("local references leaked");
+            System.exit(1);
+        }
+
+        Point point = new Point();
+        point.ints = new int[]{1, 2, 3, 4};
+        if (Natives.critical(point, false) != 10) {
+            System.out.println("critical region failed");
+            System.exit(1);
+        }
+
+        Natives.critical(point, true);
+        System.out.println("violation not detected");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,57 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+import io.github.alexanderschuetz97.jnigenerator.NativeTestLibrary;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DebugTest {
+
+    //The debug build aborts the process, so it runs in a jvm of its own.
+    @Test
+    public void testCriticalViolationAborts() throws Throwable {
+        Assume.assumeTrue("native tests need linux, a JDK and gcc", NativeTestLibrary.isSupported());
+        File library = NativeTestLibrary.debugLibrary();
+        File java = new File(new File(System.getProperty("java.home"), "bin"), "java");
+        Process process = new ProcessBuilder(java.getAbsolutePath(), "-cp", System.getProperty("java.class.path"),
+                CriticalViolation.class.getName(), library.getAbsolutePath()).redirectErrorStream(true).start();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            byte[] buf = new byte[4096];
+            int r;
+            while ((r = in.read(buf)) != -1) {
+                baos.write(buf, 0, r);
+            }
+        }
+
+        String output = baos.toString("UTF-8");
+        assertEquals(output, 134, process.waitFor());
+        assertTrue(output, output.contains("jnigenerator:"));
+    }
+}
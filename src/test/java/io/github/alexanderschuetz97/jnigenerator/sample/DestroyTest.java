@@ -0,0 +1,119 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DestroyTest {
+
+    @BeforeClass
+    public static void load() throws Throwable {
+        Generated.load();
+    }
+
+    @Test
+    public void testCallsAfterDestroyFail() {
+        Point point = new Point("p");
+        point.x = 40;
+        point.color = Color.GREEN;
+        assertEquals(41, Natives.safeRead(point));
+
+        Natives.destroy();
+        try {
+            try {
+                Natives.getField(point);
+                fail();
+            } catch (IllegalStateException e) {
+                assertEquals("jnigenerator is not initialized", e.getMessage());
+            }
+
+            try {
+                Registered.add(1, 2);
+                fail();
+            } catch (UnsatisfiedLinkError e) {
+                //unregistered by destroy
+            }
+        } finally {
+            assertTrue(Natives.init());
+        }
+
+        assertEquals(41, Natives.safeRead(point));
+        assertEquals(3, Registered.add(1, 2));
+    }
+
+    //Readers never block and either see the library initialized or get an IllegalStateException, they must never crash.
+    @Test
+    public void testDestroyWhileReading() throws InterruptedException {
+        final Point point = new Point("p");
+        point.x = 40;
+        point.color = Color.BLUE;
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger ok = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        final AtomicInteger wrong = new AtomicInteger();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            readers.add(new Thread(() -> {
+                while (running.get()) {
+                    try {
+                        if (Natives.safeRead(point) == 42) {
+                            ok.incrementAndGet();
+                        } else {
+                            wrong.incrementAndGet();
+                        }
+                    } catch (IllegalStateException e) {
+                        rejected.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread reader : readers) {
+            reader.start();
+        }
+
+        try {
+            for (int i = 0; i < 500; i++) {
+                Natives.destroy();
+                Thread.yield();
+                assertTrue(Natives.init());
+                Thread.yield();
+            }
+        } finally {
+            running.set(false);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+
+        assertEquals(0, wrong.get());
+        assertTrue(ok.get() > 0);
+        assertEquals(42, Natives.safeRead(point));
+    }
+}
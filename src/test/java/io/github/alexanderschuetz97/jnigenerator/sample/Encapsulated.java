@@ -0,0 +1,45 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+/**
+ * Struct whose private and final fields the generated views can only reach through their accessors.
+ */
+public class Encapsulated {
+    public int open;
+    private long hidden;
+    public final int fixed;
+
+    public Encapsulated() {
+        this(0);
+    }
+
+    public Encapsulated(int fixed) {
+        this.fixed = fixed;
+    }
+
+    public long getHidden() {
+        return hidden;
+    }
+
+    public void setHidden(long hidden) {
+        this.hidden = hidden;
+    }
+}
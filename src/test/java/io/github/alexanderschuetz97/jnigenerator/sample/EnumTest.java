@@ -0,0 +1,74 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EnumTest {
+
+    @BeforeClass
+    public static void load() throws Throwable {
+        Generated.load();
+    }
+
+    @Test
+    public void testOrdinalAndNames() {
+        assertEquals("red RED RED", Natives.enumSwitch(Color.RED));
+        assertEquals("blue BLUE BLUE", Natives.enumSwitch(Color.BLUE));
+        assertEquals("null", Natives.enumSwitch(null));
+        assertEquals(-1, Natives.ordinal(null));
+    }
+
+    @Test
+    public void testConstantsNamedLikeHelpers() {
+        assertTrue(Natives.names());
+    }
+
+    @Test
+    public void testFromValue() {
+        assertSame(Errno.EAGAIN, Natives.fromErrno(11));
+        assertSame(Errno.EINTR, Natives.fromErrno(4));
+        assertSame(Errno.ENOSPC, Natives.fromErrno(28));
+        assertNull(Natives.fromErrno(0));
+        assertNull(Natives.fromErrno(-1000));
+        assertNull(Natives.fromErrno(Integer.MIN_VALUE));
+    }
+
+    @Test
+    public void testFromSparseValue() {
+        for (Sparse sparse : Sparse.values()) {
+            assertSame(sparse, Natives.fromSparse(sparse.flag));
+        }
+        assertNull(Natives.fromSparse(0));
+        assertNull(Natives.fromSparse(78));
+    }
+
+    @Test
+    public void testToValue() {
+        assertEquals(28, Natives.toErrno(Errno.ENOSPC));
+        assertEquals(-1, Natives.toErrno(null));
+    }
+}
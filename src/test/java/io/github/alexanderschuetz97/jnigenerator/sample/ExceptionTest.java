@@ -0,0 +1,100 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class ExceptionTest {
+
+    @BeforeClass
+    public static void load() throws Throwable {
+        Generated.load();
+    }
+
+    @Test
+    public void testInternedMessage() {
+        try {
+            Natives.throwInterned();
+            fail();
+        } catch (MyException e) {
+            assertEquals("quote \" back \\ nl \n tri ??= grüße 😀", e.getMessage());
+        }
+    }
+
+    //the baseline of ThrowBenchmark, a new exception with a stack trace every time
+    @Test
+    public void testThrow() {
+        try {
+            Natives.throwFast(0);
+            fail();
+        } catch (MyException e) {
+            assertEquals("Resource temporarily unavailable", e.getMessage());
+            assertEquals("throwFast", e.getStackTrace()[0].getMethodName());
+        }
+    }
+
+    @Test
+    public void testStackless() {
+        for (int i = 0; i < 3; i++) {
+            try {
+                Natives.throwFast(1);
+                fail();
+            } catch (FastException e) {
+                assertEquals(0, e.getStackTrace().length);
+                assertEquals("Resource temporarily unavailable", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testCached() {
+        CachedException first = null;
+        for (int i = 0; i < 3; i++) {
+            try {
+                Natives.throwFast(2);
+                fail();
+            } catch (CachedException e) {
+                assertEquals(0, e.getStackTrace().length);
+                assertEquals("would block", e.getMessage());
+                if (first == null) {
+                    first = e;
+                }
+                assertSame(first, e);
+                e.addSuppressed(new Exception());
+                assertEquals(0, e.getSuppressed().length);
+            }
+        }
+    }
+
+    @Test
+    public void testLazyInitKeepsPendingException() {
+        try {
+            Natives.throwPending();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("first", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+import io.github.alexanderschuetz97.jnigenerator.NativeTestLibrary;
+import org.junit.Assume;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Access to the java classes written by the generator. They only exist after NativeTestLibrary ran,
+ * so the tests must not link against them directly.
+ */
+final class Generated {
+
+    private Generated() {
+    }
+
+    /**
+     * Skips the calling test class if the native library cannot be built here, loads it otherwise.
+     */
+    static void load() throws Throwable {
+        Assume.assumeTrue("native tests need linux, a JDK and gcc", NativeTestLibrary.isSupported());
+        NativeTestLibrary.load();
+    }
+
+    static Class<?> type(String simpleName) throws ClassNotFoundException {
+        return Class.forName(NativeTestLibrary.SAMPLE + "." + simpleName);
+    }
+
+    static Object get(String simpleName, String field) throws Throwable {
+        return type(simpleName).getField(field).get(null);
+    }
+
+    static Object invoke(String simpleName, String method, Object... args) throws Throwable {
+        return invoke(simpleName, null, method, args);
+    }
+
+    static Object invoke(String simpleName, Object instance, String method, Object... args) throws Throwable {
+        for (Method m : type(simpleName).getMethods()) {
+            if (!m.getName().equals(method) || m.getParameterTypes().length != args.length) {
+                continue;
+            }
+
+            try {
+                return m.invoke(instance, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        throw new NoSuchMethodException(simpleName + "." + method);
+    }
+
+    static String repeat(String s, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,173 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Entry points into src/test/c that exercise the generated functions.
+ * Bound by symbol name so they survive jnigenerator_destroy, unlike the natives of {@link Registered}.
+ */
+final class Natives {
+
+    static volatile String seenName;
+
+    private Natives() {
+    }
+
+    static native boolean init();
+
+    static native void destroy();
+
+    //structs and arrays
+    static native Point[] newArray(int count);
+
+    static native int fillArray(Point[] array);
+
+    static native long sumArray(Point[] array);
+
+    static native long copyAll(Point from, Point to);
+
+    static native ByteBuffer layoutBuffer(int count);
+
+    static native long layoutAddress();
+
+    static native void setInts(Point point, int count, boolean copy);
+
+    static native int critical(Point point, boolean violate);
+
+    static native void fetchConsts(Consts consts);
+
+    static native void fetchConstsPacked(long[] values);
+
+    //strings
+    static native String viaCC(byte[] utf8);
+
+    static native byte[] toCC(String s, int cap, long[] total);
+
+    static native String fieldCC(Point point, byte[] utf8);
+
+    static native void throwCC(byte[] utf8);
+
+    static native String viaWC(int[] wide);
+
+    static native int[] toWC(String s, int cap, long[] total);
+
+    static native String fieldWC(Point point, int[] wide);
+
+    static native boolean interned(Point point);
+
+    //the same string work once with the generated helpers and once with plain jni, for StringBenchmark
+    static native String stringCC(boolean utf8);
+
+    static native String newStringUTF(boolean utf8);
+
+    static native int getCC(String s);
+
+    static native int getStringUTFChars(String s);
+
+    static native void setFieldCC(Point point, boolean utf8);
+
+    static native void setFieldUTF(Point point, boolean utf8);
+
+    static native int getFieldCC(Point point);
+
+    static native int getFieldUTF(Point point);
+
+    //exceptions
+    static native void throwInterned();
+
+    //0 jthrow_MyException, 1 jthrowFast_FastException, 2 jthrowFast_CachedException
+    static native void throwFast(int kind);
+
+    static native void throwPending();
+
+    //local references
+    static native long frames(Point[] points);
+
+    //enums
+    static native String enumSwitch(Color color);
+
+    static native boolean names();
+
+    static native Object fromErrno(int value);
+
+    static native Object fromSparse(int value);
+
+    static native int toErrno(Errno errno);
+
+    //threads and upcalls
+    static native int attach(int threads);
+
+    static native int batch(Sink sink, int count);
+
+    static native long ringOpen(Sink sink);
+
+    static native ByteBuffer ringBuffer(long ring);
+
+    static native int ringProduce(long ring, int count);
+
+    static native int ringAdd(long ring, int count);
+
+    static native void ringClose(long ring);
+
+    static native long[] stats();
+
+    //pools, buffers and handles
+    static native Point poolTake(int x);
+
+    static native int poolTakeRelease();
+
+    static native boolean poolDoubleRelease();
+
+    static native int poolStress(int threads, int rounds);
+
+    static native int arrayPool(byte[] out);
+
+    static native int arrayPoolStress(int threads, int rounds);
+
+    static native long bufferField(Point point, int size);
+
+    static native ByteBuffer freeBuffer(int size);
+
+    static native int freed();
+
+    static native int handles(Point point);
+
+    static native int handleStress(int threads, int rounds);
+
+    //one generated function per call, used by the destroy test and the benchmarks
+    static native void noop();
+
+    static native int getField(Point point);
+
+    //the jni counterpart of the generated panama downcall to jpanama_Point_sum
+    static native long sumPoint(Point point, int add);
+
+    static native void setField(Point point, int value);
+
+    static native Object newObject();
+
+    static native void setString(Point point);
+
+    static native int ordinal(Color color);
+
+    static native int safeRead(Point point);
+}
@@ -0,0 +1,58 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+/**
+ * Struct with one field of every kind the generator handles differently.
+ */
+public class Point {
+    public int x;
+    public long y;
+    public String name;
+    public byte[] data;
+    public int[] ints;
+    public Color color;
+    public Object other;
+    public java.nio.ByteBuffer buf;
+    public long handle;
+    public static int counter;
+
+    public Point() {
+    }
+
+    public Point(String name) {
+        this.name = name;
+    }
+
+    public String describe(String prefix, int value) {
+        return prefix + name + value;
+    }
+
+    public static String echo(String value) {
+        return value;
+    }
+
+    public static long sum(Point point, int add) {
+        return point.x + point.y + add;
+    }
+
+    public static void nop() {
+    }
+}
@@ -0,0 +1,203 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PoolTest {
+
+    @BeforeClass
+    public static void load() throws Throwable {
+        Generated.load();
+    }
+
+    private static Point acquire() throws Throwable {
+        return (Point) Generated.invoke("PointPool", "acquire");
+    }
+
+    private static void release(Point point) throws Throwable {
+        Generated.invoke("PointPool", "release", point);
+    }
+
+    @Test
+    public void testObjectPool() throws Throwable {
+        Point[] taken = new Point[4];
+        Set<Point> distinct = Collections.newSetFromMap(new IdentityHashMap<Point, Boolean>());
+        for (int i = 0; i < taken.length; i++) {
+            taken[i] = Natives.poolTake(i + 100);
+            assertNotNull(taken[i]);
+            assertEquals(i + 100, taken[i].x);
+            distinct.add(taken[i]);
+        }
+        assertEquals(4, distinct.size());
+        assertNull(Natives.poolTake(1));
+        assertNull(acquire());
+
+        release(taken[2]);
+        assertSame(taken[2], Natives.poolTake(7));
+        release(taken[1]);
+        assertSame(taken[1], acquire());
+        assertEquals(0, Natives.poolTakeRelease());
+
+        try {
+            release(new Point());
+            fail();
+        } catch (IllegalArgumentException e) {
+            //not from the pool
+        }
+
+        for (Point point : taken) {
+            release(point);
+        }
+        assertEquals(100, Natives.poolTakeRelease());
+    }
+
+    @Test
+    public void testDoubleRelease() throws Throwable {
+        Point point = acquire();
+        release(point);
+        try {
+            release(point);
+            fail();
+        } catch (IllegalStateException e) {
+            //released twice from java
+        }
+
+        try {
+            Natives.poolDoubleRelease();
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("not in use"));
+        }
+        assertEquals(100, Natives.poolTakeRelease());
+    }
+
+    //java and native threads fight over the 4 instances, each holder stamps x and checks nobody else changed it
+    @Test
+    public void testObjectPoolConcurrent() throws Throwable {
+        final Method acquire = Generated.type("PointPool").getMethod("acquire");
+        final Method release = Generated.type("PointPool").getMethod("release", Point.class);
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int token = 1000 + t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 100000; i++) {
+                        Point point = (Point) acquire.invoke(null);
+                        if (point == null) {
+                            continue;
+                        }
+                        point.x = token;
+                        Thread.yield();
+                        if (point.x != token) {
+                            failures.incrementAndGet();
+                        }
+                        point.x = 0;
+                        release.invoke(null, point);
+                    }
+                } catch (Throwable e) {
+                    failures.incrementAndGet();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        int ok = Natives.poolStress(4, 100000);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(4, ok);
+        assertEquals(0, failures.get());
+        assertEquals(100, Natives.poolTakeRelease());
+    }
+
+    @Test
+    public void testArrayPool() {
+        byte[] first = new byte[3];
+        assertEquals(0, Natives.arrayPool(first));
+        assertArrayEquals(new byte[]{1, 2, 3}, first);
+    }
+
+    @Test
+    public void testArrayPoolConcurrent() {
+        assertEquals(8, Natives.arrayPoolStress(8, 20000));
+    }
+
+    @Test
+    public void testBufferField() {
+        Point point = new Point();
+        assertEquals(-1, Natives.bufferField(point, 0));
+        assertEquals(64, Natives.bufferField(point, 64));
+        assertTrue(point.buf.isDirect());
+        assertEquals(64, point.buf.capacity());
+        assertEquals(3, point.buf.get(3));
+
+        point.buf = ByteBuffer.allocate(8);
+        assertEquals(-1, Natives.bufferField(point, 0));
+    }
+
+    @Test
+    public void testBufferFreeCallback() throws InterruptedException {
+        int before = Natives.freed();
+        for (int i = 0; i < 50; i++) {
+            ByteBuffer buffer = Natives.freeBuffer(1024);
+            assertEquals(1024, buffer.capacity());
+            assertEquals(5, buffer.get(5));
+        }
+
+        for (int i = 0; i < 100 && Natives.freed() < before + 50; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(before + 50, Natives.freed());
+    }
+
+    @Test
+    public void testHandles() {
+        assertEquals(0, Natives.handles(new Point()));
+    }
+
+    @Test
+    public void testHandlesConcurrent() {
+        assertEquals(4, Natives.handleStress(4, 50000));
+    }
+}
@@ -0,0 +1,48 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+/**
+ * Receiver of the batched upcalls, sums everything it is called with.
+ */
+class Sink {
+    long sum;
+    int events;
+    int throwAt = -1;
+
+    void empty() {
+    }
+
+    void event(int id, long ts, boolean flag, double value, byte b) {
+        if (events == throwAt) {
+            throw new IllegalStateException("sink");
+        }
+        events++;
+        sum += id + ts + (flag ? 1 : 0) + (long) value + b;
+    }
+
+    static long expected(int count) {
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += i + i * 1000L + (i & 1) + (long) (i * 0.5) + (byte) i;
+        }
+        return sum;
+    }
+}
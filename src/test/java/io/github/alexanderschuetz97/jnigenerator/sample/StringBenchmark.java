@@ -0,0 +1,102 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+import io.github.alexanderschuetz97.jnigenerator.NativeTestLibrary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * jstringCC, jgetCC and the jsetCC_/jgetCC_ field accessors against NewStringUTF and GetStringUTFChars
+ * doing the same work, once for a pure ascii string and once for one with multi byte characters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringBenchmark {
+
+    @Param({"false", "true"})
+    public boolean utf8;
+
+    private String input;
+
+    private final Point point = new Point();
+
+    @Setup
+    public void setup() throws Throwable {
+        NativeTestLibrary.loadBenchmark();
+        input = Natives.newStringUTF(utf8);
+        point.name = input;
+    }
+
+    @Benchmark
+    public String stringCC() {
+        return Natives.stringCC(utf8);
+    }
+
+    @Benchmark
+    public String newStringUTF() {
+        return Natives.newStringUTF(utf8);
+    }
+
+    @Benchmark
+    public int getCC() {
+        return Natives.getCC(input);
+    }
+
+    @Benchmark
+    public int getStringUTFChars() {
+        return Natives.getStringUTFChars(input);
+    }
+
+    @Benchmark
+    public void setFieldCC() {
+        Natives.setFieldCC(point, utf8);
+    }
+
+    @Benchmark
+    public void setFieldUTF() {
+        Natives.setFieldUTF(point, utf8);
+    }
+
+    @Benchmark
+    public int getFieldCC() {
+        return Natives.getFieldCC(point);
+    }
+
+    @Benchmark
+    public int getFieldUTF() {
+        return Natives.getFieldUTF(point);
+    }
+}
@@ -0,0 +1,159 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StringTest {
+
+    private static final String[] SAMPLES = {"", "hello", "grüße", "日本語", "emoji 😀 x", "a\u0000b",
+            Generated.repeat("x", 300) + "ü" + Generated.repeat("😀", 200)};
+
+    private static final String[] WIDE_SAMPLES = {"", "abc", "grüße 😀", "😀", Generated.repeat("x", 300) + Generated.repeat("😀", 500)};
+
+    @BeforeClass
+    public static void load() throws Throwable {
+        Generated.load();
+    }
+
+    @Test
+    public void testUtf8RoundTrip() {
+        for (String s : SAMPLES) {
+            if (s.indexOf(0) < 0) {
+                assertEquals(s, Natives.viaCC(s.getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+    }
+
+    @Test
+    public void testUtf8CallerBuffer() {
+        for (String s : SAMPLES) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            for (int cap : new int[]{0, 1, 2, 3, 5, 8, 1000, 5000}) {
+                long[] total = new long[1];
+                byte[] got = Natives.toCC(s, cap, total);
+                assertEquals(s + " " + cap, utf8.length, total[0]);
+                if (cap == 0) {
+                    continue;
+                }
+
+                assertTrue(got.length < cap);
+                String back = new String(got, StandardCharsets.UTF_8);
+                assertFalse("code point split at " + cap, back.contains("�"));
+                if (s.indexOf(0) < 0) {
+                    assertArrayEquals(Arrays.copyOf(utf8, got.length), got);
+                    if (utf8.length < cap) {
+                        assertEquals(utf8.length, got.length);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidUtf8IsReplaced() {
+        assertEquals("a��b", Natives.viaCC(new byte[]{'a', (byte) 0xC0, (byte) 0x80, 'b'}));
+        assertEquals("a�", Natives.viaCC(new byte[]{'a', (byte) 0xED, (byte) 0xA0, (byte) 0x80}));
+        assertEquals("�", Natives.viaCC(new byte[]{(byte) 0xE6, (byte) 0x97}));
+        assertEquals("a�b", new String(Natives.toCC("a\uD800b", 100, new long[1]), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testUtf8Field() {
+        Point point = new Point();
+        assertEquals("grüße 😀", Natives.fieldCC(point, "grüße 😀".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("grüße 😀", point.name);
+        assertNull(Natives.fieldCC(point, null));
+        assertNull(point.name);
+    }
+
+    @Test
+    public void testUtf8Throw() {
+        try {
+            Natives.throwCC("bäd 😀".getBytes(StandardCharsets.UTF_8));
+            fail();
+        } catch (MyException e) {
+            assertEquals("bäd 😀", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testWide() {
+        Point point = new Point();
+        for (String s : WIDE_SAMPLES) {
+            int[] cps = s.codePoints().toArray();
+            assertEquals(s, Natives.viaWC(cps));
+            assertEquals(s, Natives.fieldWC(point, cps));
+            assertEquals(s, point.name);
+            for (int cap : new int[]{0, 1, 2, 3, 5, 2000}) {
+                long[] total = new long[1];
+                int[] got = Natives.toWC(s, cap, total);
+                assertEquals(cps.length, total[0]);
+                if (cap > 0) {
+                    assertArrayEquals(Arrays.copyOf(cps, Math.min(cap - 1, cps.length)), got);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidWideIsReplaced() {
+        assertEquals("a��b", Natives.viaWC(new int[]{'a', 0xD800, 0x110000, 'b'}));
+        assertArrayEquals(new int[]{'a', 0xFFFD, 0xFFFD}, Natives.toWC("a\uDC00\uD800", 10, new long[1]));
+    }
+
+    @Test
+    public void testInterned() {
+        Point point = new Point();
+        assertTrue(Natives.interned(point));
+        assertEquals("Resource temporarily unavailable", point.name);
+    }
+
+    //StringBenchmark compares these pairs, they have to do the same work
+    @Test
+    public void testBenchmarkPairsAgree() {
+        for (boolean utf8 : new boolean[]{false, true}) {
+            String s = Natives.stringCC(utf8);
+            assertEquals(s, Natives.newStringUTF(utf8));
+            assertEquals(s.getBytes(StandardCharsets.UTF_8).length, Natives.getCC(s));
+            assertEquals(Natives.getCC(s), Natives.getStringUTFChars(s));
+
+            Point point = new Point();
+            Natives.setFieldCC(point, utf8);
+            assertEquals(s, point.name);
+            point.name = null;
+            Natives.setFieldUTF(point, utf8);
+            assertEquals(s, point.name);
+            assertEquals(Natives.getCC(s), Natives.getFieldCC(point));
+            assertEquals(Natives.getCC(s), Natives.getFieldUTF(point));
+        }
+    }
+}
@@ -0,0 +1,215 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StructTest {
+
+    @BeforeClass
+    public static void load() throws Throwable {
+        Generated.load();
+    }
+
+    @Test
+    public void testNewArray() {
+        Point[] points = Natives.newArray(1000);
+        assertEquals(1000, points.length);
+        assertEquals(999, points[999].x);
+        assertEquals(6, points[3].y);
+        assertEquals("n5", points[5].name);
+    }
+
+    @Test
+    public void testFillArrayKeepsInstances() {
+        Point[] points = new Point[10];
+        Point keep = new Point();
+        points[2] = keep;
+        assertEquals(10, Natives.fillArray(points));
+        assertSame(keep, points[2]);
+        assertEquals(2, keep.x);
+        assertEquals(9, points[9].x);
+    }
+
+    @Test
+    public void testGetArray() {
+        assertEquals(999L * 1000 / 2, Natives.sumArray(Natives.newArray(1000)));
+    }
+
+    @Test
+    public void testMirrorCopiesAllFields() {
+        Point from = new Point("from");
+        from.x = 3;
+        from.y = 4;
+        from.data = new byte[2];
+        from.color = Color.GREEN;
+        from.handle = 77;
+        Point to = new Point();
+        assertEquals(7, Natives.copyAll(from, to));
+        assertEquals(3, to.x);
+        assertEquals(4, to.y);
+        assertSame(from.name, to.name);
+        assertSame(from.data, to.data);
+        assertSame(Color.GREEN, to.color);
+        assertNull(to.ints);
+        assertEquals(77, to.handle);
+    }
+
+    @Test
+    public void testLayoutView() throws Throwable {
+        ByteBuffer buffer = Natives.layoutBuffer(16);
+        assertEquals(16 * (int) Generated.get("PointView", "SIZE"), buffer.capacity());
+        Object view = Generated.type("PointView").getConstructor(ByteBuffer.class).newInstance(buffer);
+        assertEquals(16, Generated.invoke("PointView", view, "count"));
+        Object fifth = Generated.invoke("PointView", view, "at", 5);
+        assertEquals(5, Generated.invoke("PointView", fifth, "get_x"));
+        assertEquals(5000L, Generated.invoke("PointView", fifth, "get_y"));
+
+        Point point = new Point();
+        Generated.invoke("PointView", fifth, "read", point);
+        assertEquals(5, point.x);
+        assertEquals(-5, point.handle);
+
+        point.y = 123;
+        Generated.invoke("PointView", fifth, "write", point);
+        assertEquals(123L, Generated.invoke("PointView", fifth, "get_y"));
+    }
+
+    @Test
+    public void testLayoutViewOnAddress() throws Throwable {
+        Object view = Generated.type("PointView").getConstructor(long.class, int.class).newInstance(Natives.layoutAddress(), 16);
+        assertEquals(16, Generated.invoke("PointView", view, "count"));
+        Object seventh = Generated.invoke("PointView", view, "at", 7);
+        assertEquals(7, Generated.invoke("PointView", seventh, "get_x"));
+        assertEquals(7000L, Generated.invoke("PointView", seventh, "get_y"));
+        assertEquals(-7L, Generated.invoke("PointView", seventh, "get_handle"));
+
+        try {
+            Generated.type("PointView").getConstructor(long.class, int.class).newInstance(0L, 1);
+            fail();
+        } catch (InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof NullPointerException);
+        }
+    }
+
+    @Test
+    public void testLayoutViewSkipsInaccessibleFields() throws Throwable {
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) Generated.get("EncapsulatedView", "SIZE"));
+        Object view = Generated.type("EncapsulatedView").getConstructor(ByteBuffer.class).newInstance(buffer);
+        Generated.invoke("EncapsulatedView", view, "set_open", 1);
+        Generated.invoke("EncapsulatedView", view, "set_hidden", 2L);
+        Generated.invoke("EncapsulatedView", view, "set_fixed", 3);
+
+        Encapsulated instance = new Encapsulated(9);
+        instance.setHidden(8);
+        Generated.invoke("EncapsulatedView", view, "read", instance);
+        assertEquals(1, instance.open);
+        assertEquals(8, instance.getHidden());
+        assertEquals(9, instance.fixed);
+
+        Generated.invoke("EncapsulatedView", view, "write", instance);
+        assertEquals(1, Generated.invoke("EncapsulatedView", view, "get_open"));
+        assertEquals(2L, Generated.invoke("EncapsulatedView", view, "get_hidden"));
+        assertEquals(9, Generated.invoke("EncapsulatedView", view, "get_fixed"));
+    }
+
+    @Test
+    public void testSetArrayAllocates() {
+        Point point = new Point();
+        int[] held = new int[]{1, 2, 3, 4};
+        point.ints = held;
+        Natives.setInts(point, 4, false);
+        assertNotSame(held, point.ints);
+        assertArrayEquals(new int[]{1, 2, 3, 4}, held);
+        assertArrayEquals(new int[]{100, 101, 102, 103}, point.ints);
+    }
+
+    @Test
+    public void testCopyArrayReusesEqualLength() {
+        Point point = new Point();
+        int[] held = new int[4];
+        point.ints = held;
+        Natives.setInts(point, 4, true);
+        assertSame(held, point.ints);
+        assertArrayEquals(new int[]{100, 101, 102, 103}, held);
+
+        Natives.setInts(point, 3, true);
+        assertNotSame(held, point.ints);
+        assertArrayEquals(new int[]{100, 101, 102}, point.ints);
+    }
+
+    @Test
+    public void testCritical() {
+        Point point = new Point();
+        point.ints = new int[]{1, 2, 3, 4};
+        assertEquals(10, Natives.critical(point, false));
+        point.ints = null;
+        assertEquals(-1, Natives.critical(point, false));
+    }
+
+    @Test
+    public void testConsts() {
+        Consts consts = new Consts();
+        Natives.fetchConsts(consts);
+        assertEquals(1, consts.A);
+        assertEquals(2, consts.B);
+        assertEquals(3.0, consts.C, 0);
+        assertEquals(4, Consts.D);
+        assertEquals(5, consts.getE());
+    }
+
+    @Test
+    public void testPackedConsts() throws Throwable {
+        Consts.D = 0;
+        long[] values = new long[(int) Generated.get("ConstsUnpacker", "COUNT")];
+        assertEquals(4, values.length);
+        Natives.fetchConstsPacked(values);
+        Consts consts = new Consts();
+        Generated.invoke("ConstsUnpacker", "unpack", consts, values);
+        assertEquals(1, consts.A);
+        assertEquals(2, consts.B);
+        assertEquals(3.0, consts.C, 0);
+        assertEquals(4, Consts.D);
+        assertEquals(0, consts.getE());
+
+        Natives.fetchConstsPacked(null);
+    }
+
+    @Test
+    public void testLocalFrames() {
+        Point[] points = new Point[5000];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point("p" + i);
+        }
+        assertEquals(0, Natives.frames(points));
+    }
+}
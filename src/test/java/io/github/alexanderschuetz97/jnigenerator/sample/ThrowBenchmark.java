@@ -0,0 +1,86 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+import io.github.alexanderschuetz97.jnigenerator.NativeTestLibrary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throwing from native code and catching in java with jthrow_ against jthrowFast_ for a stackless
+ * and a cached exception. depth adds java frames below the native call since filling in
+ * the stack trace of jthrow_ gets more expensive with every frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThrowBenchmark {
+
+    @Param({"0", "50"})
+    public int depth;
+
+    @Setup
+    public void setup() throws Throwable {
+        NativeTestLibrary.loadBenchmark();
+    }
+
+    private static RuntimeException throwAt(int depth, int kind) {
+        if (depth > 0) {
+            return throwAt(depth - 1, kind);
+        }
+
+        try {
+            Natives.throwFast(kind);
+        } catch (RuntimeException e) {
+            return e;
+        }
+
+        throw new AssertionError("nothing thrown");
+    }
+
+    @Benchmark
+    public RuntimeException jthrow() {
+        return throwAt(depth, 0);
+    }
+
+    @Benchmark
+    public RuntimeException jthrowFastStackless() {
+        return throwAt(depth, 1);
+    }
+
+    @Benchmark
+    public RuntimeException jthrowFastCached() {
+        return throwAt(depth, 2);
+    }
+}
@@ -0,0 +1,158 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UpcallTest {
+
+    @BeforeClass
+    public static void load() throws Throwable {
+        Generated.load();
+    }
+
+    @Test
+    public void testAttachFromNativeThreads() throws InterruptedException {
+        Point.counter = 0;
+        Natives.seenName = null;
+        assertEquals(200 * 4, Natives.attach(200));
+        assertEquals(42, Point.counter);
+        assertEquals("native-worker", Natives.seenName);
+
+        //the threads detach when they exit
+        Thread.sleep(100);
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse(thread.getName().equals("native-worker"));
+        }
+    }
+
+    @Test
+    public void testBatch() {
+        Sink sink = new Sink();
+        assertEquals(1, Natives.batch(sink, 2500));
+        assertEquals(2500, sink.events);
+        assertEquals(Sink.expected(2500), sink.sum);
+    }
+
+    @Test
+    public void testBatchRethrows() {
+        Sink sink = new Sink();
+        sink.throwAt = 10;
+        try {
+            Natives.batch(sink, 50);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(10, sink.events);
+        }
+    }
+
+    @Test
+    public void testRingWithConcurrentProducer() throws Throwable {
+        Method drain = Generated.type("SinkBatch").getMethod("drain", Object.class, ByteBuffer.class);
+        final Sink sink = new Sink();
+        final long ring = Natives.ringOpen(sink);
+        final int count = 2000000;
+        ByteBuffer buffer = Natives.ringBuffer(ring);
+        Thread producer = new Thread(() -> Natives.ringProduce(ring, count));
+        producer.start();
+        try {
+            while (sink.events < count) {
+                if ((int) drain.invoke(null, sink, buffer) == 0) {
+                    Thread.yield();
+                }
+            }
+        } finally {
+            producer.join();
+        }
+
+        assertEquals(0, drain.invoke(null, sink, buffer));
+        Natives.ringClose(ring);
+        assertEquals(count, sink.events);
+        assertEquals(Sink.expected(count), sink.sum);
+    }
+
+    @Test
+    public void testAddWaitsForBusyDrain() throws Throwable {
+        final Sink sink = new Sink();
+        final long ring = Natives.ringOpen(sink);
+        final int count = (int) Generated.get("SinkBatch", "CAPACITY") * 2;
+        //the busy flag of the ring, as if another thread was inside drain
+        ByteBuffer buffer = Natives.ringBuffer(ring).order(ByteOrder.nativeOrder());
+        buffer.putInt(128, 1);
+        final int[] result = new int[1];
+        Thread producer = new Thread(() -> result[0] = Natives.ringAdd(ring, count));
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+        assertEquals(0, sink.events);
+
+        buffer.putInt(128, 0);
+        producer.join();
+        Natives.ringClose(ring);
+        assertEquals(1, result[0]);
+        assertEquals(count, sink.events);
+        assertEquals(Sink.expected(count), sink.sum);
+    }
+
+    @Test
+    public void testRegisteredNatives() {
+        assertEquals(5, Registered.add(2, 3));
+        assertEquals(8L, Registered.add(7L));
+        Registered registered = new Registered();
+        registered.nothing();
+        assertEquals("x3:5", registered.describe("x", new double[3]));
+    }
+
+    @Test
+    public void testStats() throws Throwable {
+        long[] before = Natives.stats();
+        String[] functions = (String[]) Generated.get("JniStats", "FUNCTIONS");
+        String[] scopes = (String[]) Generated.get("JniStats", "SCOPES");
+        assertEquals(functions.length, before[0]);
+        assertEquals(scopes.length, before[2]);
+
+        int flush = Arrays.asList(functions).indexOf("jbatch_Sink_event_flush");
+        assertTrue(flush >= 0);
+        Natives.batch(new Sink(), 2500);
+        long[] after = Natives.stats();
+
+        //flushed at 1000 and 2000 by jbatch_Sink_event_add and once more at the end
+        long calls = (long) Generated.invoke("JniStats", "calls", after, flush) - (long) Generated.invoke("JniStats", "calls", before, flush);
+        assertEquals(3, calls);
+
+        long histogram = 0;
+        for (int bucket = 0; bucket < after[1]; bucket++) {
+            histogram += (long) Generated.invoke("JniStats", "latency", after, flush, bucket) - (long) Generated.invoke("JniStats", "latency", before, flush, bucket);
+        }
+        assertEquals(3, histogram);
+        assertTrue((long) Generated.invoke("JniStats", "initNanos", after, Arrays.asList(scopes).indexOf("Point")) > 0);
+    }
+}
@@ -0,0 +1,89 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+import io.github.alexanderschuetz97.jnigenerator.NativeTestLibrary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one call of each kind of generated wrapper, including the transition into native code.
+ * noop is the transition alone and is the baseline for the others.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WrapperBenchmark {
+
+    private final Point point = new Point("p");
+
+    @Setup
+    public void setup() throws Throwable {
+        NativeTestLibrary.loadBenchmark();
+    }
+
+    @Benchmark
+    public void noop() {
+        Natives.noop();
+    }
+
+    @Benchmark
+    public int getField() {
+        return Natives.getField(point);
+    }
+
+    @Benchmark
+    public void setField() {
+        Natives.setField(point, 1);
+    }
+
+    @Benchmark
+    public Object newObject() {
+        return Natives.newObject();
+    }
+
+    @Benchmark
+    public void setString() {
+        Natives.setString(point);
+    }
+
+    @Benchmark
+    public int enumOrdinal() {
+        return Natives.ordinal(Color.GREEN);
+    }
+
+    @Benchmark
+    public Object enumFromValue() {
+        return Natives.fromErrno(11);
+    }
+}
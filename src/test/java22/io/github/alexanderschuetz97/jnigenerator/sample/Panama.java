@@ -0,0 +1,62 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+import io.github.alexanderschuetz97.jnigenerator.NativeTestLibrary;
+
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Handles to the generated PointPanama. It only exists once NativeTestLibrary ran,
+ * so this class must not be initialized before that. The handles are static final so the jit can inline them.
+ */
+final class Panama {
+
+    static final MemoryLayout LAYOUT;
+
+    static final MethodHandle SUM;
+
+    static final MethodHandle NOP;
+
+    static final MethodHandle GET_X;
+
+    static final MethodHandle SET_X;
+
+    static {
+        try {
+            Class<?> clazz = Class.forName(NativeTestLibrary.SAMPLE + ".PointPanama");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            LAYOUT = (MemoryLayout) clazz.getField("LAYOUT").get(null);
+            SUM = lookup.findStatic(clazz, "sum", MethodType.methodType(long.class, MemorySegment.class, int.class));
+            NOP = lookup.findStatic(clazz, "nop", MethodType.methodType(void.class));
+            GET_X = lookup.findStatic(clazz, "get_x", MethodType.methodType(int.class, MemorySegment.class));
+            SET_X = lookup.findStatic(clazz, "set_x", MethodType.methodType(void.class, MemorySegment.class, int.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Panama() {
+    }
+}
@@ -0,0 +1,101 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+import io.github.alexanderschuetz97.jnigenerator.NativeTestLibrary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The generated panama downcalls and layout accessors against the jni path for the same work:
+ * an empty call, jpanama_Point_sum against jget_Point_x + jget_Point_y, and reading a field.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-native-access=ALL-UNNAMED")
+public class PanamaBenchmark {
+
+    private final Point point = new Point();
+
+    private Arena arena;
+
+    private MemorySegment segment;
+
+    @Setup
+    public void setup() throws Throwable {
+        NativeTestLibrary.loadBenchmark();
+        point.x = 5;
+        point.y = 7;
+        arena = Arena.ofShared();
+        segment = arena.allocate(Panama.LAYOUT);
+        Generated.invoke("PointPanama", "write", point, segment);
+    }
+
+    @TearDown
+    public void tearDown() {
+        arena.close();
+    }
+
+    @Benchmark
+    public void panamaNop() throws Throwable {
+        Panama.NOP.invokeExact();
+    }
+
+    @Benchmark
+    public void jniNop() {
+        Natives.noop();
+    }
+
+    @Benchmark
+    public long panamaSum() throws Throwable {
+        return (long) Panama.SUM.invokeExact(segment, 30);
+    }
+
+    @Benchmark
+    public long jniSum() {
+        return Natives.sumPoint(point, 30);
+    }
+
+    @Benchmark
+    public int panamaGetField() throws Throwable {
+        return (int) Panama.GET_X.invokeExact(segment);
+    }
+
+    @Benchmark
+    public int jniGetField() {
+        return Natives.getField(point);
+    }
+}
@@ -0,0 +1,83 @@
+//
+// Copyright Alexander Schütz, 2022
+//
+// This file is part of jnigenerator.
+//
+// jnigenerator is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// jnigenerator is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// A copy of the GNU General Public License should be provided
+// in the COPYING files in top level directory of jnigenerator.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.jnigenerator.sample;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+import static org.junit.Assert.assertEquals;
+
+public class PanamaTest {
+
+    @BeforeClass
+    public static void load() throws Throwable {
+        Generated.load();
+    }
+
+    @Test
+    public void testDowncall() throws Throwable {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment segment = arena.allocate(Panama.LAYOUT);
+            Panama.SET_X.invokeExact(segment, 5);
+            segment.set(ValueLayout.JAVA_LONG, (long) Generated.get("PointPanama", "OFFSET_y"), 7L);
+            assertEquals(5, (int) Panama.GET_X.invokeExact(segment));
+            assertEquals(42L, (long) Panama.SUM.invokeExact(segment, 30));
+            Panama.NOP.invokeExact();
+        }
+    }
+
+    @Test
+    public void testSameResultAsJni() throws Throwable {
+        Point point = new Point();
+        point.x = 5;
+        point.y = 7;
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment segment = arena.allocate(Panama.LAYOUT);
+            Generated.invoke("PointPanama", "write", point, segment);
+            assertEquals(Natives.sumPoint(point, 30), (long) Panama.SUM.invokeExact(segment, 30));
+        }
+    }
+
+    @Test
+    public void testReadWriteSkipsInaccessibleFields() throws Throwable {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment segment = (MemorySegment) Generated.invoke("EncapsulatedPanama", "allocate", arena);
+            Generated.invoke("EncapsulatedPanama", "set_open", segment, 1);
+            Generated.invoke("EncapsulatedPanama", "set_hidden", segment, 2L);
+            Generated.invoke("EncapsulatedPanama", "set_fixed", segment, 3);
+
+            Encapsulated instance = new Encapsulated(9);
+            instance.setHidden(8);
+            Generated.invoke("EncapsulatedPanama", "read", segment, instance);
+            assertEquals(1, instance.open);
+            assertEquals(8, instance.getHidden());
+            assertEquals(9, instance.fixed);
+
+            Generated.invoke("EncapsulatedPanama", "write", instance, segment);
+            assertEquals(1, Generated.invoke("EncapsulatedPanama", "get_open", segment));
+            assertEquals(2L, Generated.invoke("EncapsulatedPanama", "get_hidden", segment));
+            assertEquals(9, Generated.invoke("EncapsulatedPanama", "get_fixed", segment));
+        }
+    }
+}